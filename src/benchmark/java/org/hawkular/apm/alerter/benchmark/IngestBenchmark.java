@@ -0,0 +1,84 @@
+/*
+ * Copyright 2015-2016 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.apm.alerter.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.hawkular.alerts.api.model.event.Event;
+import org.hawkular.apm.alerter.EventCodec;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+
+/**
+ * Decoding time of a batch of events on the JSON and the binary ingest formats.
+ *
+ * @author Lucas Ponce
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class IngestBenchmark {
+
+    @Param({Scenarios.MARKETING, Scenarios.FRAUD})
+    public String scenario;
+
+    @Param({"1000", "50000"})
+    public int events;
+
+    private ObjectReader jsonReader;
+    private byte[] json;
+    private byte[] binary;
+
+    @Setup
+    public void setup() throws Exception {
+        List<Event> batch = new ArrayList<>(events);
+        for (int i = 0; i < events; i++) {
+            batch.add(Scenarios.event(scenario, i, i));
+        }
+        ObjectMapper mapper = new ObjectMapper()
+                .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+        jsonReader = mapper.readerFor(Event[].class);
+        json = mapper.writeValueAsBytes(batch);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        EventCodec.encode(batch, out, EventCodec.DEFAULT_FRAME_EVENTS);
+        binary = out.toByteArray();
+    }
+
+    @Benchmark
+    public Event[] decodeJson() throws Exception {
+        return jsonReader.readValue(json);
+    }
+
+    @Benchmark
+    public List<Event> decodeBinary() throws Exception {
+        return EventCodec.decode(new ByteArrayInputStream(binary));
+    }
+}
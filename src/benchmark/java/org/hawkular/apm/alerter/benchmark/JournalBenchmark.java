@@ -0,0 +1,98 @@
+/*
+ * Copyright 2015-2016 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.apm.alerter.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.hawkular.alerts.api.model.event.Event;
+import org.hawkular.apm.alerter.EventCodec;
+import org.hawkular.apm.alerter.cep.EventJournal;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Append time of a batch of events on the journal, compared with the binary decoding of the same batch on ingest.
+ * Run it with several threads (i.e. -t 8) to see the effect of group commit on the sync mode.
+ *
+ * @author Lucas Ponce
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class JournalBenchmark {
+
+    @Param({Scenarios.MARKETING, Scenarios.FRAUD})
+    public String scenario;
+
+    @Param({"100", "1000"})
+    public int events;
+
+    private List<Event> batch;
+    private byte[] binary;
+    private Path dir;
+    private EventJournal journal;
+
+    @Setup
+    public void setup() throws Exception {
+        batch = new ArrayList<>(events);
+        for (int i = 0; i < events; i++) {
+            batch.add(Scenarios.event(scenario, i, i));
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        EventCodec.encode(batch, out, EventCodec.DEFAULT_FRAME_EVENTS);
+        binary = out.toByteArray();
+        dir = Files.createTempDirectory("journal-benchmark");
+        journal = new EventJournal(dir, 64 * 1024 * 1024);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        journal.close();
+        Files.list(dir).forEach(file -> file.toFile().delete());
+        Files.delete(dir);
+    }
+
+    @Benchmark
+    public List<Event> decodeBinary() throws Exception {
+        return EventCodec.decode(new ByteArrayInputStream(binary));
+    }
+
+    @Benchmark
+    public long appendAsync() throws Exception {
+        return journal.append(batch);
+    }
+
+    @Benchmark
+    public long appendSync() throws Exception {
+        long position = journal.append(batch);
+        journal.sync(position);
+        return position;
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright 2015-2016 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.apm.alerter.benchmark;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.drools.core.time.impl.PseudoClockScheduler;
+import org.hawkular.alerts.api.model.event.Event;
+import org.hawkular.alerts.api.model.trigger.FullTrigger;
+import org.hawkular.apm.alerter.Expression;
+import org.hawkular.apm.alerter.cep.CepEngine;
+import org.hawkular.apm.alerter.cep.WindowEngine;
+import org.kie.api.KieBase;
+import org.kie.api.KieBaseConfiguration;
+import org.kie.api.conf.EventProcessingOption;
+import org.kie.api.io.ResourceType;
+import org.kie.api.runtime.KieSession;
+import org.kie.api.runtime.KieSessionConfiguration;
+import org.kie.api.runtime.conf.ClockTypeOption;
+import org.kie.internal.KnowledgeBaseFactory;
+import org.kie.internal.utils.KieHelper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Sustained insert throughput and insert-to-firing latency of a scenario.
+ *
+ * Each invocation advances a pseudo clock by TICK_MS, inserts one event and evaluates the rules, so the SampleTime
+ * mode reports the latency distribution from an insert to the firing of its results.
+ *
+ * @author Lucas Ponce
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ScenarioBenchmark {
+
+    private static final long TICK_MS = 10;
+
+    @Param({Scenarios.MARKETING, Scenarios.FRAUD, Scenarios.CUSTOMER_RETENTION})
+    public String scenario;
+
+    @Param({"drools", "native"})
+    public String engine;
+
+    private final LongAdder results = new LongAdder();
+
+    private KieSession kieSession;
+    private PseudoClockScheduler clock;
+    private WindowEngine windowEngine;
+
+    private long sequence;
+    private long now;
+
+    @Setup
+    public void setup() {
+        Collection<FullTrigger> activeTriggers = Collections.singletonList(Scenarios.trigger(scenario, scenario));
+        CepEngine sink = new CepEngine() {
+            @Override
+            public void sendResult(Event event) {
+                results.increment();
+            }
+
+            @Override
+            public void updateConditions(Collection<FullTrigger> activeTriggers) { }
+
+            @Override
+            public void processEvents(Collection<Event> events) { }
+        };
+        now = 1;
+        if ("native".equals(engine)) {
+            windowEngine = new WindowEngine(sink);
+            windowEngine.update(activeTriggers, false);
+            return;
+        }
+        KieBaseConfiguration kieBaseConfiguration = KnowledgeBaseFactory.newKnowledgeBaseConfiguration();
+        kieBaseConfiguration.setOption(EventProcessingOption.STREAM);
+        KieBase kieBase = new KieHelper().addContent(new Expression(activeTriggers).getDrl(), ResourceType.DRL)
+                .build(kieBaseConfiguration);
+        KieSessionConfiguration kieSessionConf = KnowledgeBaseFactory.newKnowledgeSessionConfiguration();
+        kieSessionConf.setOption(ClockTypeOption.get("pseudo"));
+        kieSession = kieBase.newKieSession(kieSessionConf, null);
+        clock = kieSession.getSessionClock();
+        clock.setStartupTime(now);
+        kieSession.setGlobal("clock", clock);
+        kieSession.setGlobal("results", sink);
+    }
+
+    @TearDown
+    public void tearDown() {
+        if (kieSession != null) {
+            kieSession.dispose();
+        }
+        if (windowEngine != null) {
+            windowEngine.clear();
+        }
+    }
+
+    @Benchmark
+    public long insert() {
+        Event event = Scenarios.event(scenario, sequence++, now);
+        if (windowEngine != null) {
+            windowEngine.insert(Collections.singletonList(event), now);
+        } else {
+            kieSession.insert(event);
+            kieSession.fireAllRules();
+            clock.advanceTime(TICK_MS, TimeUnit.MILLISECONDS);
+        }
+        now += TICK_MS;
+        return results.sum();
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright 2015-2016 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.apm.alerter.benchmark;
+
+import static org.hawkular.alerts.api.model.trigger.Mode.FIRING;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+import org.hawkular.alerts.api.model.condition.ExternalCondition;
+import org.hawkular.alerts.api.model.event.Event;
+import org.hawkular.alerts.api.model.trigger.FullTrigger;
+import org.hawkular.alerts.api.model.trigger.Trigger;
+
+/**
+ * Marketing, fraud and customer retention scenarios of DrlTests and ExpressionTest, expressed with the DSL.
+ *
+ * @author Lucas Ponce
+ */
+public class Scenarios {
+
+    public static final String TENANT = "28026b36-8fe4-4332-84c8-524e173a68bf";
+    public static final String DATA_ID = "apm-data-id";
+    public static final String ALERTER_ID = "HawkularAPM";
+
+    public static final String MARKETING = "marketing";
+    public static final String FRAUD = "fraud";
+    public static final String CUSTOMER_RETENTION = "customer-retention";
+
+    private static final String[] SCENARIOS = {MARKETING, FRAUD, CUSTOMER_RETENTION};
+
+    /*
+        Number of distinct accounts and locations of the generated events
+     */
+    private static final int ACCOUNTS = 100;
+    private static final int LOCATIONS = 3;
+
+    public static String expression(String scenario) {
+        switch (scenario) {
+            case MARKETING:
+                return "event:groupBy(context.accountId):window(time,10s):having(count > 2)";
+            case FRAUD:
+                return "event:groupBy(tags.accountId):window(time,10s):having(count > 1, count.tags.location > 1)";
+            case CUSTOMER_RETENTION:
+                return "event:groupBy(tags.traceId):" +
+                        "filter((category == \"Credit Check\" && text == \"Exceptionally Good\") || " +
+                        "(category == \"Stock Check\" && text == \"Out of Stock\")):" +
+                        "having(count > 1, count.tags.accountId == 1)";
+            default:
+                throw new IllegalArgumentException("Unknown scenario [" + scenario + "]");
+        }
+    }
+
+    public static FullTrigger trigger(String id, String scenario) {
+        Trigger trigger = new Trigger(TENANT, id, id);
+        ExternalCondition condition = new ExternalCondition(trigger.getId(), FIRING, DATA_ID, ALERTER_ID,
+                expression(scenario));
+        return new FullTrigger(trigger, null, Arrays.asList(condition));
+    }
+
+    /**
+     * @return numTriggers triggers cycling over the three scenarios
+     */
+    public static List<FullTrigger> triggers(int numTriggers) {
+        List<FullTrigger> triggers = new ArrayList<>(numTriggers);
+        for (int i = 0; i < numTriggers; i++) {
+            String scenario = SCENARIOS[i % SCENARIOS.length];
+            triggers.add(trigger(scenario + "-" + i, scenario));
+        }
+        return triggers;
+    }
+
+    /**
+     * @param i sequence number of the event
+     * @param ctime timestamp of the event
+     */
+    public static Event event(String scenario, long i, long ctime) {
+        String account = "user" + (i % ACCOUNTS);
+        switch (scenario) {
+            case MARKETING: {
+                Event event = new Event(TENANT, UUID.randomUUID().toString(), ctime, DATA_ID, "TraceCompletion",
+                        "Buy Book");
+                event.addContext("duration", "1000");
+                event.addContext("accountId", account);
+                return event;
+            }
+            case FRAUD: {
+                Event event = new Event(TENANT, UUID.randomUUID().toString(), ctime, DATA_ID, "TraceCompletion",
+                        "Buy Book");
+                event.addTag("duration", "1000");
+                event.addTag("accountId", account);
+                event.addTag("location", "ip" + ((i / ACCOUNTS) % LOCATIONS));
+                return event;
+            }
+            case CUSTOMER_RETENTION: {
+                boolean creditCheck = i % 2 == 0;
+                Event event = new Event(TENANT, UUID.randomUUID().toString(), ctime, DATA_ID,
+                        creditCheck ? "Credit Check" : "Stock Check",
+                        creditCheck ? "Exceptionally Good" : "Out of Stock");
+                event.addTag("duration", "1000");
+                event.addTag("traceId", "trace" + (i / 2));
+                event.addTag("accountId", account);
+                return event;
+            }
+            default:
+                throw new IllegalArgumentException("Unknown scenario [" + scenario + "]");
+        }
+    }
+}
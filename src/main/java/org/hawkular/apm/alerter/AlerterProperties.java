@@ -0,0 +1,70 @@
+/*
+ * Copyright 2015-2016 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.apm.alerter;
+
+import org.jboss.logging.Logger;
+
+/**
+ * Helper class to read the alerter configuration.
+ *
+ * A property can be defined as a system property or as an environment variable.
+ * System property takes precedence over environment variable.
+ *
+ * @author Lucas Ponce
+ */
+public class AlerterProperties {
+    private static final Logger log = Logger.getLogger(AlerterProperties.class);
+
+    public static String getProperty(String key, String envKey, String defaultValue) {
+        if (key == null) {
+            return defaultValue;
+        }
+        String value = System.getProperty(key);
+        if (value == null && envKey != null) {
+            value = System.getenv(envKey);
+        }
+        return value == null || value.trim().isEmpty() ? defaultValue : value.trim();
+    }
+
+    public static int getProperty(String key, String envKey, int defaultValue) {
+        String value = getProperty(key, envKey, null);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            log.warnf("Property [%s] with value [%s] is not a valid integer. Using default [%s]", key, value,
+                    defaultValue);
+            return defaultValue;
+        }
+    }
+
+    public static long getProperty(String key, String envKey, long defaultValue) {
+        String value = getProperty(key, envKey, null);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            log.warnf("Property [%s] with value [%s] is not a valid long. Using default [%s]", key, value,
+                    defaultValue);
+            return defaultValue;
+        }
+    }
+}
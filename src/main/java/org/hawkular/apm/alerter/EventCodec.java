@@ -0,0 +1,337 @@
+/*
+ * Copyright 2015-2016 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.apm.alerter;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.hawkular.alerts.api.model.event.Event;
+
+/**
+ * Compact binary encoding of events.
+ *
+ * <pre>
+ * stream  := frame*
+ * frame   := length:int32 (big endian) payload[length]
+ * payload := count:varint event[count]
+ * event   := dict(tenantId) string(id) ctime:zigzag-varint (delta from the previous event of the frame)
+ *            dict(dataSource) dict(dataId) dict(category) string(text)
+ *            contextSize:varint (dict(key) string(value))[contextSize]
+ *            tagsSize:varint (dict(key) string(value))[tagsSize]
+ * string  := 0 (null) | n:varint followed by n - 1 bytes of UTF-8
+ * dict    := 0 (null) | i:varint, entry i - 1 of the frame dictionary or, if i - 1 is the dictionary size,
+ *            a new entry defined by the string that follows
+ * </pre>
+ *
+ * Tenant, dataSource, dataId, category and context/tags keys are dictionary encoded per frame, so they are decoded
+ * once per frame instead of once per event. A frame is read into a reused buffer and decoded from the array.
+ * Malformed input is reported with an IOException. The buffer grows with the bytes actually read, not with the
+ * length declared by the frame header.
+ *
+ * @author Lucas Ponce
+ */
+public class EventCodec {
+
+    public static final String APPLICATION_EVENTS = "application/x-hawkular-apm-events";
+
+    public static final int DEFAULT_FRAME_EVENTS = 1000;
+
+    private static final int MAX_FRAME_LENGTH = 64 * 1024 * 1024;
+
+    /**
+     * @param events events to encode
+     * @param out stream where frames are written
+     * @param frameEvents max number of events per frame
+     */
+    public static void encode(Collection<Event> events, OutputStream out, int frameEvents) throws IOException {
+        if (frameEvents < 1) {
+            throw new IllegalArgumentException("frameEvents must be greater than 0");
+        }
+        Encoder encoder = new Encoder();
+        Iterator<Event> it = events.iterator();
+        Event[] frame = new Event[Math.min(frameEvents, events.size())];
+        while (it.hasNext()) {
+            int count = 0;
+            while (count < frame.length && it.hasNext()) {
+                frame[count++] = it.next();
+            }
+            encoder.frame(frame, count, out);
+        }
+        out.flush();
+    }
+
+    /**
+     * @param in stream of frames
+     * @return decoded events
+     */
+    public static List<Event> decode(InputStream in) throws IOException {
+        List<Event> events = new ArrayList<>();
+        Decoder decoder = new Decoder(in);
+        while (decoder.frame(events)) {
+            // decoded events are appended to the list
+        }
+        return events;
+    }
+
+    private static class Encoder {
+        private byte[] buffer = new byte[64 * 1024];
+        private int pos;
+        private final Map<String, Integer> dictionary = new HashMap<>();
+        private long ctime;
+
+        void frame(Event[] events, int count, OutputStream out) throws IOException {
+            pos = 0;
+            ctime = 0;
+            dictionary.clear();
+            writeVarLong(count);
+            for (int i = 0; i < count; i++) {
+                Event event = events[i];
+                writeDict(event.getTenantId());
+                writeString(event.getId());
+                writeVarLong(zigzag(event.getCtime() - ctime));
+                ctime = event.getCtime();
+                writeDict(event.getDataSource());
+                writeDict(event.getDataId());
+                writeDict(event.getCategory());
+                writeString(event.getText());
+                writeMap(event.getContext());
+                writeMap(event.getTags());
+            }
+            out.write(pos >>> 24);
+            out.write(pos >>> 16);
+            out.write(pos >>> 8);
+            out.write(pos);
+            out.write(buffer, 0, pos);
+        }
+
+        private void writeMap(Map<String, String> map) {
+            if (map == null) {
+                writeVarLong(0);
+                return;
+            }
+            writeVarLong(map.size());
+            for (Map.Entry<String, String> entry : map.entrySet()) {
+                writeDict(entry.getKey());
+                writeString(entry.getValue());
+            }
+        }
+
+        private void writeDict(String value) {
+            if (value == null) {
+                writeVarLong(0);
+                return;
+            }
+            Integer index = dictionary.get(value);
+            if (index != null) {
+                writeVarLong(index + 1);
+                return;
+            }
+            index = dictionary.size();
+            dictionary.put(value, index);
+            writeVarLong(index + 1);
+            writeString(value);
+        }
+
+        private void writeString(String value) {
+            if (value == null) {
+                writeVarLong(0);
+                return;
+            }
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            writeVarLong(bytes.length + 1L);
+            ensure(bytes.length);
+            System.arraycopy(bytes, 0, buffer, pos, bytes.length);
+            pos += bytes.length;
+        }
+
+        private void writeVarLong(long value) {
+            ensure(10);
+            while ((value & ~0x7FL) != 0) {
+                buffer[pos++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            buffer[pos++] = (byte) value;
+        }
+
+        private void ensure(int length) {
+            if (pos + length > buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, pos + length));
+            }
+        }
+
+        private static long zigzag(long value) {
+            return (value << 1) ^ (value >> 63);
+        }
+    }
+
+    private static class Decoder {
+        private final InputStream in;
+        private byte[] buffer = new byte[64 * 1024];
+        private int pos;
+        private int limit;
+        private String[] dictionary = new String[64];
+        private int dictionarySize;
+
+        Decoder(InputStream in) {
+            this.in = in;
+        }
+
+        /**
+         * @return false at the end of the stream
+         */
+        boolean frame(List<Event> events) throws IOException {
+            int b0 = in.read();
+            if (b0 < 0) {
+                return false;
+            }
+            int length = (b0 << 24) | (readByte() << 16) | (readByte() << 8) | readByte();
+            if (length < 0 || length > MAX_FRAME_LENGTH) {
+                throw new IOException("Invalid frame length [" + length + "]");
+            }
+            readFully(length);
+            pos = 0;
+            limit = length;
+            dictionarySize = 0;
+            long count = readVarLong();
+            if (count < 0 || count > limit - pos) {
+                throw new IOException("Invalid events count [" + count + "]");
+            }
+            long ctime = 0;
+            for (long i = 0; i < count; i++) {
+                Event event = new Event();
+                event.setTenantId(readDict());
+                event.setId(readString());
+                ctime += unzigzag(readVarLong());
+                event.setCtime(ctime);
+                event.setDataSource(readDict());
+                event.setDataId(readDict());
+                event.setCategory(readDict());
+                event.setText(readString());
+                event.setContext(readMap());
+                event.setTags(readMap());
+                events.add(event);
+            }
+            if (pos != limit) {
+                throw new IOException("Frame has [" + (limit - pos) + "] unread bytes");
+            }
+            return true;
+        }
+
+        private Map<String, String> readMap() throws IOException {
+            long size = readVarLong();
+            if (size < 0 || size > limit - pos) {
+                throw new IOException("Invalid map size [" + size + "]");
+            }
+            Map<String, String> map = new HashMap<>(size < 3 ? 4 : (int) size * 4 / 3 + 1);
+            for (int i = 0; i < size; i++) {
+                map.put(readDict(), readString());
+            }
+            return map;
+        }
+
+        private String readDict() throws IOException {
+            long index = readVarLong();
+            if (index == 0) {
+                return null;
+            }
+            if (index < 0) {
+                throw new IOException("Invalid dictionary index [" + index + "]");
+            }
+            if (index <= dictionarySize) {
+                return dictionary[(int) index - 1];
+            }
+            if (index != dictionarySize + 1) {
+                throw new IOException("Invalid dictionary index [" + index + "]");
+            }
+            String value = readString();
+            if (dictionarySize == dictionary.length) {
+                dictionary = Arrays.copyOf(dictionary, dictionary.length * 2);
+            }
+            dictionary[dictionarySize++] = value;
+            return value;
+        }
+
+        private String readString() throws IOException {
+            long length = readVarLong();
+            if (length == 0) {
+                return null;
+            }
+            // checked as long, so a malformed length cannot overflow the int offsets
+            if (length < 0 || length - 1 > limit - pos) {
+                throw new IOException("Invalid string length [" + length + "]");
+            }
+            int bytes = (int) (length - 1);
+            String value = new String(buffer, pos, bytes, StandardCharsets.UTF_8);
+            pos += bytes;
+            return value;
+        }
+
+        private long readVarLong() throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                if (pos == limit) {
+                    throw new EOFException("Truncated frame");
+                }
+                byte b = buffer[pos++];
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IOException("Malformed varint");
+        }
+
+        private int readByte() throws IOException {
+            int b = in.read();
+            if (b < 0) {
+                throw new EOFException("Truncated frame length");
+            }
+            return b;
+        }
+
+        /*
+            The buffer grows as bytes arrive, so a forged frame length does not allocate MAX_FRAME_LENGTH upfront
+         */
+        private void readFully(int length) throws IOException {
+            int read = 0;
+            while (read < length) {
+                if (read == buffer.length) {
+                    buffer = Arrays.copyOf(buffer, (int) Math.min(length, buffer.length * 2L));
+                }
+                int n = in.read(buffer, read, Math.min(length, buffer.length) - read);
+                if (n < 0) {
+                    throw new EOFException("Truncated frame");
+                }
+                read += n;
+            }
+        }
+
+        private static long unzigzag(long value) {
+            return (value >>> 1) ^ -(value & 1);
+        }
+    }
+}
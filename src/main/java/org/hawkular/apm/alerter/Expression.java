@@ -16,9 +16,14 @@
  */
 package org.hawkular.apm.alerter;
 
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.Map;
 import java.util.Set;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -42,6 +47,16 @@ import org.hawkular.alerts.api.model.trigger.Trigger;
  *  <filter> ::= <drools_expression>
  *  <having> ::= <drools_expression>
  *
+ * Besides "count" (number of events of the group), having() expressions accept functions over tags or context
+ * values of the events of the group:
+ *
+ *  <function> ::= ( "count." | "sum." | "avg." | "min." | "max." ) ( "tags." | "context." ) <field name>
+ *
+ * "count." is the exact distinct number of values. With the hawkular-apm-alerter.approximate-count property enabled it
+ * is estimated with a HyperLogLog above 64 distinct values, with a ~1.6% standard error, so groups do not keep every
+ * value seen.
+ * "sum.", "avg.", "min." and "max." are calculated over the numeric values.
+ *
  * @author Jay Shaughnessy
  * @author Lucas Ponce
  */
@@ -49,27 +64,41 @@ public class Expression {
 
     private static final String DRL_HEADER = "  import org.hawkular.alerts.api.model.event.Event; \n" +
             "  import org.hawkular.alerts.api.json.JsonUtil; \n" +
-            "  import org.hawkular.apm.alerter.cep.CepEngine; \n" +
+            "  import org.hawkular.apm.alerter.ResultPayload; \n" +
+            "  import org.hawkular.apm.alerter.cep.ResultSink; \n" +
             "  import org.kie.api.time.SessionClock; \n" +
+            "  import accumulate org.hawkular.apm.alerter.cep.DistinctCountFunction distinctCount; \n" +
+            "  import accumulate org.hawkular.apm.alerter.cep.ApproximateCountFunction approximateCount; \n" +
+            "  import accumulate org.hawkular.apm.alerter.cep.SumFunction numSum; \n" +
+            "  import accumulate org.hawkular.apm.alerter.cep.AvgFunction numAvg; \n" +
+            "  import accumulate org.hawkular.apm.alerter.cep.MinFunction numMin; \n" +
+            "  import accumulate org.hawkular.apm.alerter.cep.MaxFunction numMax; \n" +
             "  import org.jboss.logging.Logger; \n" +
             "  import java.util.List; \n" +
             "  import java.util.UUID; \n\n" +
             "  global Logger log; \n" +
-            "  global CepEngine results; \n" +
+            "  global ResultSink results; \n" +
             "  global SessionClock clock;\n" +
             "  \n";
 
     private static final String BLANK = "                ";
 
     private static final String CONTEXT = "context";
-    private static final String DEFAULT_EXPIRATION = "30m";
+    public static final String DEFAULT_EXPIRATION = "30m";
 
     private static final String FUNCTION_COUNT = "$count : count( $event )";
     private static final String FUNCTION_EVENTS = "$events : collectList( $event )";
 
+    private static final String RESULT_EVENTS = "    ResultPayload.attach(result, $events); \n";
+    private static final String RESULT_COUNT = "    ResultPayload.attach(result, $count); \n";
+    private static final String SEND_EVENTS = "    results.sendResult( result, $events ); \n";
+    private static final String SEND_RESULT = "    results.sendResult( result ); \n";
+
     private static final int GROUP_INDEX = 1;
 
     private static final Pattern SEARCH_CONTEXT = Pattern.compile("context\\.(\\w+)\\s");
+    private static final Pattern SEARCH_FUNCTIONS =
+            Pattern.compile("\\b(count|sum|avg|min|max)\\.(context|tags)\\.(\\w+)");
     private static final Pattern SEARCH_TAGS = Pattern.compile("tags\\.(\\w+)\\s");
 
     private static final String TAGS = "tags";
@@ -77,8 +106,6 @@ public class Expression {
     private static final String TOKEN_COMMA = ",";
     private static final String TOKEN_CONTEXT = CONTEXT + ".";
     private static final String TOKEN_COUNT = "count ";
-    private static final String TOKEN_COUNT_CONTEXT = "count.context.";
-    private static final String TOKEN_COUNT_TAGS = "count.tags.";
     private static final int    TOKEN_END_PARENTHESIS = ')';
     private static final String TOKEN_EVENT = "event";
     private static final String TOKEN_FILTER = "filter(";
@@ -92,7 +119,42 @@ public class Expression {
 
     private static final String VARIABLE_COUNT = "\\$count ";
 
-    private String expRuleName;
+    private static final String APPROXIMATE_COUNT_PROPERTY = "hawkular-apm-alerter.approximate-count";
+    private static final String APPROXIMATE_COUNT_ENV = "HAWKULAR_APM_ALERTER_APPROXIMATE_COUNT";
+
+    /*
+        count. functions are estimated with a HyperLogLog instead of counted exactly
+     */
+    public static final boolean APPROXIMATE_COUNT = Boolean.parseBoolean(AlerterProperties
+            .getProperty(APPROXIMATE_COUNT_PROPERTY, APPROXIMATE_COUNT_ENV, "false"));
+
+    private static final Map<String, String> ACCUMULATE_FUNCTIONS = new HashMap<>();
+    static {
+        ACCUMULATE_FUNCTIONS.put("count", APPROXIMATE_COUNT ? "approximateCount" : "distinctCount");
+        ACCUMULATE_FUNCTIONS.put("sum", "numSum");
+        ACCUMULATE_FUNCTIONS.put("avg", "numAvg");
+        ACCUMULATE_FUNCTIONS.put("min", "numMin");
+        ACCUMULATE_FUNCTIONS.put("max", "numMax");
+    }
+
+    private static final String EXPRESSION_CACHE_SIZE = "hawkular-apm-alerter.expression-cache-size";
+    private static final String EXPRESSION_CACHE_SIZE_ENV = "HAWKULAR_APM_ALERTER_EXPRESSION_CACHE_SIZE";
+    private static final int DEFAULT_EXPRESSION_CACHE_SIZE = 10000;
+
+    /*
+        Parsed conditions are shared between Expression instances.
+        Key is the fingerprint of the normalized expression, tenantId, source and dataId.
+     */
+    private static final LruCache<String, Fragment> FRAGMENTS = new LruCache<>(AlerterProperties
+            .getProperty(EXPRESSION_CACHE_SIZE, EXPRESSION_CACHE_SIZE_ENV, DEFAULT_EXPRESSION_CACHE_SIZE));
+
+    /*
+        Exposed for tests
+     */
+    static LruCache<String, ?> getFragments() {
+        return FRAGMENTS;
+    }
+
     private String alerterId;
     private String expression;
     private String tenantId;
@@ -101,23 +163,28 @@ public class Expression {
 
     private Set<String> declareFields = new HashSet<>();
     private Set<String> ruleNames = new HashSet<>();
-
-    private String drlGroupByDeclare;
-    private String drlGroupByObject;
-    private String drlGroupByConstraint;
-    private String drlGroupByResult;
-    private String drlWindow;
-    private Set<String> drlEventConstraints = new HashSet<>();
-    private Set<String> drlFunctions = new HashSet<>();
-    private Set<String> drlFunctionsConstraints = new HashSet<>();
+    private Set<String> extractRuleNames = new HashSet<>();
 
     private String drl;
 
+    /*
+        One-off expressions (i.e. replays) do not use the fragments cache, so they do not evict the deployed ones
+     */
+    private final boolean cached;
+
     public Expression(Collection<FullTrigger> activeTriggers) {
         this(null, activeTriggers);
     }
 
     public Expression(String expiration, Collection<FullTrigger> activeTriggers) {
+        this(expiration, activeTriggers, true);
+    }
+
+    /**
+     * @param cached false if the parsed conditions are not shared through the fragments cache
+     */
+    public Expression(String expiration, Collection<FullTrigger> activeTriggers, boolean cached) {
+        this.cached = cached;
         if (isEmpty(expiration)) {
             expiration = DEFAULT_EXPIRATION;
         }
@@ -135,9 +202,6 @@ public class Expression {
                 if (condition instanceof ExternalCondition) {
                     buildTriggerDrl(fullTrigger.getTrigger(), (ExternalCondition) condition);
                     drl += "\n";
-                    drlEventConstraints.clear();
-                    drlFunctions.clear();
-                    drlFunctionsConstraints.clear();
                 }
             });
         });
@@ -147,17 +211,38 @@ public class Expression {
         if (trigger == null || condition == null) {
             throw new IllegalArgumentException("Trigger or Condition must be not null");
         }
-        expRuleName = trigger.getName() + "-" + condition.getConditionId();
+        String expRuleName = trigger.getName() + "-" + condition.getConditionId();
         alerterId = condition.getAlerterId();
         expression = condition.getExpression();
         tenantId = trigger.getTenantId();
         source = trigger.getSource();
         dataId = condition.getDataId();
-        drlWindow = "";
 
         if (isEmpty(expression)) {
             throw new IllegalArgumentException("Expression must be not null");
         }
+
+        // the fragment is parsed from the same text it is cached by, so it does not depend on the first expression
+        String normalized = normalize(expression);
+        Fragment fragment;
+        if (cached) {
+            String key = fingerprint(tenantId, source, dataId, normalized);
+            fragment = FRAGMENTS.get(key);
+            if (fragment == null) {
+                fragment = parse(normalized);
+                FRAGMENTS.put(key, fragment);
+            }
+        } else {
+            fragment = parse(normalized);
+        }
+
+        if (!ruleNames.contains(expRuleName)) {
+            ruleNames.add(expRuleName);
+            addTriggerDrl(expRuleName, fragment);
+        }
+    }
+
+    private Fragment parse(String expression) {
         String[] section = expression.split(TOKEN_SEPARATOR);
         if (section.length < 2 || section.length > 5) {
             throw new IllegalArgumentException("Wrong sections for expression [" + expression + "]");
@@ -168,30 +253,30 @@ public class Expression {
         if (!section[1].startsWith(TOKEN_GROUP_BY)) {
             throw new IllegalArgumentException("Expression [" + expression + "] must contain a 'groupBy()' section");
         }
-        parseGroupBy(section[1]);
+        Fragment fragment = new Fragment();
+        parseGroupBy(section[1], fragment);
 
-        drlFunctions.add(FUNCTION_EVENTS);
+        /*
+            Collecting the events of the group is only needed when they are attached into the result
+         */
+        fragment.functions.add(ResultPayload.collectsEvents() ? FUNCTION_EVENTS : FUNCTION_COUNT);
 
         for (int i = 2; i < section.length; i++) {
             if (section[i].startsWith(TOKEN_WINDOW)) {
-                parseWindow(section[i]);
+                parseWindow(section[i], fragment);
             } else if (section[i].startsWith(TOKEN_FILTER)) {
-                parseFilter(section[i]);
+                parseFilter(section[i], fragment);
             } else if (section[i].startsWith(TOKEN_HAVING)) {
-                parseHaving(section[i]);
+                parseHaving(section[i], fragment);
             } else {
                 throw new IllegalArgumentException("Expression [" + expression + "] contains an invalid '" + section[i]
                         + "' section");
             }
         }
-
-        if (!ruleNames.contains(expRuleName)) {
-            ruleNames.add(expRuleName);
-            addTriggerDrl(expRuleName);
-        }
+        return fragment;
     }
 
-    private void parseGroupBy(String section) {
+    private void parseGroupBy(String section, Fragment fragment) {
         int endSection = section.lastIndexOf(TOKEN_END_PARENTHESIS);
         if (endSection == -1) {
             throw new IllegalArgumentException("Expression [" + section + " must contain a valid 'groupBy()'");
@@ -214,70 +299,65 @@ public class Expression {
             field = innerSection;
         }
         String type = makeType(field);
-        drlGroupByObject = type + " ( $tenantId : tenantId == \"" + tenantId + "\"," +
+        fragment.field = field;
+        fragment.groupByObject = type + " ( $tenantId : tenantId == \"" + tenantId + "\"," +
                 "$source : source == \"" + source + "\", " +
                 "$dataId : dataId == \"" + dataId + "\", $" + field + " : " + field + " )";
+        String groupByConstraint;
         if (tags) {
-            drlGroupByConstraint = " tags[ \"" + field + "\" ] == $" + field + " ";
+            groupByConstraint = " tags[ \"" + field + "\" ] == $" + field + " ";
         } else if (context) {
-            drlGroupByConstraint = " context[ \"" + field + "\" ] == $" + field + " ";
+            groupByConstraint = " context[ \"" + field + "\" ] == $" + field + " ";
         } else {
-            drlGroupByConstraint = " " + field + " == $" + field + " ";
+            groupByConstraint = " " + field + " == $" + field + " ";
         }
-        drlGroupByResult = "    result.addContext(\"" + field + "\", $" + field + "); \n";
-        drlEventConstraints.add(drlGroupByConstraint);
-        if (declareFields.contains(field)) {
-            drlGroupByDeclare =  "";
+        fragment.groupByResult = "    result.addContext(\"" + field + "\", $" + field + "); \n";
+        fragment.eventConstraints.add(groupByConstraint);
+        fragment.groupByDeclare = "  declare " + type + " \n" +
+                "    tenantId : String \n" +
+                "    source : String \n" +
+                "    dataId : String \n" +
+                "    " + field + " : String \n" +
+                "  end \n\n";
+        fragment.extractRuleName = "Extract " + field + " from " + tenantId + "-" + source +"-" + dataId;
+        String extractRule = "  rule \"" + fragment.extractRuleName + "\" \n" +
+                "  when \n" +
+                "    Event ( $tenantId : tenantId == \"" + tenantId + "\", \n" +
+                "            $dataSource : dataSource == \"" + source + "\", \n" +
+                "            $dataId : dataId == \"" + dataId + "\", \n" +
+                "            $" + field + " : ";
+        if (tags) {
+            extractRule += "tags[ \"" + field + "\" ] != null ) \n";
+        } else if (context) {
+            extractRule += "context[ \"" + field + "\" ] != null ) \n";
         } else {
-            declareFields.add(field);
-            drlGroupByDeclare =  "  declare " + type + " \n" +
-                    "    tenantId : String \n" +
-                    "    source : String \n" +
-                    "    dataId : String \n" +
-                    "    " + field + " : String \n" +
-                    "  end \n\n";
-        }
-        String extractRuleName = "Extract " + field + " from " + tenantId + "-" + source +"-" + dataId;
-        if (!ruleNames.contains(extractRuleName)) {
-            ruleNames.add(extractRuleName);
-            drlGroupByDeclare += "  rule \"" + extractRuleName + "\" \n" +
-                    "  when \n" +
-                    "    Event ( $tenantId : tenantId == \"" + tenantId + "\", \n" +
-                    "            $dataSource : dataSource == \"" + source + "\", \n" +
-                    "            $dataId : dataId == \"" + dataId + "\", \n" +
-                    "            $" + field + " : ";
-            if (tags) {
-                drlGroupByDeclare += "tags[ \"" + field + "\" ] != null ) \n";
-            } else if (context) {
-                drlGroupByDeclare += "context[ \"" + field + "\" ] != null ) \n";
-            } else {
-                drlGroupByDeclare += field + " != null ) \n";
-            }
-            drlGroupByDeclare += "   not " + type + " ( tenantId == $tenantId, " +
-                    "source == $dataSource, dataId == $dataId, " +
-                    "" + field + " == $" + field + " ) \n" +
-                    "  then \n" +
-                    "    insert ( new " + type + " ( $tenantId, $dataSource, $dataId, $" + field + " ) ); \n" +
-                    "  end \n\n";
+            extractRule += field + " != null ) \n";
         }
+        extractRule += "   not " + type + " ( tenantId == $tenantId, " +
+                "source == $dataSource, dataId == $dataId, " +
+                "" + field + " == $" + field + " ) \n" +
+                "  then \n" +
+                "    insert ( new " + type + " ( $tenantId, $dataSource, $dataId, $" + field + " ) ); \n" +
+                "  end \n\n";
+        fragment.extractRule = extractRule;
     }
 
-    private void parseWindow(String section) {
+    private void parseWindow(String section, Fragment fragment) {
         int endSection = section.lastIndexOf(TOKEN_END_PARENTHESIS);
         if (endSection == -1) {
             throw new IllegalArgumentException("Expression [" + section + " must contain a valid 'window()'");
         }
         String innerSection = section.substring(TOKEN_WINDOW.length(), endSection).trim();
         if (innerSection.startsWith(TOKEN_TIME)) {
-            drlWindow += " over window:time(" + innerSection.substring(TOKEN_TIME.length()) + ")";
+            fragment.window += " over window:time(" + innerSection.substring(TOKEN_TIME.length()) + ")";
         } else if (innerSection.startsWith(TOKEN_LENGTH)) {
-            drlWindow += " over window:length(" + innerSection.substring(TOKEN_LENGTH.length()) + ")";
+            fragment.window += " over window:length(" + innerSection.substring(TOKEN_LENGTH.length()) + ")";
         } else {
             new IllegalArgumentException("Expresion [" + section + " must contain a valid 'time' or 'length' token");
         }
     }
 
-    private void parseFilter(String section) {
+    private void parseFilter(String section, Fragment fragment) {
         int endSection = section.lastIndexOf(TOKEN_END_PARENTHESIS);
         if (endSection == -1) {
             throw new IllegalArgumentException("Expression [" + section + " must contain a valid 'filter()'");
@@ -291,11 +371,11 @@ public class Expression {
             if (filterConstraints[i].contains(TOKEN_TAGS)) {
                 filterConstraints[i] = replaceMap(filterConstraints[i], SEARCH_TAGS, TAGS);
             }
-            drlEventConstraints.add(filterConstraints[i]);
+            fragment.eventConstraints.add(filterConstraints[i]);
         }
     }
 
-    private void parseHaving(String section) {
+    private void parseHaving(String section, Fragment fragment) {
         int endSection = section.lastIndexOf(')');
         if (endSection == -1) {
             throw new IllegalArgumentException("Expression [" + section + " must contain a valid 'having()'");
@@ -303,29 +383,34 @@ public class Expression {
         String innerSection = section.substring(TOKEN_HAVING.length(), endSection).trim();
         String[] havingConstraints = innerSection.split(TOKEN_COMMA);
         for (int i = 0; i < havingConstraints.length; i++) {
+            havingConstraints[i] = processFunctions(havingConstraints[i], fragment);
             if (havingConstraints[i].contains(TOKEN_COUNT)) {
                 havingConstraints[i] = havingConstraints[i].replaceAll(TOKEN_COUNT, VARIABLE_COUNT);
-                drlFunctions.add(FUNCTION_COUNT);
-            }
-            if (havingConstraints[i].contains(TOKEN_COUNT_CONTEXT)) {
-                havingConstraints[i] = processCountContext(havingConstraints[i]);
-            }
-            if (havingConstraints[i].contains(TOKEN_COUNT_TAGS)) {
-                havingConstraints[i] = processCountTags(havingConstraints[i]);
+                fragment.functions.add(FUNCTION_COUNT);
             }
-            drlFunctionsConstraints.add(havingConstraints[i].trim());
+            fragment.functionsConstraints.add(havingConstraints[i].trim());
         }
     }
 
-    private void addTriggerDrl(String name) {
+    private void addTriggerDrl(String name, Fragment fragment) {
+        String drlGroupByDeclare = "";
+        if (!declareFields.contains(fragment.field)) {
+            declareFields.add(fragment.field);
+            drlGroupByDeclare = fragment.groupByDeclare;
+        }
+        if (!ruleNames.contains(fragment.extractRuleName)) {
+            ruleNames.add(fragment.extractRuleName);
+            extractRuleNames.add(fragment.extractRuleName);
+            drlGroupByDeclare += fragment.extractRule;
+        }
         drl += drlGroupByDeclare +
                 "  rule \"" + name + "\" \n" +
                 "  when \n " +
-                "   " + drlGroupByObject + " \n" +
+                "   " + fragment.groupByObject + " \n" +
                 "    accumulate( $event : Event( tenantId == $tenantId, \n" +
                 "                                dataSource == $source, \n" +
                 "                                dataId == $dataId, \n";
-        Iterator<String> it = drlEventConstraints.iterator();
+        Iterator<String> it = fragment.eventConstraints.iterator();
         while (it.hasNext()) {
             String eventConstraint = it.next();
             drl += BLANK + BLANK + eventConstraint;
@@ -333,8 +418,8 @@ public class Expression {
                 drl += ", \n";
             }
         }
-        drl += ") " + drlWindow + "; \n";
-        it = drlFunctions.iterator();
+        drl += ") " + fragment.window + "; \n";
+        it = fragment.functions.iterator();
         while (it.hasNext()) {
             drl += BLANK + it.next();
             if (it.hasNext()) {
@@ -342,7 +427,7 @@ public class Expression {
             }
         }
         drl += "; \n";
-        it = drlFunctionsConstraints.iterator();
+        it = fragment.functionsConstraints.iterator();
         while (it.hasNext()) {
             drl += BLANK + it.next();
             if (it.hasNext()) {
@@ -356,9 +441,9 @@ public class Expression {
                 "                             \"" + dataId +"\", \n" +
                 "                             \"" + alerterId + "\", \n" +
                 "                             \"" + expression.replaceAll("\"", "'") + "\"); \n" +
-                "    result.addContext(\"events\", JsonUtil.toJson($events)); \n" +
-                drlGroupByResult +
-                "    results.sendResult( result ); \n" +
+                (ResultPayload.collectsEvents() ? RESULT_EVENTS : RESULT_COUNT) +
+                fragment.groupByResult +
+                (ResultPayload.collectsEvents() ? SEND_EVENTS : SEND_RESULT) +
                 "  end \n";
     }
 
@@ -366,23 +451,87 @@ public class Expression {
         return drl;
     }
 
-    private String processCountContext(String str) {
-        int start = str.indexOf(TOKEN_COUNT_CONTEXT);
-        int end = str.indexOf(' ', start);
-        String countContext = str.substring(start, end);
-        String field = countContext.substring(TOKEN_COUNT_CONTEXT.length());
-        drlFunctions.add("$" + field + "ContextSet : collectSet($event.getContext().get(\"" + field + "\") )");
-        return str.replaceAll(countContext, "\\$" + field + "ContextSet.size");
+    /**
+     * @return names of all the rules generated, including the shared "Extract" rules
+     */
+    public Set<String> getRuleNames() {
+        return ruleNames;
+    }
+
+    /**
+     * @return names of the "Extract" rules generated, these rules can be shared between several conditions
+     */
+    public Set<String> getExtractRuleNames() {
+        return extractRuleNames;
+    }
+
+    /*
+        Functions are replaced by incremental accumulate functions, as i.e. count.tags.location by
+        $locationTagsCount : distinctCount( $event.getTags().get("location") )
+     */
+    private String processFunctions(String str, Fragment fragment) {
+        Matcher matcher = SEARCH_FUNCTIONS.matcher(str);
+        StringBuffer processed = new StringBuffer();
+        while (matcher.find()) {
+            String function = matcher.group(1);
+            String map = matcher.group(2);
+            String field = matcher.group(3);
+            String variable = "$" + field + makeType(map) + makeType(function);
+            String getter = TAGS.equals(map) ? "getTags()" : "getContext()";
+            fragment.functions.add(variable + " : " + ACCUMULATE_FUNCTIONS.get(function) + "( $event." + getter +
+                    ".get(\"" + field + "\") )");
+            matcher.appendReplacement(processed, Matcher.quoteReplacement(variable));
+        }
+        matcher.appendTail(processed);
+        return processed.toString();
     }
 
+    /**
+     * @param parts values to combine
+     * @return a SHA-256 hex fingerprint of the values
+     */
+    public static String fingerprint(String... parts) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            for (String part : parts) {
+                if (part != null) {
+                    digest.update(part.getBytes(StandardCharsets.UTF_8));
+                }
+                digest.update((byte) 0);
+            }
+            StringBuilder hex = new StringBuilder();
+            for (byte b : digest.digest()) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
 
-    private String processCountTags(String str) {
-        int start = str.indexOf(TOKEN_COUNT_TAGS);
-        int end = str.indexOf(' ', start);
-        String countTags = str.substring(start, end);
-        String field = countTags.substring(TOKEN_COUNT_TAGS.length());
-        drlFunctions.add("$" + field + "TagsSet : collectSet($event.getTags().get(\"" + field + "\") )");
-        return str.replaceAll(countTags, "\\$" + field + "TagsSet.size");
+    /*
+        Whitespace runs outside of quoted literals are collapsed into a single space, so equivalent expressions
+        share the same fingerprint.
+     */
+    static String normalize(String expression) {
+        StringBuilder normalized = new StringBuilder(expression.length());
+        boolean quoted = false;
+        boolean space = false;
+        for (char c : expression.trim().toCharArray()) {
+            if (c == '"') {
+                quoted = !quoted;
+            }
+            if (!quoted && Character.isWhitespace(c)) {
+                space = true;
+                continue;
+            }
+            if (space) {
+                normalized.append(' ');
+                space = false;
+            }
+            normalized.append(c);
+        }
+        return normalized.toString();
     }
 
     private static String makeType(String field) {
@@ -410,4 +559,21 @@ public class Expression {
     private static boolean isEmpty(Collection c) {
         return null == c || c.isEmpty();
     }
+
+    /*
+        DRL pieces parsed from a single condition expression.
+        Once cached a Fragment is shared and it must not be modified.
+     */
+    private static class Fragment {
+        String field;
+        String groupByDeclare;
+        String groupByObject;
+        String groupByResult;
+        String extractRuleName;
+        String extractRule;
+        String window = "";
+        Set<String> eventConstraints = new HashSet<>();
+        Set<String> functions = new HashSet<>();
+        Set<String> functionsConstraints = new HashSet<>();
+    }
 }
@@ -23,11 +23,26 @@ import static org.hawkular.apm.alerter.ServiceNames.Service.DEFINITIONS_SERVICE;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
 import javax.ejb.Singleton;
 import javax.ejb.Startup;
+import javax.enterprise.concurrent.ManagedExecutorService;
+import javax.enterprise.concurrent.ManagedScheduledExecutorService;
 import javax.inject.Inject;
 import javax.naming.InitialContext;
 
@@ -54,14 +69,48 @@ public class ExpressionManager {
     private static final String TAG_NAME = "HawkularAPM";
     private static final String TAG_VALUE = "CorrelationEvaluation";
 
+    private static final String REFRESH_CONCURRENCY_KEY = "hawkular-apm-alerter.refresh-concurrency";
+    private static final String REFRESH_CONCURRENCY_ENV = "HAWKULAR_APM_ALERTER_REFRESH_CONCURRENCY";
+    private static final int DEFAULT_REFRESH_CONCURRENCY = 8;
+
+    private static final int REFRESH_CONCURRENCY = AlerterProperties.getProperty(REFRESH_CONCURRENCY_KEY,
+            REFRESH_CONCURRENCY_ENV, DEFAULT_REFRESH_CONCURRENCY);
+
+    private static final String REFRESH_QUIET_PERIOD = "hawkular-apm-alerter.refresh-quiet-period";
+    private static final String REFRESH_QUIET_PERIOD_ENV = "HAWKULAR_APM_ALERTER_REFRESH_QUIET_PERIOD";
+    private static final long DEFAULT_REFRESH_QUIET_PERIOD = 500;
+
+    private static final String REFRESH_MAX_DELAY = "hawkular-apm-alerter.refresh-max-delay";
+    private static final String REFRESH_MAX_DELAY_ENV = "HAWKULAR_APM_ALERTER_REFRESH_MAX_DELAY";
+    private static final long DEFAULT_REFRESH_MAX_DELAY = 5000;
+
     private DefinitionsListener definitionsListener = null;
 
+    /*
+        Definitions events are debounced, so a bulk import triggers a single refresh
+     */
+    private RefreshScheduler<TriggerKey> refreshScheduler;
+
+    /*
+        Active triggers deployed into the engine. It is only accessed from the refresh task, runs never overlap.
+     */
+    private final Map<TriggerKey, FullTrigger> active = new HashMap<>();
+    private boolean initialized;
+
     private InitialContext ctx;
 
-    private DefinitionsService definitions;
+    DefinitionsService definitions;
 
     @Inject
-    private CepEngine cep;
+    CepEngine cep;
+
+    @Resource
+    ManagedExecutorService executor;
+
+    @Resource
+    private ManagedScheduledExecutorService scheduler;
+
+    private volatile Map<String, Object> lastRefresh = Collections.emptyMap();
 
     @PostConstruct
     public void init() {
@@ -75,56 +124,306 @@ public class ExpressionManager {
         } catch (Exception e) {
             log.fatal("Context cannot be instantiated", e);
         }
+        if (null == refreshScheduler) {
+            long quietPeriod = AlerterProperties.getProperty(REFRESH_QUIET_PERIOD, REFRESH_QUIET_PERIOD_ENV,
+                    DEFAULT_REFRESH_QUIET_PERIOD);
+            long maxDelay = AlerterProperties.getProperty(REFRESH_MAX_DELAY, REFRESH_MAX_DELAY_ENV,
+                    DEFAULT_REFRESH_MAX_DELAY);
+            log.infof("Refresh quiet period: [%s] ms Max delay: [%s] ms", quietPeriod, maxDelay);
+            refreshScheduler = new RefreshScheduler<>(scheduler, targets -> refresh(targets), quietPeriod, maxDelay);
+        }
         if (null == definitionsListener) {
             log.info("Registering Trigger UPDATE/REMOVE listener");
-            definitions.registerListener(e -> refresh(), TRIGGER_CREATE, TRIGGER_UPDATE, TRIGGER_REMOVE);
+            definitionsListener = events -> events.stream().forEach(e -> refreshScheduler.request(
+                    e.getTargetTenantId() == null || e.getTargetId() == null ? null
+                            : new TriggerKey(e.getTargetTenantId(), e.getTargetId())));
+            definitions.registerListener(definitionsListener, TRIGGER_CREATE, TRIGGER_UPDATE, TRIGGER_REMOVE);
+        }
+    }
+
+    /*
+        Definitions events name the changed trigger, so only those triggers are fetched and pushed to the engine.
+        A full refresh is done on the first run, when an event has no target, or when a target cannot be fetched.
+        Changes are applied on a copy of the active triggers, it is committed once the engine is updated.
+     */
+    void refresh(Set<TriggerKey> targets) {
+        if (targets == null || !initialized) {
+            fullRefresh();
+            return;
+        }
+        try {
+            long start = System.nanoTime();
+            Map<TriggerKey, FullTrigger> next = new HashMap<>(active);
+            List<Trigger> enabledTriggers = new ArrayList<>();
+            List<Trigger> removed = new ArrayList<>();
+            for (TriggerKey key : targets) {
+                Trigger trigger = definitions.getTrigger(key.tenantId, key.triggerId);
+                if (null != trigger && trigger.isEnabled() && null != trigger.getTags()
+                        && TAG_VALUE.equals(trigger.getTags().get(TAG_NAME))) {
+                    enabledTriggers.add(trigger);
+                } else if (next.containsKey(key)) {
+                    removed.add(next.remove(key).getTrigger());
+                }
+            }
+            long triggersNs = System.nanoTime() - start;
+            ConditionsFetch fetch = fetchConditions(enabledTriggers);
+
+            List<FullTrigger> changed = new ArrayList<>();
+            for (int i = 0; i < enabledTriggers.size(); i++) {
+                Trigger trigger = enabledTriggers.get(i);
+                TriggerKey key = new TriggerKey(trigger.getTenantId(), trigger.getId());
+                Collection<Condition> conditions = fetch.conditions[i];
+                if (null == conditions) {
+                    // keep the deployed conditions, a next event or a full refresh will fix it
+                    continue;
+                }
+                FullTrigger activeTrigger = activeTrigger(trigger, conditions);
+                if (null != activeTrigger) {
+                    next.put(key, activeTrigger);
+                    changed.add(activeTrigger);
+                } else if (next.containsKey(key)) {
+                    removed.add(next.remove(key).getTrigger());
+                }
+            }
+            log.infof("ChangedTriggers: %s RemovedTriggers: %s", changed, removed);
+            long updateStart = System.nanoTime();
+            cep.updateConditions(new ArrayList<>(next.values()), changed, removed);
+            long end = System.nanoTime();
+            active.clear();
+            active.putAll(next);
+
+            Map<String, Object> status = new LinkedHashMap<>();
+            status.put("mode", "incremental");
+            status.put("triggers", targets.size());
+            status.put("activeTriggers", active.size());
+            status.put("changedTriggers", changed.size());
+            status.put("removedTriggers", removed.size());
+            status(status, fetch, start, triggersNs, updateStart, end);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            log.warn("Refresh of changed Triggers interrupted.");
+        } catch (Exception e) {
+            log.error("Failed to refresh changed Triggers. Falling back to a full refresh.", e);
+            fullRefresh();
         }
     }
 
-    private void refresh() {
+    private void fullRefresh() {
         try {
+            long start = System.nanoTime();
             // get all of the triggers tagged for this alerter
             Collection<Trigger> triggers = definitions.getAllTriggersByTag(TAG_NAME, TAG_VALUE);
             log.info("Found [" + triggers.size() + "] External Metrics Triggers!");
+            long triggersNs = System.nanoTime() - start;
 
-            Collection<FullTrigger> activeTriggers = new ArrayList<>();
+            List<Trigger> enabledTriggers = new ArrayList<>();
             for (Trigger trigger : triggers) {
-                Collection<Condition> conditions = null;
-                List<Condition> activeConditions = new ArrayList<>();
-                try {
-                    if (trigger.isEnabled()) {
-                        conditions = definitions.getTriggerConditions(trigger.getTenantId(), trigger.getId(), null);
-                        log.info("Checking [" + conditions.size() + "] Conditions for enabled trigger ["
-                                + trigger.getName() + "]!");
-                    }
-                } catch (Exception e) {
-                    log.error("Failed to fetch Conditions when scheduling metrics conditions for " + trigger, e);
-                    continue;
+                if (trigger.isEnabled()) {
+                    enabledTriggers.add(trigger);
                 }
+            }
+            ConditionsFetch fetch = fetchConditions(enabledTriggers);
+
+            Map<TriggerKey, FullTrigger> next = new HashMap<>();
+            Collection<FullTrigger> activeTriggers = new ArrayList<>();
+            for (int i = 0; i < enabledTriggers.size(); i++) {
+                Trigger trigger = enabledTriggers.get(i);
+                Collection<Condition> conditions = fetch.conditions[i];
                 if (null == conditions) {
                     continue;
                 }
-                for (Condition condition : conditions) {
-                    if (condition instanceof ExternalCondition) {
-                        ExternalCondition externalCondition = (ExternalCondition) condition;
-                        if (TAG_NAME.equals(externalCondition.getAlerterId())) {
-                            activeConditions.add(externalCondition);
-                        }
-                    }
-                }
-                if (!activeConditions.isEmpty()) {
-                    FullTrigger activeTrigger = new FullTrigger();
-                    activeTrigger.setTrigger(trigger);
-                    activeTrigger.setConditions(activeConditions);
+                FullTrigger activeTrigger = activeTrigger(trigger, conditions);
+                if (null != activeTrigger) {
                     activeTriggers.add(activeTrigger);
+                    next.put(new TriggerKey(trigger.getTenantId(), trigger.getId()), activeTrigger);
                 }
             }
-            if (!activeTriggers.isEmpty()) {
-                log.infof("ActiveTriggers: %s", activeTriggers);
-                cep.updateConditions(activeTriggers);
-            }
+            log.infof("ActiveTriggers: %s", activeTriggers);
+            long updateStart = System.nanoTime();
+            // an empty collection is still propagated so the rules of removed triggers are undeployed
+            cep.updateConditions(activeTriggers);
+            long end = System.nanoTime();
+            active.clear();
+            active.putAll(next);
+            initialized = true;
+
+            Map<String, Object> status = new LinkedHashMap<>();
+            status.put("mode", "full");
+            status.put("triggers", triggers.size());
+            status.put("activeTriggers", activeTriggers.size());
+            status(status, fetch, start, triggersNs, updateStart, end);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            initialized = false;
+            log.warn("Full refresh of Triggers interrupted.");
         } catch (Exception e) {
+            initialized = false;
             log.error("Failed to fetch Triggers for external conditions.", e);
         }
     }
+
+    /*
+        Returns null if the trigger has no conditions for this alerter
+     */
+    private static FullTrigger activeTrigger(Trigger trigger, Collection<Condition> conditions) {
+        List<Condition> activeConditions = new ArrayList<>();
+        for (Condition condition : conditions) {
+            if (condition instanceof ExternalCondition) {
+                ExternalCondition externalCondition = (ExternalCondition) condition;
+                if (TAG_NAME.equals(externalCondition.getAlerterId())) {
+                    activeConditions.add(externalCondition);
+                }
+            }
+        }
+        if (activeConditions.isEmpty()) {
+            return null;
+        }
+        FullTrigger activeTrigger = new FullTrigger();
+        activeTrigger.setTrigger(trigger);
+        activeTrigger.setConditions(activeConditions);
+        return activeTrigger;
+    }
+
+    private void status(Map<String, Object> status, ConditionsFetch fetch, long start, long triggersNs,
+                        long updateStart, long end) {
+        status.put("failedFetches", fetch.failed.get());
+        status.put("concurrency", fetch.concurrency);
+        status.put("triggersMs", TimeUnit.NANOSECONDS.toMillis(triggersNs));
+        status.put("conditionsMs", TimeUnit.NANOSECONDS.toMillis(fetch.durationNs));
+        status.put("slowestConditionsMs", TimeUnit.NANOSECONDS.toMillis(fetch.slowestNs.get()));
+        status.put("updateMs", TimeUnit.NANOSECONDS.toMillis(end - updateStart));
+        status.put("totalMs", TimeUnit.NANOSECONDS.toMillis(end - start));
+        lastRefresh = status;
+        log.infof("Refresh: %s", status);
+    }
+
+    /**
+     * @return timings and counters of the last refresh
+     */
+    public Map<String, Object> getRefreshStatus() {
+        Map<String, Object> status = new LinkedHashMap<>(lastRefresh);
+        if (refreshScheduler != null) {
+            status.put("refreshRequests", refreshScheduler.getRequests());
+            status.put("refreshRuns", refreshScheduler.getRuns());
+        }
+        return status;
+    }
+
+    /*
+        Conditions of the triggers are fetched in parallel by up to refresh-concurrency workers.
+        The calling thread is one of the workers, so the fetch completes even if the executor is saturated or rejects
+        the rest. Workers still queued once all the triggers are taken are cancelled, the started ones are awaited.
+        The conditions of a trigger that cannot be fetched are null, so the trigger is skipped.
+     */
+    ConditionsFetch fetchConditions(List<Trigger> triggers) throws InterruptedException {
+        int concurrency = executor == null ? 1 : Math.max(1, Math.min(REFRESH_CONCURRENCY, triggers.size()));
+        ConditionsFetch fetch = new ConditionsFetch(triggers.size(), concurrency);
+        AtomicInteger next = new AtomicInteger();
+        Runnable worker = () -> {
+            int i;
+            while (!Thread.currentThread().isInterrupted() && (i = next.getAndIncrement()) < triggers.size()) {
+                Trigger trigger = triggers.get(i);
+                long start = System.nanoTime();
+                try {
+                    fetch.conditions[i] = definitions.getTriggerConditions(trigger.getTenantId(), trigger.getId(),
+                            null);
+                    log.info("Checking [" + fetch.conditions[i].size() + "] Conditions for enabled trigger ["
+                            + trigger.getName() + "]!");
+                } catch (Exception e) {
+                    fetch.failed.incrementAndGet();
+                    log.error("Failed to fetch Conditions when scheduling metrics conditions for " + trigger, e);
+                }
+                long duration = System.nanoTime() - start;
+                fetch.slowestNs.accumulateAndGet(duration, Math::max);
+            }
+        };
+        long start = System.nanoTime();
+        List<Future<?>> workers = new ArrayList<>(concurrency - 1);
+        List<AtomicBoolean> claims = new ArrayList<>(concurrency - 1);
+        try {
+            for (int i = 1; i < concurrency; i++) {
+                AtomicBoolean claim = new AtomicBoolean();
+                workers.add(executor.submit(() -> {
+                    if (claim.compareAndSet(false, true)) {
+                        worker.run();
+                    }
+                }));
+                claims.add(claim);
+            }
+        } catch (RejectedExecutionException e) {
+            log.debugf("Executor rejected refresh workers, fetching with [%s] workers", workers.size() + 1);
+        }
+        worker.run();
+        try {
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            for (int i = 0; i < workers.size(); i++) {
+                // cancel(false) also succeeds on a running task, so a worker not started yet is claimed to skip it
+                if (claims.get(i).compareAndSet(false, true)) {
+                    workers.get(i).cancel(false);
+                    continue;
+                }
+                try {
+                    workers.get(i).get();
+                } catch (ExecutionException e) {
+                    log.error("Unexpected error fetching Conditions", e.getCause());
+                }
+            }
+        } catch (InterruptedException e) {
+            workers.stream().forEach(future -> future.cancel(true));
+            throw e;
+        }
+        fetch.durationNs = System.nanoTime() - start;
+        return fetch;
+    }
+
+    static class TriggerKey {
+        final String tenantId;
+        final String triggerId;
+
+        TriggerKey(String tenantId, String triggerId) {
+            this.tenantId = tenantId;
+            this.triggerId = triggerId;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            TriggerKey that = (TriggerKey) o;
+            return tenantId.equals(that.tenantId) && triggerId.equals(that.triggerId);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * tenantId.hashCode() + triggerId.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return tenantId + "/" + triggerId;
+        }
+    }
+
+    static class ConditionsFetch {
+        /*
+            Each slot is written by a single worker and read after all workers are done
+         */
+        final Collection<Condition>[] conditions;
+        final int concurrency;
+        final AtomicInteger failed = new AtomicInteger();
+        final AtomicLong slowestNs = new AtomicLong();
+        long durationNs;
+
+        @SuppressWarnings("unchecked")
+        ConditionsFetch(int triggers, int concurrency) {
+            this.conditions = new Collection[triggers];
+            this.concurrency = concurrency;
+        }
+    }
 }
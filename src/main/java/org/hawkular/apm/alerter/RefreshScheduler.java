@@ -0,0 +1,148 @@
+/*
+ * Copyright 2015-2016 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.apm.alerter;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+import org.jboss.logging.Logger;
+
+/**
+ * Debounces refresh requests: a burst of requests is collapsed into a single run of the refresh task.
+ *
+ * The task runs when no request has been received for quietMs, or when maxDelayMs have passed since the first
+ * request of the burst, whatever comes first.
+ * Runs never overlap: requests received while the task is running are collapsed into a next run.
+ *
+ * Requests can name their targets, the task receives the targets of all the collapsed requests, or null if any of
+ * them requested a full refresh.
+ *
+ * @author Lucas Ponce
+ */
+public class RefreshScheduler<T> {
+    private final Logger log = Logger.getLogger(RefreshScheduler.class);
+
+    private final ScheduledExecutorService scheduler;
+    private final Consumer<Set<T>> task;
+    private final long quietNs;
+    private final long maxDelayNs;
+
+    private final Object lock = new Object();
+    private boolean pending;
+    private boolean scheduled;
+    private boolean running;
+    private long firstRequest;
+    private long lastRequest;
+    private boolean full;
+    private Set<T> targets = new HashSet<>();
+
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder runs = new LongAdder();
+
+    public RefreshScheduler(ScheduledExecutorService scheduler, Consumer<Set<T>> task, long quietMs,
+                            long maxDelayMs) {
+        if (scheduler == null || task == null) {
+            throw new IllegalArgumentException("scheduler and task must be not null");
+        }
+        this.scheduler = scheduler;
+        this.task = task;
+        this.quietNs = TimeUnit.MILLISECONDS.toNanos(Math.max(0, quietMs));
+        this.maxDelayNs = TimeUnit.MILLISECONDS.toNanos(Math.max(quietMs, maxDelayMs));
+    }
+
+    /**
+     * Requests a full refresh.
+     */
+    public void request() {
+        request(null);
+    }
+
+    /**
+     * @param target the target to refresh, null for a full refresh
+     */
+    public void request(T target) {
+        requests.increment();
+        synchronized (lock) {
+            if (target == null) {
+                full = true;
+            } else {
+                targets.add(target);
+            }
+            long now = System.nanoTime();
+            if (!pending) {
+                pending = true;
+                firstRequest = now;
+            }
+            lastRequest = now;
+            if (!scheduled && !running) {
+                schedule(now);
+            }
+        }
+    }
+
+    public long getRequests() {
+        return requests.sum();
+    }
+
+    public long getRuns() {
+        return runs.sum();
+    }
+
+    /*
+        Must be called holding the lock
+     */
+    private void schedule(long now) {
+        long due = Math.min(lastRequest + quietNs, firstRequest + maxDelayNs);
+        scheduled = true;
+        scheduler.schedule(this::fire, Math.max(0, due - now), TimeUnit.NANOSECONDS);
+    }
+
+    private void fire() {
+        Set<T> batch;
+        synchronized (lock) {
+            scheduled = false;
+            long now = System.nanoTime();
+            if (now - lastRequest < quietNs && now - firstRequest < maxDelayNs) {
+                // new requests arrived after this run was scheduled
+                schedule(now);
+                return;
+            }
+            pending = false;
+            running = true;
+            batch = full ? null : targets;
+            full = false;
+            targets = new HashSet<>();
+        }
+        try {
+            task.accept(batch);
+            runs.increment();
+        } catch (Exception e) {
+            log.error("Unexpected error on refresh", e);
+        } finally {
+            synchronized (lock) {
+                running = false;
+                if (pending) {
+                    schedule(System.nanoTime());
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright 2015-2016 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.apm.alerter;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.hawkular.alerts.api.json.JsonUtil;
+import org.hawkular.alerts.api.model.event.Event;
+import org.jboss.logging.Logger;
+
+/**
+ * Defines how the events collected by a rule are attached into the result event.
+ *
+ * FULL: all collected events are serialized into the "events" context entry.
+ * IDS: only the ids of the collected events are serialized into the "eventIds" context entry.
+ * FIRST_LAST: first and last N collected events are serialized into the "events" context entry.
+ * LAZY: as FULL, but the serialization is done by the engine outside of the rule firing thread.
+ * COUNT: only the number of events is stored, rules do not need to collect the events of a group.
+ *
+ * On all modes but FULL the number of collected events is stored on the "eventsCount" context entry.
+ * If a max size is defined, events are removed from the tail of the serialized list until it fits, and the
+ * "eventsTruncated" context entry is set.
+ *
+ * The default mode is FULL. On all modes but COUNT the rules collect the events of each group with collectList(), so
+ * the memory held by a rule grows with the number of events in its window, and so does the payload of each result.
+ * Conditions with large windows should run on COUNT mode, where a group only holds its accumulate function states.
+ * Acknowledged ingest needs the collected events to correlate results, so it is not available on COUNT mode.
+ *
+ * @author Lucas Ponce
+ */
+public class ResultPayload {
+    private static final Logger log = Logger.getLogger(ResultPayload.class);
+
+    public enum Mode {
+        FULL("full"), IDS("ids"), FIRST_LAST("first-last"), LAZY("lazy"), COUNT("count");
+
+        private final String value;
+
+        Mode(String value) {
+            this.value = value;
+        }
+
+        public String getValue() {
+            return value;
+        }
+
+        public static Mode fromValue(String value) {
+            for (Mode mode : values()) {
+                if (mode.value.equalsIgnoreCase(value)) {
+                    return mode;
+                }
+            }
+            throw new IllegalArgumentException("Unknown result payload mode [" + value + "]");
+        }
+    }
+
+    public static final String EVENTS = "events";
+    public static final String EVENT_IDS = "eventIds";
+    public static final String EVENTS_COUNT = "eventsCount";
+    public static final String EVENTS_TRUNCATED = "eventsTruncated";
+
+    private static final String RESULT_PAYLOAD = "hawkular-apm-alerter.result-payload";
+    private static final String RESULT_PAYLOAD_ENV = "HAWKULAR_APM_ALERTER_RESULT_PAYLOAD";
+
+    private static final String RESULT_PAYLOAD_EVENTS = "hawkular-apm-alerter.result-payload-events";
+    private static final String RESULT_PAYLOAD_EVENTS_ENV = "HAWKULAR_APM_ALERTER_RESULT_PAYLOAD_EVENTS";
+    private static final int DEFAULT_RESULT_PAYLOAD_EVENTS = 5;
+
+    private static final String RESULT_PAYLOAD_MAX_SIZE = "hawkular-apm-alerter.result-payload-max-size";
+    private static final String RESULT_PAYLOAD_MAX_SIZE_ENV = "HAWKULAR_APM_ALERTER_RESULT_PAYLOAD_MAX_SIZE";
+    private static final int DEFAULT_RESULT_PAYLOAD_MAX_SIZE = 0;
+
+    private static final Mode MODE;
+    private static final int EDGE_EVENTS = AlerterProperties.getProperty(RESULT_PAYLOAD_EVENTS,
+            RESULT_PAYLOAD_EVENTS_ENV, DEFAULT_RESULT_PAYLOAD_EVENTS);
+    private static final int MAX_SIZE = AlerterProperties.getProperty(RESULT_PAYLOAD_MAX_SIZE,
+            RESULT_PAYLOAD_MAX_SIZE_ENV, DEFAULT_RESULT_PAYLOAD_MAX_SIZE);
+
+    static {
+        Mode mode;
+        try {
+            mode = Mode.fromValue(AlerterProperties.getProperty(RESULT_PAYLOAD, RESULT_PAYLOAD_ENV,
+                    Mode.FULL.getValue()));
+        } catch (IllegalArgumentException e) {
+            log.warnf("%s. Using [%s]", e.getMessage(), Mode.FULL.getValue());
+            mode = Mode.FULL;
+        }
+        MODE = mode;
+        if (MODE != Mode.COUNT) {
+            log.infof("Result payload [%s] collects the events of each group, memory grows with the window size",
+                    MODE.getValue());
+        }
+    }
+
+    public static Mode getMode() {
+        return MODE;
+    }
+
+    /**
+     * @return true if rules must collect the events of a group to attach them into the result
+     */
+    public static boolean collectsEvents() {
+        return MODE != Mode.COUNT;
+    }
+
+    /**
+     * Invoked from the rules consequence on COUNT mode.
+     *
+     * @param result the result event
+     * @param count the number of events of the group
+     */
+    public static void attach(Event result, Number count) {
+        if (result == null || count == null) {
+            return;
+        }
+        result.addContext(EVENTS_COUNT, String.valueOf(count.longValue()));
+    }
+
+    /**
+     * Invoked from the rules consequence.
+     *
+     * @param result the result event
+     * @param events the events collected by the rule
+     */
+    public static void attach(Event result, List<Event> events) {
+        if (result == null || events == null) {
+            return;
+        }
+        switch (MODE) {
+            case IDS:
+                List<String> ids = new ArrayList<>(events.size());
+                for (Event event : events) {
+                    ids.add(event.getId());
+                }
+                result.addContext(EVENT_IDS, JsonUtil.toJson(ids));
+                result.addContext(EVENTS_COUNT, String.valueOf(events.size()));
+                break;
+            case FIRST_LAST:
+                serialize(result, firstLast(events, EDGE_EVENTS));
+                result.addContext(EVENTS_COUNT, String.valueOf(events.size()));
+                break;
+            case LAZY:
+                result.addContext(EVENTS_COUNT, String.valueOf(events.size()));
+                break;
+            default:
+                serialize(result, events);
+        }
+    }
+
+    /**
+     * Serializes events into the "events" context entry of the result, respecting the max payload size.
+     */
+    public static void serialize(Event result, List<Event> events) {
+        String json = JsonUtil.toJson(events);
+        if (MAX_SIZE > 0 && json.length() > MAX_SIZE) {
+            int size = (int) ((long) events.size() * MAX_SIZE / json.length());
+            do {
+                json = JsonUtil.toJson(events.subList(0, size));
+                size = size > 10 ? size - size / 10 : size - 1;
+            } while (json.length() > MAX_SIZE && size >= 0);
+            result.addContext(EVENTS_TRUNCATED, "true");
+        }
+        result.addContext(EVENTS, json);
+    }
+
+    static List<Event> firstLast(List<Event> events, int n) {
+        if (events.size() <= 2 * n) {
+            return events;
+        }
+        List<Event> edges = new ArrayList<>(2 * n);
+        edges.addAll(events.subList(0, n));
+        edges.addAll(events.subList(events.size() - n, events.size()));
+        return edges;
+    }
+}
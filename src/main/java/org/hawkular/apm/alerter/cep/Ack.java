@@ -0,0 +1,123 @@
+/*
+ * Copyright 2015-2016 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.apm.alerter.cep;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.hawkular.alerts.api.model.event.Event;
+
+/**
+ * Tracks an acknowledged batch of events: it is completed when all the queued events of the batch have been
+ * evaluated, and it collects the results produced by rules whose collected events contain an event of the batch.
+ *
+ * @author Lucas Ponce
+ */
+public class Ack {
+
+    private final int events;
+    private final AtomicInteger pending;
+    private final CountDownLatch evaluated = new CountDownLatch(1);
+    private final Set<Event> results = Collections.newSetFromMap(new IdentityHashMap<>());
+
+    private final long start = System.nanoTime();
+    private volatile long queuedNs;
+    private volatile long evaluatedNs;
+    private volatile long completedNs;
+    private int queued;
+
+    public Ack(int events) {
+        this.events = events;
+        this.pending = new AtomicInteger(events);
+    }
+
+    /**
+     * @param queued number of events of the batch queued, the rest will not be evaluated
+     */
+    void queued(int queued) {
+        this.queued = queued;
+        queuedNs = System.nanoTime();
+        evaluated(events - queued);
+    }
+
+    void evaluated(int count) {
+        if (count > 0 && pending.addAndGet(-count) == 0) {
+            evaluatedNs = System.nanoTime();
+            evaluated.countDown();
+        }
+    }
+
+    void addResult(Event result) {
+        synchronized (results) {
+            results.add(result);
+        }
+    }
+
+    /**
+     * @return true if all the queued events were evaluated before the timeout
+     */
+    boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+        return evaluated.await(timeout, unit);
+    }
+
+    void completed() {
+        completedNs = System.nanoTime();
+    }
+
+    public boolean isEvaluated() {
+        return evaluated.getCount() == 0;
+    }
+
+    public int getEvents() {
+        return events;
+    }
+
+    public int getQueued() {
+        return queued;
+    }
+
+    public List<Event> getResults() {
+        synchronized (results) {
+            return new ArrayList<>(results);
+        }
+    }
+
+    /**
+     * @return milliseconds from the start of the batch to the queueing, the evaluation and the response
+     */
+    public Map<String, Object> getTimings() {
+        Map<String, Object> timings = new LinkedHashMap<>();
+        timings.put("queueMs", millis(queuedNs));
+        if (isEvaluated()) {
+            timings.put("evaluationMs", millis(evaluatedNs));
+        }
+        timings.put("totalMs", millis(completedNs));
+        return timings;
+    }
+
+    private double millis(long ns) {
+        return ns == 0 ? 0 : (ns - start) / 1000000d;
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright 2015-2016 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.apm.alerter.cep;
+
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.io.Serializable;
+
+import org.kie.api.runtime.rule.AccumulateFunction;
+
+/**
+ * Accumulate function that estimates the number of distinct non null values using a HyperLogLog.
+ *
+ * It is used on "count.tags.<field>" and "count.context.<field>" having() constraints when the
+ * hawkular-apm-alerter.approximate-count property is enabled, so a group does not keep a copy of every value seen.
+ * Counts are exact up to 64 distinct values, above that they are estimated with a ~1.6% standard error.
+ * HyperLogLog cannot remove values, so when an event leaves the window the engine recalculates the function.
+ *
+ * @author Lucas Ponce
+ */
+public class ApproximateCountFunction implements AccumulateFunction {
+
+    @Override
+    public Serializable createContext() {
+        return new HyperLogLog();
+    }
+
+    @Override
+    public void init(Serializable context) throws Exception {
+        ((HyperLogLog) context).clear();
+    }
+
+    @Override
+    public void accumulate(Serializable context, Object value) {
+        ((HyperLogLog) context).add(value);
+    }
+
+    @Override
+    public void reverse(Serializable context, Object value) throws Exception {
+        throw new UnsupportedOperationException("approximateCount does not support reverse");
+    }
+
+    @Override
+    public Object getResult(Serializable context) throws Exception {
+        return ((HyperLogLog) context).cardinality();
+    }
+
+    @Override
+    public boolean supportsReverse() {
+        return false;
+    }
+
+    @Override
+    public Class<?> getResultType() {
+        return Long.class;
+    }
+
+    @Override
+    public void writeExternal(ObjectOutput out) throws IOException {
+    }
+
+    @Override
+    public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
+    }
+}
@@ -17,9 +17,12 @@
 package org.hawkular.apm.alerter.cep;
 
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
 
 import org.hawkular.alerts.api.model.event.Event;
 import org.hawkular.alerts.api.model.trigger.FullTrigger;
+import org.hawkular.alerts.api.model.trigger.Trigger;
 
 /**
  * It process result events from the CepEngineImpl
@@ -27,11 +30,115 @@ import org.hawkular.alerts.api.model.trigger.FullTrigger;
  * @author Jay Shaughnessy
  * @author Lucas Ponce
  */
-public interface CepEngine {
+public interface CepEngine extends ResultSink {
 
     void updateConditions(Collection<FullTrigger> activeTriggers);
 
+    /**
+     * Deploys only the changes of the active triggers.
+     *
+     * @param activeTriggers all the active triggers, for engines that cannot deploy changes incrementally
+     * @param changed created or updated triggers
+     * @param removed removed or disabled triggers
+     * @throws IllegalStateException if the conditions cannot be updated on some shard, a full update is needed
+     */
+    default void updateConditions(Collection<FullTrigger> activeTriggers, Collection<FullTrigger> changed,
+                                  Collection<Trigger> removed) {
+        updateConditions(activeTriggers);
+    }
+
     void processEvents(Collection<Event> events);
 
-    void sendResult(Event event);
+    /**
+     * Processes a batch of events of a single tenant. The tenant is assigned to the events by the engine, so routing
+     * and tenant quotas can be resolved once per batch.
+     *
+     * @param tenantId the tenant of all the events of the batch
+     * @param events the events to process
+     * @return number of events queued for evaluation, 0 if the batch is rejected. The batch is queued whole or not at
+     *         all, events shed by the DROP_OLDEST policy are counted as queued.
+     * @throws IllegalArgumentException if the batch is larger than an ingest queue, so it can never be queued
+     */
+    default int processEvents(String tenantId, Collection<Event> events) {
+        for (Event event : events) {
+            event.setTenantId(tenantId);
+        }
+        processEvents(events);
+        return events.size();
+    }
+
+    /**
+     * Processes a batch of events and waits, up to timeoutMs, until they are evaluated.
+     *
+     * @param tenantId the tenant of all the events of the batch
+     * @param events the events to process, events without id get a generated one
+     * @param timeoutMs max time to wait for the evaluation of the batch
+     * @return the acknowledgement with the results produced by the events of the batch
+     * @throws UnsupportedOperationException if the engine does not implement acknowledged ingest
+     * @throws IllegalStateException if acknowledged ingest is not available with the current configuration
+     */
+    default Ack processEventsAck(String tenantId, Collection<Event> events, long timeoutMs)
+            throws InterruptedException {
+        throw new UnsupportedOperationException("Acknowledged ingest is not supported");
+    }
+
+    /**
+     * It is a query, rejections are recorded with overloaded().
+     *
+     * @param tenantId the tenant sending events
+     * @return true if new events of the tenant should be rejected until the engine catches up. When the shard of an
+     *         event depends on its dataId the shards of the tenant are not known, so it returns false.
+     */
+    default boolean isOverloaded(String tenantId) {
+        return false;
+    }
+
+    /**
+     * It is a query, rejections are recorded with overloaded().
+     *
+     * @param tenantId the tenant sending events
+     * @param events the batch to be queued
+     * @return true if the batch should be rejected: a shard it routes to is over the high-water mark or it has not
+     *         room for the events of the batch
+     */
+    default boolean isOverloaded(String tenantId, Collection<Event> events) {
+        return isOverloaded(tenantId);
+    }
+
+    /**
+     * Records a request rejected because the engine is overloaded.
+     */
+    default void overloaded(String tenantId) {
+    }
+
+    /**
+     * @return throughput, lag and memory metrics of the engine
+     */
+    default Map<String, Object> getMetrics() {
+        return Collections.emptyMap();
+    }
+
+    default boolean isProfilingEnabled() {
+        return false;
+    }
+
+    /**
+     * @return per rule counters and latencies, and inserted events per dataId, empty if profiling is disabled
+     */
+    default Map<String, Object> getProfile() {
+        return Collections.emptyMap();
+    }
+
+    /**
+     * Clears the profiling counters.
+     */
+    default void resetProfile() {
+    }
+
+    /**
+     * @return ingest queues depth and rejected/shed events counters
+     */
+    default Map<String, Object> getIngestStatus() {
+        return Collections.emptyMap();
+    }
 }
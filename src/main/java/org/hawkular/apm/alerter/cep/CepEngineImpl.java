@@ -18,48 +18,50 @@ package org.hawkular.apm.alerter.cep;
 
 import static org.hawkular.apm.alerter.ServiceNames.Service.ALERTS_SERVICE;
 
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.annotation.Resource;
 import javax.ejb.Lock;
 import javax.ejb.LockType;
 import javax.ejb.Singleton;
 import javax.ejb.Startup;
 import javax.enterprise.concurrent.ManagedExecutorService;
+import javax.enterprise.concurrent.ManagedScheduledExecutorService;
+import javax.enterprise.concurrent.ManagedThreadFactory;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 import javax.naming.InitialContext;
 
+import org.hawkular.alerts.api.model.condition.Condition;
+import org.hawkular.alerts.api.model.condition.ExternalCondition;
 import org.hawkular.alerts.api.model.event.Event;
 import org.hawkular.alerts.api.model.trigger.FullTrigger;
+import org.hawkular.alerts.api.model.trigger.Trigger;
 import org.hawkular.alerts.api.services.AlertsService;
-import org.hawkular.apm.alerter.Expression;
+import org.hawkular.apm.alerter.AlerterProperties;
+import org.hawkular.apm.alerter.ResultPayload;
 import org.hawkular.apm.alerter.ServiceNames;
 import org.jboss.logging.Logger;
-import org.kie.api.KieBase;
-import org.kie.api.KieBaseConfiguration;
-import org.kie.api.conf.EventProcessingOption;
-import org.kie.api.event.rule.AfterMatchFiredEvent;
-import org.kie.api.event.rule.AgendaEventListener;
-import org.kie.api.event.rule.AgendaGroupPoppedEvent;
-import org.kie.api.event.rule.AgendaGroupPushedEvent;
-import org.kie.api.event.rule.BeforeMatchFiredEvent;
-import org.kie.api.event.rule.MatchCancelledEvent;
-import org.kie.api.event.rule.MatchCreatedEvent;
-import org.kie.api.event.rule.ObjectDeletedEvent;
-import org.kie.api.event.rule.ObjectInsertedEvent;
-import org.kie.api.event.rule.ObjectUpdatedEvent;
-import org.kie.api.event.rule.RuleFlowGroupActivatedEvent;
-import org.kie.api.event.rule.RuleFlowGroupDeactivatedEvent;
-import org.kie.api.event.rule.RuleRuntimeEventListener;
-import org.kie.api.io.ResourceType;
-import org.kie.api.runtime.KieSession;
-import org.kie.api.runtime.KieSessionConfiguration;
-import org.kie.api.runtime.conf.ClockTypeOption;
-import org.kie.internal.KnowledgeBaseFactory;
-import org.kie.internal.utils.KieHelper;
 
 /**
  * It evaluates events externally and send data into alerting
@@ -72,17 +74,193 @@ import org.kie.internal.utils.KieHelper;
 public class CepEngineImpl implements CepEngine {
     private final Logger log = Logger.getLogger(CepEngineImpl.class);
 
-    Expression expression;
-    List<Event> results;
-    KieSession kieSession;
+    private static final String DEPLOYMENT = "hawkular-apm-alerter.deployment";
+    private static final String DEPLOYMENT_ENV = "HAWKULAR_APM_ALERTER_DEPLOYMENT";
+    private static final String DEPLOYMENT_FULL = "full";
+    private static final String DEPLOYMENT_INCREMENTAL = "incremental";
+
+    private static final String ENGINE = "hawkular-apm-alerter.engine";
+    private static final String ENGINE_ENV = "HAWKULAR_APM_ALERTER_ENGINE";
+    private static final String ENGINE_DROOLS = "drools";
+    private static final String ENGINE_NATIVE = "native";
+
+    private static final String CLOCK = "hawkular-apm-alerter.clock";
+    private static final String CLOCK_ENV = "HAWKULAR_APM_ALERTER_CLOCK";
+    private static final String CLOCK_REALTIME = "realtime";
+    private static final String CLOCK_EVENT_TIME = "event-time";
+
+    private static final String ALLOWED_LATENESS = "hawkular-apm-alerter.allowed-lateness";
+    private static final String ALLOWED_LATENESS_ENV = "HAWKULAR_APM_ALERTER_ALLOWED_LATENESS";
+    private static final long DEFAULT_ALLOWED_LATENESS = 1000;
+
+    private static final String SHARDS = "hawkular-apm-alerter.shards";
+    private static final String SHARDS_ENV = "HAWKULAR_APM_ALERTER_SHARDS";
+    private static final int DEFAULT_SHARDS = 1;
+
+    private static final String SHARD_KEY = "hawkular-apm-alerter.shard-key";
+    private static final String SHARD_KEY_ENV = "HAWKULAR_APM_ALERTER_SHARD_KEY";
+    private static final String SHARD_KEY_TENANT = "tenant";
+    private static final String SHARD_KEY_TENANT_DATAID = "tenant-dataId";
+
+    private static final String INGEST_QUEUE_SIZE = "hawkular-apm-alerter.ingest-queue-size";
+    private static final String INGEST_QUEUE_SIZE_ENV = "HAWKULAR_APM_ALERTER_INGEST_QUEUE_SIZE";
+    private static final int DEFAULT_INGEST_QUEUE_SIZE = 100000;
+
+    private static final String INGEST_BATCH_SIZE = "hawkular-apm-alerter.ingest-batch-size";
+    private static final String INGEST_BATCH_SIZE_ENV = "HAWKULAR_APM_ALERTER_INGEST_BATCH_SIZE";
+    private static final int DEFAULT_INGEST_BATCH_SIZE = 1000;
+
+    private static final String INGEST_HIGH_WATER_MARK = "hawkular-apm-alerter.ingest-high-water-mark";
+    private static final String INGEST_HIGH_WATER_MARK_ENV = "HAWKULAR_APM_ALERTER_INGEST_HIGH_WATER_MARK";
+    private static final int DEFAULT_INGEST_HIGH_WATER_MARK = 80;
+
+    private static final String SHEDDING = "hawkular-apm-alerter.shedding";
+    private static final String SHEDDING_ENV = "HAWKULAR_APM_ALERTER_SHEDDING";
+
+    private static final String TENANT_QUOTA = "hawkular-apm-alerter.tenant-quota";
+    private static final String TENANT_QUOTA_ENV = "HAWKULAR_APM_ALERTER_TENANT_QUOTA";
+    private static final int DEFAULT_TENANT_QUOTA = 10000;
+
+    private static final String RESULT_QUEUE_SIZE = "hawkular-apm-alerter.result-queue-size";
+    private static final String RESULT_QUEUE_SIZE_ENV = "HAWKULAR_APM_ALERTER_RESULT_QUEUE_SIZE";
+    private static final int DEFAULT_RESULT_QUEUE_SIZE = 10000;
+
+    private static final String RESULT_BATCH_SIZE = "hawkular-apm-alerter.result-batch-size";
+    private static final String RESULT_BATCH_SIZE_ENV = "HAWKULAR_APM_ALERTER_RESULT_BATCH_SIZE";
+    private static final int DEFAULT_RESULT_BATCH_SIZE = 500;
+
+    private static final String RESULT_LINGER = "hawkular-apm-alerter.result-linger";
+    private static final String RESULT_LINGER_ENV = "HAWKULAR_APM_ALERTER_RESULT_LINGER";
+    private static final long DEFAULT_RESULT_LINGER = 100;
+
+    /*
+        Max wait for the last flush of the result batcher on shutdown
+     */
+    private static final long RESULT_STOP_TIMEOUT_MS = 10000;
+
+    private static final String RESULT_MAX_RETRIES = "hawkular-apm-alerter.result-max-retries";
+    private static final String RESULT_MAX_RETRIES_ENV = "HAWKULAR_APM_ALERTER_RESULT_MAX_RETRIES";
+    private static final int DEFAULT_RESULT_MAX_RETRIES = 3;
+
+    private static final String RESULT_RETRY_BACKOFF = "hawkular-apm-alerter.result-retry-backoff";
+    private static final String RESULT_RETRY_BACKOFF_ENV = "HAWKULAR_APM_ALERTER_RESULT_RETRY_BACKOFF";
+    private static final long DEFAULT_RESULT_RETRY_BACKOFF = 500;
+
+    private static final String ACK_SETTLE = "hawkular-apm-alerter.ack-settle";
+    private static final String ACK_SETTLE_ENV = "HAWKULAR_APM_ALERTER_ACK_SETTLE";
+    private static final long DEFAULT_ACK_SETTLE = 100;
+
+    private static final String SNAPSHOT_DIR = "hawkular-apm-alerter.snapshot-dir";
+    private static final String SNAPSHOT_DIR_ENV = "HAWKULAR_APM_ALERTER_SNAPSHOT_DIR";
+
+    private static final String SNAPSHOT_INTERVAL = "hawkular-apm-alerter.snapshot-interval";
+    private static final String SNAPSHOT_INTERVAL_ENV = "HAWKULAR_APM_ALERTER_SNAPSHOT_INTERVAL";
+    private static final long DEFAULT_SNAPSHOT_INTERVAL = 60000;
+
+    /*
+        Max time a snapshot waits for the shards to take the events journaled before its checkpoint
+     */
+    private static final long SNAPSHOT_DRAIN_TIMEOUT_MS = 10000;
+
+    private static final String JOURNAL = "hawkular-apm-alerter.journal";
+    private static final String JOURNAL_ENV = "HAWKULAR_APM_ALERTER_JOURNAL";
+    private static final String JOURNAL_NONE = "none";
+    private static final String JOURNAL_ASYNC = "async";
+    private static final String JOURNAL_SYNC = "sync";
+
+    private static final String JOURNAL_SEGMENT_SIZE = "hawkular-apm-alerter.journal-segment-size";
+    private static final String JOURNAL_SEGMENT_SIZE_ENV = "HAWKULAR_APM_ALERTER_JOURNAL_SEGMENT_SIZE";
+    private static final int DEFAULT_JOURNAL_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    private static final String PROFILING = "hawkular-apm-alerter.profiling";
+    private static final String PROFILING_ENV = "HAWKULAR_APM_ALERTER_PROFILING";
+
+    /*
+        Each shard owns the rules of the tenants routed to it and its own evaluation thread.
+        On drools engine a shard is a KieBase with its fireUntilHalt() thread, on native engine it is a WindowEngine.
+     */
+    CepSession[] sessions;
+
+    private String engine;
+
+    private String clock;
+
+    private long allowedLateness;
+
+    boolean shardByDataId;
+
+    /*
+        Number of queued events per shard from which clients are asked to retry later
+     */
+    private int highWaterMark;
+
+    private SheddingPolicy shedding;
+
+    private final LongAdder overloadedBatches = new LongAdder();
+
+    ResultBatcher results;
+
+    /*
+        Tenant and event id -> acknowledged batch waiting for the evaluation of the event
+     */
+    private final Map<String, Ack> acks = new ConcurrentHashMap<>();
+
+    /*
+        Time the results of an acknowledged batch are still collected after its evaluation, when rules are not fired
+        by the drainer (i.e. drools engine on wall clock)
+     */
+    private long ackSettle;
+
+    private boolean incremental;
+
+    /*
+        Per rule counters and latencies, null if profiling is disabled
+     */
+    private RuleProfiler profiler;
+
+    private static final String METRICS_NAME = "org.hawkular.apm.alerter:type=EngineMetrics";
+
+    private EngineMetrics metrics;
+    private ScheduledFuture<?> metricsTask;
+
+    /*
+        Working memory events are periodically written to a local file and restored on start, null if disabled
+     */
+    private SnapshotStore snapshots;
+    private ScheduledFuture<?> snapshotTask;
+    private volatile Map<String, Object> lastSnapshot = Collections.emptyMap();
+
+    /*
+        Write-ahead journal of the ingested batches, null if disabled. It needs snapshots to be truncated.
+     */
+    private EventJournal journal;
+    private boolean journalSync;
+    private final LongAdder journalFailures = new LongAdder();
+
+    /*
+        Held for reading from the journal append of a batch to its queueing, and for writing by a snapshot to read a
+        journal position that all the queued events are before.
+     */
+    private final ReadWriteLock ingestLock = new ReentrantReadWriteLock();
+
+    private final Object updateLock = new Object();
 
     private InitialContext ctx;
 
     private AlertsService alertsService;
 
+    /*
+        Short tasks only, the long-lived loops of the shards and the result batcher run on managed threads
+     */
     @Resource
     private ManagedExecutorService executor;
 
+    @Resource
+    private ManagedThreadFactory threadFactory;
+
+    @Resource
+    private ManagedScheduledExecutorService scheduler;
+
     @PostConstruct
     public void init() {
         try {
@@ -95,129 +273,791 @@ public class CepEngineImpl implements CepEngine {
         } catch (Exception e) {
             log.fatal("Context cannot be instantiated", e);
         }
+        String deployment = AlerterProperties.getProperty(DEPLOYMENT, DEPLOYMENT_ENV, DEPLOYMENT_INCREMENTAL);
+        if (!DEPLOYMENT_INCREMENTAL.equals(deployment) && !DEPLOYMENT_FULL.equals(deployment)) {
+            log.warnf("Unknown deployment [%s]. Using [%s]", deployment, DEPLOYMENT_INCREMENTAL);
+            deployment = DEPLOYMENT_INCREMENTAL;
+        }
+        engine = AlerterProperties.getProperty(ENGINE, ENGINE_ENV, ENGINE_DROOLS);
+        if (!ENGINE_DROOLS.equals(engine) && !ENGINE_NATIVE.equals(engine)) {
+            log.warnf("Unknown engine [%s]. Using [%s]", engine, ENGINE_DROOLS);
+            engine = ENGINE_DROOLS;
+        }
+        clock = AlerterProperties.getProperty(CLOCK, CLOCK_ENV, CLOCK_REALTIME);
+        if (!CLOCK_REALTIME.equals(clock) && !CLOCK_EVENT_TIME.equals(clock)) {
+            log.warnf("Unknown clock [%s]. Using [%s]", clock, CLOCK_REALTIME);
+            clock = CLOCK_REALTIME;
+        }
+        allowedLateness = AlerterProperties.getProperty(ALLOWED_LATENESS, ALLOWED_LATENESS_ENV,
+                DEFAULT_ALLOWED_LATENESS);
+        log.infof("Clock: [%s] Allowed lateness: [%s] ms", clock, allowedLateness);
+        int shards = AlerterProperties.getProperty(SHARDS, SHARDS_ENV, DEFAULT_SHARDS);
+        if (shards < 1) {
+            log.warnf("Invalid number of shards [%s]. Using [%s]", shards, DEFAULT_SHARDS);
+            shards = DEFAULT_SHARDS;
+        }
+        String shardKey = AlerterProperties.getProperty(SHARD_KEY, SHARD_KEY_ENV, SHARD_KEY_TENANT);
+        shardByDataId = SHARD_KEY_TENANT_DATAID.equals(shardKey);
+        log.infof("Engine: [%s] Rules deployment: [%s] Shards: [%s] Shard key: [%s]", engine, deployment, shards,
+                shardByDataId ? SHARD_KEY_TENANT_DATAID : SHARD_KEY_TENANT);
+        int queueSize = AlerterProperties.getProperty(INGEST_QUEUE_SIZE, INGEST_QUEUE_SIZE_ENV,
+                DEFAULT_INGEST_QUEUE_SIZE);
+        if (queueSize < 1) {
+            log.warnf("Invalid ingest queue size [%s]. Using [%s]", queueSize, DEFAULT_INGEST_QUEUE_SIZE);
+            queueSize = DEFAULT_INGEST_QUEUE_SIZE;
+        }
+        int batchSize = AlerterProperties.getProperty(INGEST_BATCH_SIZE, INGEST_BATCH_SIZE_ENV,
+                DEFAULT_INGEST_BATCH_SIZE);
+        if (batchSize < 1) {
+            log.warnf("Invalid ingest batch size [%s]. Using [%s]", batchSize, DEFAULT_INGEST_BATCH_SIZE);
+            batchSize = DEFAULT_INGEST_BATCH_SIZE;
+        }
+        // a batch never holds more events than the queue
+        batchSize = Math.min(batchSize, queueSize);
+        int highWaterMarkPercent = AlerterProperties.getProperty(INGEST_HIGH_WATER_MARK,
+                INGEST_HIGH_WATER_MARK_ENV, DEFAULT_INGEST_HIGH_WATER_MARK);
+        highWaterMark = (int) Math.max(1, (long) queueSize * Math.min(100, highWaterMarkPercent) / 100);
+        try {
+            shedding = SheddingPolicy.fromValue(AlerterProperties.getProperty(SHEDDING, SHEDDING_ENV,
+                    SheddingPolicy.NONE.getValue()));
+        } catch (IllegalArgumentException e) {
+            log.warnf("%s. Using [%s]", e.getMessage(), SheddingPolicy.NONE.getValue());
+            shedding = SheddingPolicy.NONE;
+        }
+        int tenantQuota = AlerterProperties.getProperty(TENANT_QUOTA, TENANT_QUOTA_ENV, DEFAULT_TENANT_QUOTA);
+        log.infof("Ingest queue size per shard: [%s] Ingest batch size: [%s] High-water mark: [%s] " +
+                "Shedding: [%s] Tenant quota: [%s]", queueSize, batchSize, highWaterMark, shedding.getValue(),
+                tenantQuota);
+        int resultQueueSize = AlerterProperties.getProperty(RESULT_QUEUE_SIZE, RESULT_QUEUE_SIZE_ENV,
+                DEFAULT_RESULT_QUEUE_SIZE);
+        if (resultQueueSize < 1) {
+            log.warnf("Invalid result queue size [%s]. Using [%s]", resultQueueSize, DEFAULT_RESULT_QUEUE_SIZE);
+            resultQueueSize = DEFAULT_RESULT_QUEUE_SIZE;
+        }
+        int resultBatchSize = AlerterProperties.getProperty(RESULT_BATCH_SIZE, RESULT_BATCH_SIZE_ENV,
+                DEFAULT_RESULT_BATCH_SIZE);
+        if (resultBatchSize < 1) {
+            log.warnf("Invalid result batch size [%s]. Using [%s]", resultBatchSize, DEFAULT_RESULT_BATCH_SIZE);
+            resultBatchSize = DEFAULT_RESULT_BATCH_SIZE;
+        }
+        long resultLinger = AlerterProperties.getProperty(RESULT_LINGER, RESULT_LINGER_ENV, DEFAULT_RESULT_LINGER);
+        if (resultLinger < 0) {
+            log.warnf("Invalid result linger [%s]. Using [%s]", resultLinger, DEFAULT_RESULT_LINGER);
+            resultLinger = DEFAULT_RESULT_LINGER;
+        }
+        int resultMaxRetries = AlerterProperties.getProperty(RESULT_MAX_RETRIES, RESULT_MAX_RETRIES_ENV,
+                DEFAULT_RESULT_MAX_RETRIES);
+        if (resultMaxRetries < 0) {
+            log.warnf("Invalid result max retries [%s]. Using [%s]", resultMaxRetries, DEFAULT_RESULT_MAX_RETRIES);
+            resultMaxRetries = DEFAULT_RESULT_MAX_RETRIES;
+        }
+        long resultBackoff = AlerterProperties.getProperty(RESULT_RETRY_BACKOFF, RESULT_RETRY_BACKOFF_ENV,
+                DEFAULT_RESULT_RETRY_BACKOFF);
+        if (resultBackoff < 0) {
+            log.warnf("Invalid result retry backoff [%s]. Using [%s]", resultBackoff, DEFAULT_RESULT_RETRY_BACKOFF);
+            resultBackoff = DEFAULT_RESULT_RETRY_BACKOFF;
+        }
+        results = new ResultBatcher(events -> alertsService.sendEvents(events), resultQueueSize, resultBatchSize,
+                resultLinger, resultMaxRetries, resultBackoff);
+        threadFactory.newThread(results).start();
+        ackSettle = AlerterProperties.getProperty(ACK_SETTLE, ACK_SETTLE_ENV, DEFAULT_ACK_SETTLE);
+        if (Boolean.parseBoolean(AlerterProperties.getProperty(PROFILING, PROFILING_ENV, "false"))) {
+            profiler = new RuleProfiler();
+        }
+        log.infof("Profiling: [%s]", profiler != null);
+        sessions = new CepSession[shards];
+        incremental = DEPLOYMENT_INCREMENTAL.equals(deployment);
+        for (int i = 0; i < shards; i++) {
+            sessions[i] = ENGINE_NATIVE.equals(engine)
+                    ? new WindowSession(this, threadFactory, incremental, queueSize, batchSize)
+                    : new DroolsSession(this, threadFactory, incremental, queueSize, batchSize);
+            sessions[i].setShedding(shedding, tenantQuota);
+            sessions[i].setClock(CLOCK_EVENT_TIME.equals(clock), allowedLateness);
+            sessions[i].setEvaluatedListener(this::evaluated);
+            sessions[i].setProfiler(profiler);
+            sessions[i].start();
+        }
+        metrics = new EngineMetrics(sessions, results, profiler);
+        metricsTask = scheduler.scheduleAtFixedRate(metrics::tick, 1, 1, TimeUnit.SECONDS);
+        registerMetrics();
+        initSnapshots();
     }
 
-    public void processEvents(Collection<Event> events) {
-        if (kieSession != null) {
-            events.stream().forEach(e -> kieSession.insert(e));
+    /*
+        A previous deployment could have left its MBean registered
+     */
+    private void registerMetrics() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(METRICS_NAME);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(metrics, name);
+        } catch (Exception e) {
+            log.errorf(e, "MBean [%s] cannot be registered", METRICS_NAME);
         }
     }
 
-    @Lock(LockType.READ)
-    public void sendResult(Event event) {
-        log.debugf("Resulted event %s", event);
-        executor.submit(() -> {
+    /*
+        By default snapshots are stored in the server data directory.
+     */
+    private void initSnapshots() {
+        String dataDir = System.getProperty("jboss.server.data.dir");
+        String snapshotDir = AlerterProperties.getProperty(SNAPSHOT_DIR, SNAPSHOT_DIR_ENV,
+                dataDir == null ? "" : dataDir + File.separator + "hawkular-apm-alerter");
+        long snapshotInterval = AlerterProperties.getProperty(SNAPSHOT_INTERVAL, SNAPSHOT_INTERVAL_ENV,
+                DEFAULT_SNAPSHOT_INTERVAL);
+        if (snapshotDir.isEmpty()) {
+            log.info("Snapshot dir not defined. Snapshots are disabled");
+            return;
+        }
+        try {
+            snapshots = new SnapshotStore(Paths.get(snapshotDir));
+        } catch (Exception e) {
+            log.errorf(e, "Snapshot dir [%s] cannot be created. Snapshots are disabled", snapshotDir);
+            return;
+        }
+        log.infof("Snapshot file: [%s] Snapshot interval: [%s] ms", snapshots.getFile(), snapshotInterval);
+        initJournal(snapshotDir);
+        restore();
+        if (snapshotInterval > 0) {
+            snapshotTask = scheduler.scheduleWithFixedDelay(this::snapshot, snapshotInterval, snapshotInterval,
+                    TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void initJournal(String snapshotDir) {
+        String journalMode = AlerterProperties.getProperty(JOURNAL, JOURNAL_ENV, JOURNAL_NONE);
+        if (!JOURNAL_NONE.equals(journalMode) && !JOURNAL_ASYNC.equals(journalMode)
+                && !JOURNAL_SYNC.equals(journalMode)) {
+            log.warnf("Unknown journal [%s]. Using [%s]", journalMode, JOURNAL_NONE);
+            journalMode = JOURNAL_NONE;
+        }
+        if (JOURNAL_NONE.equals(journalMode)) {
+            return;
+        }
+        int segmentSize = AlerterProperties.getProperty(JOURNAL_SEGMENT_SIZE, JOURNAL_SEGMENT_SIZE_ENV,
+                DEFAULT_JOURNAL_SEGMENT_SIZE);
+        try {
+            journal = new EventJournal(Paths.get(snapshotDir, "journal"), segmentSize);
+            journalSync = JOURNAL_SYNC.equals(journalMode);
+            log.infof("Journal: [%s] Segment size: [%s] bytes", journalMode, segmentSize);
+        } catch (Exception e) {
+            log.errorf(e, "Journal cannot be opened on [%s]. Journal is disabled", snapshotDir);
+        }
+    }
+
+    /*
+        Events are routed again, so a snapshot can be restored with a different number of shards.
+        Events of the journal that are also in the snapshot are restored once.
+     */
+    private void restore() {
+        try {
+            long start = System.nanoTime();
+            List<Event> events = snapshots.read();
+            if (journal != null) {
+                List<Event> journaled = journal.recover();
+                log.infof("Recovered [%s] events from journal", journaled.size());
+                Map<String, Event> unique = new LinkedHashMap<>();
+                List<Event> anonymous = new ArrayList<>();
+                for (List<Event> source : Arrays.asList(events, journaled)) {
+                    for (Event e : source) {
+                        if (e.getId() == null) {
+                            anonymous.add(e);
+                        } else {
+                            unique.putIfAbsent(e.getTenantId() + "|" + e.getId(), e);
+                        }
+                    }
+                }
+                events = new ArrayList<>(unique.values());
+                events.addAll(anonymous);
+            }
+            List<List<Event>> shardEvents = new ArrayList<>(sessions.length);
+            for (int i = 0; i < sessions.length; i++) {
+                shardEvents.add(new ArrayList<>());
+            }
+            events.stream().forEach(e -> shardEvents.get(shard(e.getTenantId(), e.getDataId())).add(e));
+            for (int i = 0; i < sessions.length; i++) {
+                sessions[i].restore(shardEvents.get(i));
+            }
+            log.infof("Restored [%s] events from snapshot in [%s] ms", events.size(),
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        } catch (Exception e) {
+            log.errorf(e, "Snapshot [%s] cannot be restored. Starting with empty sessions", snapshots.getFile());
+        }
+    }
+
+    /*
+        The journal is checkpointed at a position whose events are all in the snapshot: the position is read when no
+        batch is between its append and its queueing, and the sessions are read once the shards have taken the events
+        queued before it. The events appended meanwhile are recovered from the journal.
+        If the shards do not catch up, the snapshot is written but the journal is not checkpointed.
+     */
+    private void snapshot() {
+        try {
+            long start = System.nanoTime();
+            long position = 0;
+            long[] marks = new long[sessions.length];
+            if (journal != null) {
+                ingestLock.writeLock().lock();
+                try {
+                    position = journal.position();
+                    for (int i = 0; i < sessions.length; i++) {
+                        marks[i] = sessions[i].getQueuedMark();
+                    }
+                } finally {
+                    ingestLock.writeLock().unlock();
+                }
+            }
+            long deadline = System.currentTimeMillis() + SNAPSHOT_DRAIN_TIMEOUT_MS;
+            boolean consumed = true;
+            for (int i = 0; i < sessions.length && consumed; i++) {
+                consumed = sessions[i].awaitConsumed(marks[i], Math.max(0, deadline - System.currentTimeMillis()));
+            }
+            List<Collection<Event>> shardEvents = new ArrayList<>(sessions.length);
+            int events = 0;
+            for (CepSession session : sessions) {
+                List<Event> sessionEvents = session.snapshot();
+                events += sessionEvents.size();
+                shardEvents.add(sessionEvents);
+            }
+            snapshots.write(shardEvents);
+            if (journal != null && consumed) {
+                journal.checkpoint(position);
+            } else if (journal != null) {
+                log.warnf("Ingest queues did not catch up in [%s] ms. Journal is not checkpointed",
+                        SNAPSHOT_DRAIN_TIMEOUT_MS);
+            }
+            Map<String, Object> status = new LinkedHashMap<>();
+            status.put("snapshotEvents", events);
+            status.put("snapshotMs", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            status.put("snapshotTime", System.currentTimeMillis());
+            lastSnapshot = status;
+            log.debugf("Snapshot: %s", status);
+        } catch (Exception e) {
+            log.errorf(e, "Snapshot [%s] cannot be written", snapshots.getFile());
+        }
+    }
+
+    /*
+        A last snapshot is taken before the sessions are closed, so a clean restart does not lose any window.
+     */
+    @PreDestroy
+    public void shutdown() {
+        if (metricsTask != null) {
+            metricsTask.cancel(false);
+        }
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(METRICS_NAME);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+        } catch (Exception e) {
+            log.errorf(e, "MBean [%s] cannot be unregistered", METRICS_NAME);
+        }
+        if (snapshotTask != null) {
+            snapshotTask.cancel(false);
+        }
+        if (snapshots != null && sessions != null) {
+            snapshot();
+        }
+        if (journal != null) {
             try {
-                alertsService.sendEvents(Arrays.asList(event));
+                journal.close();
             } catch (Exception e) {
-                log.error("Error sending result events.", e);
+                log.error("Journal cannot be closed", e);
+            }
+        }
+        if (sessions != null) {
+            Arrays.stream(sessions).forEach(CepSession::close);
+        }
+        if (results != null) {
+            try {
+                if (!results.stop(RESULT_STOP_TIMEOUT_MS)) {
+                    log.warnf("Result batcher did not finish in [%s] ms. [%s] results pending",
+                            RESULT_STOP_TIMEOUT_MS, results.getPending());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                log.warn("Interrupted while waiting for the result batcher");
             }
+        }
+    }
 
-        });
+    /*
+        Events are queued into the shard ingest queue, the insertion into the KieSession is done by the shard drainer.
+        Events of each tenant are queued as a batch of the tenant.
+     */
+    @Lock(LockType.READ)
+    public void processEvents(Collection<Event> events) {
+        Map<String, List<Event>> tenantEvents = new LinkedHashMap<>();
+        for (Event e : events) {
+            tenantEvents.computeIfAbsent(e.getTenantId(), t -> new ArrayList<>()).add(e);
+        }
+        tenantEvents.forEach(this::processEvents);
     }
 
-    public void updateConditions(Collection<FullTrigger> activeTriggers) {
-        expression = new Expression(activeTriggers);
-        log.debugf("Rules: \n %s", expression.getDrl());
-        if (kieSession != null) {
-            kieSession.halt();
-            kieSession.dispose();
-            kieSession.destroy();
-            log.info("Sent halt() signal to CEP session");
-        }
-        KieBaseConfiguration kieBaseConfiguration = KnowledgeBaseFactory.newKnowledgeBaseConfiguration();
-        kieBaseConfiguration.setOption( EventProcessingOption.STREAM );
-        KieBase kieBase = new KieHelper().addContent(expression.getDrl(), ResourceType.DRL).build(kieBaseConfiguration);
-        KieSessionConfiguration kieSessionConf = KnowledgeBaseFactory.newKnowledgeSessionConfiguration();
-        kieSessionConf.setOption( ClockTypeOption.get( "realtime" ) );
-
-        kieSession = kieBase.newKieSession(kieSessionConf, null);
-        results = new ArrayList<>();
-        kieSession.setGlobal("results", this);
-        kieSession.setGlobal("log", log);
-        kieSession.addEventListener(new CepAgendaEventListener());
-        kieSession.addEventListener(new CepRuleRuntimeEventListener());
-        log.info("Clock time: " + kieSession.getSessionClock().getCurrentTime());
-
-        kieSession.getKieBase().getKiePackages().stream().forEach(p -> log.info(p.getRules()));
-
-        executor.submit(() -> {
-            log.info("Starting fireUntilHalt()");
-            kieSession.fireUntilHalt();
-            log.info("Stopping fireUntilHalt()");
-        });
+    /*
+        When shards are keyed by tenant the whole batch goes to a single shard, resolved once.
+        The batch is queued whole or rejected: the room is reserved on all the shards it routes to before any event is
+        queued, so a rejected batch can be retried without duplicating events.
+        The batch is journaled between the reservation and the queueing, so only the events the queues admit are
+        journaled and a batch that cannot be journaled is not queued either.
+     */
+    @Lock(LockType.READ)
+    @Override
+    public int processEvents(String tenantId, Collection<Event> events) {
+        metrics.received(events.size());
+        List<List<Event>> shardEvents = new ArrayList<>(sessions.length);
+        for (int i = 0; i < sessions.length; i++) {
+            shardEvents.add(Collections.emptyList());
+        }
+        boolean journaled = journal != null;
+        if (!shardByDataId || sessions.length == 1) {
+            List<Event> batch = events instanceof List ? (List<Event>) events : new ArrayList<>(events);
+            for (int i = 0; i < batch.size(); i++) {
+                assign(tenantId, batch.get(i), journaled);
+            }
+            shardEvents.set(shard(tenantId, null), batch);
+        } else {
+            int tenantHash = tenantId == null ? 0 : tenantId.hashCode();
+            for (Event e : events) {
+                assign(tenantId, e, journaled);
+                int i = shard(tenantHash, e.getDataId());
+                if (shardEvents.get(i).isEmpty()) {
+                    shardEvents.set(i, new ArrayList<>());
+                }
+                shardEvents.get(i).add(e);
+            }
+        }
+        List<Event> shed = journal != null && shedding == SheddingPolicy.DROP_OLDEST ? new ArrayList<>() : null;
+        int[] reserved = new int[sessions.length];
+        for (int i = 0; i < sessions.length; i++) {
+            int size = shardEvents.get(i).size();
+            if (size > sessions[i].getQueueCapacity() && shedding != SheddingPolicy.DROP_OLDEST) {
+                release(tenantId, reserved);
+                throw new IllegalArgumentException("Batch of [" + size + "] events is larger than the ingest queue"
+                        + " of [" + sessions[i].getQueueCapacity() + "] events");
+            }
+            if (size > 0 && (reserved[i] = sessions[i].reserve(tenantId, size, shed)) == 0) {
+                release(tenantId, reserved);
+                log.debugf("Ingest queue is overloaded. Batch of [%s] events of tenant [%s] rejected",
+                        events.size(), tenantId);
+                return 0;
+            }
+            List<Event> batch = shardEvents.get(i);
+            shardEvents.set(i, batch.subList(batch.size() - reserved[i], batch.size()));
+        }
+        if (journal == null) {
+            enqueue(shardEvents, reserved);
+            return events.size();
+        }
+        ingestLock.readLock().lock();
+        try {
+            journal(shardEvents, shed);
+            enqueue(shardEvents, reserved);
+        } catch (JournalException e) {
+            release(tenantId, reserved);
+            throw e;
+        } finally {
+            ingestLock.readLock().unlock();
+        }
+        return events.size();
+    }
+
+    /*
+        The tenant of the batch is assigned once per event, on the pass that routes it. It cannot be kept only on the
+        batch: the rules match on Event.tenantId, the native engine indexes events by it and the journal records it.
+        Journaled events get an id if they have none, so the tombstones of the events shed later can be matched.
+     */
+    private static void assign(String tenantId, Event event, boolean journaled) {
+        event.setTenantId(tenantId);
+        if (journaled && event.getId() == null) {
+            event.setId(UUID.randomUUID().toString());
+        }
+    }
+
+    private void enqueue(List<List<Event>> shardEvents, int[] reserved) {
+        for (int i = 0; i < sessions.length; i++) {
+            if (reserved[i] > 0) {
+                sessions[i].enqueue(shardEvents.get(i));
+            }
+        }
     }
 
-    public static class CepAgendaEventListener implements AgendaEventListener {
-        private final Logger log = Logger.getLogger(CepAgendaEventListener.class);
+    private void release(String tenantId, int[] reserved) {
+        for (int i = 0; i < sessions.length; i++) {
+            if (reserved[i] > 0) {
+                sessions[i].release(tenantId, reserved[i]);
+            }
+        }
+    }
 
-        @Override
-        public void matchCreated(MatchCreatedEvent event) {
-            log.debug(event);
+    /*
+        The batch is journaled before the request is answered, in sync mode a failure is propagated as the batch is not
+        durable. In async mode the batch is still processed, durability is degraded but ingest is not stopped.
+     */
+    private void journal(List<List<Event>> shardEvents, List<Event> shed) {
+        List<Event> admitted = new ArrayList<>();
+        shardEvents.stream().forEach(admitted::addAll);
+        if (admitted.isEmpty()) {
+            return;
+        }
+        try {
+            long position = journal.append(admitted, shed == null ? Collections.emptyList() : shed);
+            if (journalSync) {
+                journal.sync(position);
+            }
+        } catch (Exception e) {
+            journalFailures.increment();
+            log.errorf(e, "Batch of [%s] events cannot be journaled", admitted.size());
+            if (journalSync) {
+                throw new JournalException("Batch of [" + admitted.size() + "] events cannot be journaled", e);
+            }
         }
+    }
 
-        @Override
-        public void matchCancelled(MatchCancelledEvent event) {
-            log.debug(event);
+    /*
+        Results are correlated with the batch through the events collected by the rules, so it needs a result payload
+        mode that collects events.
+     */
+    @Lock(LockType.READ)
+    @Override
+    public Ack processEventsAck(String tenantId, Collection<Event> events, long timeoutMs)
+            throws InterruptedException {
+        if (!ResultPayload.collectsEvents()) {
+            throw new IllegalStateException("Acknowledged ingest is not supported on result payload ["
+                    + ResultPayload.getMode().getValue() + "]");
         }
+        Ack ack = new Ack(events.size());
+        List<String> keys = new ArrayList<>(events.size());
+        for (Event e : events) {
+            if (e.getId() == null) {
+                e.setId(UUID.randomUUID().toString());
+            }
+            String key = ackKey(tenantId, e.getId());
+            acks.put(key, ack);
+            keys.add(key);
+        }
+        try {
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+            ack.queued(processEvents(tenantId, events));
+            if (ack.await(timeoutMs, TimeUnit.MILLISECONDS) && !sessions[0].firesOnInsert()) {
+                long settle = Math.min(ackSettle, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime()));
+                if (settle > 0) {
+                    Thread.sleep(settle);
+                }
+            }
+            ack.completed();
+        } finally {
+            keys.stream().forEach(key -> acks.remove(key, ack));
+        }
+        return ack;
+    }
 
-        @Override
-        public void beforeMatchFired(BeforeMatchFiredEvent event) {
-            log.debug(event);
+    /*
+        Ids are given by the clients, so they are only unique within a tenant
+     */
+    private static String ackKey(String tenantId, String id) {
+        return tenantId + "|" + id;
+    }
+
+    private void evaluated(List<Event> batch) {
+        if (acks.isEmpty()) {
+            return;
+        }
+        for (int i = 0; i < batch.size(); i++) {
+            Ack ack = acks.get(ackKey(batch.get(i).getTenantId(), batch.get(i).getId()));
+            if (ack != null) {
+                ack.evaluated(1);
+            }
         }
+    }
 
-        @Override
-        public void afterMatchFired(AfterMatchFiredEvent event) {
-            log.debug(event);
+    /*
+        With DROP_OLDEST policy the engine always makes room for new events, so clients are never throttled.
+     */
+    @Lock(LockType.READ)
+    @Override
+    public boolean isOverloaded(String tenantId) {
+        if (shedding == SheddingPolicy.DROP_OLDEST || (shardByDataId && sessions.length > 1)) {
+            return false;
         }
+        return sessions[shard(tenantId, null)].getQueueDepth() >= highWaterMark;
+    }
 
-        @Override
-        public void agendaGroupPopped(AgendaGroupPoppedEvent event) {
-            log.debug(event);
+    /*
+        Only the shards the batch routes to are checked, so a hot shard does not throttle the rest of the tenants.
+     */
+    @Lock(LockType.READ)
+    @Override
+    public boolean isOverloaded(String tenantId, Collection<Event> events) {
+        if (shedding == SheddingPolicy.DROP_OLDEST) {
+            return false;
+        }
+        if (!shardByDataId || sessions.length == 1) {
+            return !admits(sessions[shard(tenantId, null)], events.size());
+        }
+        int[] shardEvents = new int[sessions.length];
+        int tenantHash = tenantId == null ? 0 : tenantId.hashCode();
+        for (Event e : events) {
+            shardEvents[shard(tenantHash, e.getDataId())]++;
         }
+        for (int i = 0; i < sessions.length; i++) {
+            if (shardEvents[i] > 0 && !admits(sessions[i], shardEvents[i])) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /*
+        A batch larger than the queue is not an overload, it is refused by processEvents() as it never fits
+     */
+    private boolean admits(CepSession session, int events) {
+        int depth = session.getQueueDepth();
+        int capacity = session.getQueueCapacity();
+        return depth < highWaterMark && (events > capacity || depth + events <= capacity);
+    }
+
+    @Lock(LockType.READ)
+    @Override
+    public void overloaded(String tenantId) {
+        overloadedBatches.increment();
+    }
+
+    @Lock(LockType.READ)
+    @Override
+    public Map<String, Object> getMetrics() {
+        return metrics.toMap();
+    }
+
+    @Lock(LockType.READ)
+    @Override
+    public boolean isProfilingEnabled() {
+        return profiler != null;
+    }
 
-        @Override
-        public void agendaGroupPushed(AgendaGroupPushedEvent event) {
-            log.debug(event);
+    @Lock(LockType.READ)
+    @Override
+    public Map<String, Object> getProfile() {
+        return profiler == null ? Collections.emptyMap() : profiler.getProfile();
+    }
+
+    @Lock(LockType.READ)
+    @Override
+    public void resetProfile() {
+        if (profiler != null) {
+            profiler.reset();
         }
+    }
 
-        @Override
-        public void beforeRuleFlowGroupActivated(RuleFlowGroupActivatedEvent event) {
-            log.debug(event);
+    @Lock(LockType.READ)
+    public Map<String, Object> getIngestStatus() {
+        Map<String, Object> status = new LinkedHashMap<>();
+        status.put("engine", engine);
+        status.put("shards", sessions.length);
+        status.put("clock", clock);
+        status.put("shedding", shedding.getValue());
+        status.put("highWaterMark", highWaterMark);
+        status.put("queueCapacity", Arrays.stream(sessions).mapToLong(CepSession::getQueueCapacity).sum());
+        status.put("queueDepth", Arrays.stream(sessions).mapToLong(CepSession::getQueueDepth).sum());
+        status.put("overloadedBatches", overloadedBatches.sum());
+        status.put("rejectedEvents", Arrays.stream(sessions).mapToLong(CepSession::getRejectedEvents).sum());
+        status.put("shedOldestEvents", Arrays.stream(sessions).mapToLong(CepSession::getShedOldestEvents).sum());
+        status.put("shedQuotaEvents", Arrays.stream(sessions).mapToLong(CepSession::getShedQuotaEvents).sum());
+        status.put("swaps", Arrays.stream(sessions).mapToLong(CepSession::getSwaps).sum());
+        status.put("lastSwapStallMs", Arrays.stream(sessions).mapToLong(CepSession::getLastSwapStallMs).max()
+                .orElse(0));
+        status.put("maxSwapStallMs", Arrays.stream(sessions).mapToLong(CepSession::getMaxSwapStallMs).max()
+                .orElse(0));
+        if (CLOCK_EVENT_TIME.equals(clock)) {
+            status.put("allowedLateness", allowedLateness);
+            status.put("lateEvents", Arrays.stream(sessions).mapToLong(CepSession::getLateEvents).sum());
+            status.put("watermark", Arrays.stream(sessions).mapToLong(CepSession::getWatermark)
+                    .filter(w -> w != Long.MIN_VALUE).min().orElse(0));
+        }
+        status.putAll(lastSnapshot);
+        if (journal != null) {
+            status.put("journalPosition", journal.position());
+            status.put("journalAppends", journal.getAppends());
+            status.put("journalEvents", journal.getAppendedEvents());
+            status.put("journalSyncs", journal.getSyncs());
+            status.put("journalFailures", journalFailures.sum());
         }
+        return status;
+    }
+
+    /*
+        Results are not sent one by one, they are batched and flushed by the ResultBatcher task.
+     */
+    @Lock(LockType.READ)
+    public void sendResult(Event event) {
+        log.debugf("Resulted event %s", event);
+        results.add(event);
+    }
 
-        @Override
-        public void afterRuleFlowGroupActivated(RuleFlowGroupActivatedEvent event) {
-            log.debug(event);
+    /*
+        On LAZY payload the collected events are copied, as the accumulated list is owned by the session, and they are
+        serialized by the ResultBatcher task.
+     */
+    @Lock(LockType.READ)
+    public void sendResult(Event event, List<Event> events) {
+        log.debugf("Resulted event %s", event);
+        List<Ack> eventAcks = null;
+        if (events != null && !acks.isEmpty()) {
+            for (int i = 0; i < events.size(); i++) {
+                Ack ack = acks.get(ackKey(events.get(i).getTenantId(), events.get(i).getId()));
+                if (ack != null) {
+                    if (eventAcks == null) {
+                        eventAcks = new ArrayList<>(1);
+                    }
+                    eventAcks.add(ack);
+                }
+            }
         }
+        if (eventAcks != null) {
+            // an acknowledged result is returned to the client, so it is not modified later by the ResultBatcher
+            if (ResultPayload.getMode() == ResultPayload.Mode.LAZY) {
+                ResultPayload.serialize(event, events);
+            }
+            results.add(event);
+            eventAcks.stream().forEach(ack -> ack.addResult(event));
+        } else if (events != null && ResultPayload.getMode() == ResultPayload.Mode.LAZY) {
+            results.add(event, new ArrayList<>(events));
+        } else {
+            results.add(event);
+        }
+    }
 
-        @Override
-        public void beforeRuleFlowGroupDeactivated(RuleFlowGroupDeactivatedEvent event) {
-            log.debug(event);
+    /*
+        Updates are serialized with a private lock instead of a container WRITE lock, so a long rules compilation does
+        not block the ingest of events.
+     */
+    @Lock(LockType.READ)
+    public void updateConditions(Collection<FullTrigger> activeTriggers) {
+        synchronized (updateLock) {
+            update(activeTriggers);
         }
+    }
 
-        @Override
-        public void afterRuleFlowGroupDeactivated(RuleFlowGroupDeactivatedEvent event) {
-            log.debug(event);
+    /*
+        On incremental deployment only the changed triggers are routed. A changed trigger is removed from the shards
+        it is not routed to anymore, as its conditions may have moved to a different dataId.
+     */
+    @Override
+    public void updateConditions(Collection<FullTrigger> activeTriggers, Collection<FullTrigger> changed,
+                                 Collection<Trigger> removed) {
+        synchronized (updateLock) {
+            if (!incremental) {
+                update(activeTriggers);
+                return;
+            }
+            List<Collection<FullTrigger>> shardTriggers = new ArrayList<>(sessions.length);
+            for (int i = 0; i < sessions.length; i++) {
+                shardTriggers.add(new ArrayList<>());
+            }
+            changed.stream().forEach(fullTrigger -> route(fullTrigger, shardTriggers));
+            List<Integer> failed = new ArrayList<>();
+            for (int i = 0; i < sessions.length; i++) {
+                Collection<FullTrigger> triggers = shardTriggers.get(i);
+                List<Trigger> shardRemoved = new ArrayList<>(removed);
+                changed.stream()
+                        .filter(fullTrigger -> triggers.stream()
+                                .noneMatch(routed -> routed.getTrigger() == fullTrigger.getTrigger()))
+                        .forEach(fullTrigger -> shardRemoved.add(fullTrigger.getTrigger()));
+                try {
+                    sessions[i].update(triggers, shardRemoved);
+                } catch (Exception e) {
+                    log.errorf(e, "Error updating conditions on shard [%s]", i);
+                    failed.add(i);
+                }
+            }
+            failed(failed);
         }
     }
 
-    public static class CepRuleRuntimeEventListener implements RuleRuntimeEventListener {
-        private final Logger log = Logger.getLogger(CepRuleRuntimeEventListener.class);
+    /*
+        Shards are updated independently, the caller is told so it can retry with a full update
+     */
+    private static void failed(List<Integer> failedShards) {
+        if (!failedShards.isEmpty()) {
+            throw new IllegalStateException("Conditions cannot be updated on shards " + failedShards);
+        }
+    }
 
-        @Override
-        public void objectInserted(ObjectInsertedEvent event) {
-            log.debug(event);
+    private void update(Collection<FullTrigger> activeTriggers) {
+        List<Collection<FullTrigger>> shardTriggers = new ArrayList<>(sessions.length);
+        for (int i = 0; i < sessions.length; i++) {
+            shardTriggers.add(new ArrayList<>());
         }
+        activeTriggers.stream().forEach(fullTrigger -> route(fullTrigger, shardTriggers));
+        if (sessions.length == 1) {
+            sessions[0].update(shardTriggers.get(0));
+            return;
+        }
+        // shards are independent, so they are compiled in parallel
+        List<Future<?>> updates = new ArrayList<>(sessions.length);
+        for (int i = 0; i < sessions.length; i++) {
+            CepSession session = sessions[i];
+            Collection<FullTrigger> triggers = shardTriggers.get(i);
+            updates.add(executor.submit(() -> session.update(triggers)));
+        }
+        List<Integer> failed = new ArrayList<>();
+        for (int i = 0; i < updates.size(); i++) {
+            try {
+                updates.get(i).get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                updates.stream().forEach(update -> update.cancel(true));
+                throw new IllegalStateException("Interrupted while updating conditions", e);
+            } catch (Exception e) {
+                log.errorf(e, "Error updating conditions on shard [%s]", i);
+                failed.add(i);
+            }
+        }
+        failed(failed);
+    }
 
-        @Override
-        public void objectUpdated(ObjectUpdatedEvent event) {
-            log.debug(event);
+    /*
+        When shards are keyed by tenant the whole trigger goes to a single shard.
+        When shards are keyed by tenant and dataId the conditions of a trigger are split by dataId.
+     */
+    void route(FullTrigger fullTrigger, List<Collection<FullTrigger>> shardTriggers) {
+        Trigger trigger = fullTrigger.getTrigger();
+        if (!shardByDataId || sessions.length == 1) {
+            shardTriggers.get(shard(trigger.getTenantId(), null)).add(fullTrigger);
+            return;
         }
+        Map<Integer, List<Condition>> shardConditions = new HashMap<>();
+        fullTrigger.getConditions().stream().forEach(condition -> {
+            String dataId = condition instanceof ExternalCondition ? ((ExternalCondition) condition).getDataId()
+                    : null;
+            shardConditions.computeIfAbsent(shard(trigger.getTenantId(), dataId), s -> new ArrayList<>())
+                    .add(condition);
+        });
+        shardConditions.entrySet().stream().forEach(entry -> {
+            FullTrigger shardTrigger = new FullTrigger();
+            shardTrigger.setTrigger(trigger);
+            shardTrigger.setConditions(entry.getValue());
+            shardTriggers.get(entry.getKey()).add(shardTrigger);
+        });
+    }
 
-        @Override
-        public void objectDeleted(ObjectDeletedEvent event) {
-            log.debug(event);
+    int shard(String tenantId, String dataId) {
+        return shard(tenantId == null ? 0 : tenantId.hashCode(), dataId);
+    }
+
+    private int shard(int tenantHash, String dataId) {
+        if (sessions.length == 1) {
+            return 0;
+        }
+        int hash = tenantHash;
+        if (shardByDataId) {
+            hash = 31 * hash + (dataId == null ? 0 : dataId.hashCode());
         }
+        return Math.floorMod(hash, sessions.length);
     }
 }
@@ -0,0 +1,560 @@
+/*
+ * Copyright 2015-2016 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.apm.alerter.cep;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+import org.hawkular.alerts.api.model.event.Event;
+import org.hawkular.alerts.api.model.trigger.FullTrigger;
+import org.hawkular.alerts.api.model.trigger.Trigger;
+import org.jboss.logging.Logger;
+
+/**
+ * Base of a CEP shard: it owns the ingest queue of the shard and the drainer task that moves queued events into the
+ * evaluation engine.
+ *
+ * Subclasses implement how conditions are deployed and how a batch of events is evaluated.
+ *
+ * On event-time mode the engine time is not the wall clock but a watermark derived from the events ctime: after each
+ * batch it is advanced to the max ctime seen minus the allowed lateness. Events older than the watermark are late,
+ * they are discarded and counted.
+ *
+ * @author Lucas Ponce
+ */
+public abstract class CepSession {
+    private final Logger log = Logger.getLogger(CepSession.class);
+
+    /*
+        Parking time of the drainer when the ingest queue is empty.
+     */
+    private static final long DRAIN_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    protected final ResultSink results;
+    /*
+        Long-lived loops (drainer, fireUntilHalt) run on their own threads, they would hold pool threads forever
+     */
+    protected final ThreadFactory threadFactory;
+    protected final boolean incremental;
+
+    private final IngestQueue<Event> queue;
+    private final int batchSize;
+    private volatile boolean running;
+
+    private SheddingPolicy shedding = SheddingPolicy.NONE;
+    private int tenantQuota;
+    private final Map<String, AtomicInteger> tenantDepths = new ConcurrentHashMap<>();
+    private final LongAdder rejectedEvents = new LongAdder();
+    private final LongAdder shedOldestEvents = new LongAdder();
+    private final LongAdder shedQuotaEvents = new LongAdder();
+
+    private boolean eventTime;
+    private long allowedLateness;
+    private volatile long watermark = Long.MIN_VALUE;
+    private final LongAdder lateEvents = new LongAdder();
+
+    private volatile Consumer<List<Event>> evaluatedListener;
+
+    protected RuleProfiler profiler;
+
+    private final LongAdder insertedEvents = new LongAdder();
+
+    /*
+        Events queued, and events taken from the queue by the drainer once they are evaluated or by the shedding
+     */
+    private final AtomicLong queuedEvents = new AtomicLong();
+    private final AtomicLong consumedEvents = new AtomicLong();
+
+    private final LongAdder builds = new LongAdder();
+    private volatile long lastBuildNanos;
+    private volatile long maxBuildNanos;
+
+    private final LongAdder swaps = new LongAdder();
+    private volatile long lastSwapStallNanos;
+    private volatile long maxSwapStallNanos;
+
+    protected CepSession(ResultSink results, ThreadFactory threadFactory, boolean incremental, int queueSize,
+                         int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("batchSize must be greater than 0");
+        }
+        this.results = results;
+        this.threadFactory = threadFactory;
+        this.incremental = incremental;
+        this.queue = new IngestQueue<>(queueSize);
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Deploys the conditions of the active triggers routed to this shard.
+     */
+    public abstract void update(Collection<FullTrigger> activeTriggers);
+
+    /**
+     * Deploys only the changes of the triggers routed to this shard. It is used on incremental deployment.
+     *
+     * @param changed created or updated triggers
+     * @param removed removed triggers, or triggers whose conditions are no longer routed to this shard
+     */
+    public abstract void update(Collection<FullTrigger> changed, Collection<Trigger> removed);
+
+    /**
+     * Evaluates a batch of events. It is invoked only from the drainer task.
+     */
+    protected abstract void insert(List<Event> batch);
+
+    /**
+     * Invoked from the drainer task when the ingest queue is empty.
+     */
+    protected void idle() {
+    }
+
+    /**
+     * Advances the engine time on event-time mode. It is invoked only from the drainer task.
+     */
+    protected void advance(long time) {
+    }
+
+    /**
+     * @return true if rules are fired within insert(), so the results of a batch are produced when insert() returns
+     */
+    public boolean firesOnInsert() {
+        return true;
+    }
+
+    /**
+     * @return the events held by the engine, in ctime order, or an empty list if the engine does not support it
+     */
+    public List<Event> snapshot() {
+        return Collections.emptyList();
+    }
+
+    /**
+     * Restores the events of a previous snapshot. They are evaluated with the next deployed conditions.
+     */
+    public void restore(List<Event> events) {
+    }
+
+    /**
+     * @return number of facts held by the engine, 0 if the engine does not support it
+     */
+    public long getFactCount() {
+        return 0;
+    }
+
+    /**
+     * @return ctime of the oldest event held by the engine, 0 if there are no events or the engine does not
+     *         support it
+     */
+    public long getOldestEventCtime() {
+        return 0;
+    }
+
+    /**
+     * Stops the evaluation engine and discards its state.
+     */
+    public abstract void stop();
+
+    /**
+     * Defines how events are shed when the ingest queue is overloaded. It must be set before start().
+     */
+    public void setShedding(SheddingPolicy shedding, int tenantQuota) {
+        this.shedding = shedding;
+        this.tenantQuota = tenantQuota;
+    }
+
+    /**
+     * Defines if the engine runs on wall clock or on event-time. It must be set before start().
+     *
+     * @param allowedLateness on event-time, time in milliseconds the watermark is kept behind the max ctime seen
+     */
+    public void setClock(boolean eventTime, long allowedLateness) {
+        this.eventTime = eventTime;
+        this.allowedLateness = allowedLateness;
+    }
+
+    /**
+     * @param evaluatedListener invoked from the drainer task with each batch of events inserted into the engine
+     */
+    public void setEvaluatedListener(Consumer<List<Event>> evaluatedListener) {
+        this.evaluatedListener = evaluatedListener;
+    }
+
+    /**
+     * @param profiler collects the rule counters of the engine, null to disable profiling. It must be set before
+     *                 the first update().
+     */
+    public void setProfiler(RuleProfiler profiler) {
+        this.profiler = profiler;
+    }
+
+    public boolean isEventTime() {
+        return eventTime;
+    }
+
+    /**
+     * @return the current event-time watermark, Long.MIN_VALUE until the first event is processed
+     */
+    public long getWatermark() {
+        return watermark;
+    }
+
+    /**
+     * Starts the drainer task that moves events from the ingest queue into the engine.
+     */
+    public void start() {
+        running = true;
+        threadFactory.newThread(this::drain).start();
+    }
+
+    /**
+     * Stops the drainer task and the engine.
+     */
+    public void close() {
+        running = false;
+        stop();
+    }
+
+    /**
+     * @return false if the event is rejected or shed by the shedding policy
+     */
+    public boolean offer(Event event) {
+        switch (shedding) {
+            case DROP_OLDEST:
+                while (!queue.offer(event)) {
+                    if (queue.poll() != null) {
+                        shedOldestEvents.increment();
+                        consumedEvents.incrementAndGet();
+                    }
+                }
+                queuedEvents.incrementAndGet();
+                return true;
+            case TENANT_QUOTA:
+                AtomicInteger tenantDepth = tenantDepths.computeIfAbsent(tenantKey(event.getTenantId()),
+                        t -> new AtomicInteger());
+                if (tenantDepth.incrementAndGet() > tenantQuota) {
+                    tenantDepth.decrementAndGet();
+                    shedQuotaEvents.increment();
+                    return false;
+                }
+                if (!queue.offer(event)) {
+                    tenantDepth.decrementAndGet();
+                    rejectedEvents.increment();
+                    return false;
+                }
+                queuedEvents.incrementAndGet();
+                return true;
+            default:
+                if (!queue.offer(event)) {
+                    rejectedEvents.increment();
+                    return false;
+                }
+                queuedEvents.incrementAndGet();
+                return true;
+        }
+    }
+
+    /**
+     * Queues a batch of events of a single tenant, assigning the tenant to each event.
+     * The batch is queued whole or rejected, see reserve().
+     *
+     * @return number of events queued, 0 if the batch is rejected
+     */
+    public int offer(String tenantId, List<Event> events) {
+        int reserved = reserve(tenantId, events.size());
+        if (reserved > 0) {
+            List<Event> batch = events.subList(events.size() - reserved, events.size());
+            for (int i = 0; i < batch.size(); i++) {
+                batch.get(i).setTenantId(tenantId);
+            }
+            enqueue(batch);
+        }
+        return reserved;
+    }
+
+    /**
+     * Reserves room in the ingest queue for a batch of a single tenant, so the batch is queued whole or not at all.
+     * On TENANT_QUOTA policy the quota of the tenant is reserved once for the whole batch.
+     * On DROP_OLDEST policy room is made by shedding the oldest queued events. A batch larger than the queue is shed
+     * from its head, so only its last events are reserved.
+     *
+     * @return number of events to be queued with enqueue(), 0 if the batch is rejected
+     */
+    public int reserve(String tenantId, int events) {
+        return reserve(tenantId, events, null);
+    }
+
+    /**
+     * As reserve(tenantId, events)
+     *
+     * @param shed the queued events shed to make room are added here, if it is not null
+     */
+    public int reserve(String tenantId, int events, List<Event> shed) {
+        switch (shedding) {
+            case DROP_OLDEST:
+                int reserved = Math.min(events, queue.capacity());
+                shedOldestEvents.add(events - reserved);
+                while (!queue.reserve(reserved)) {
+                    Event oldest = queue.poll();
+                    if (oldest != null) {
+                        shedOldestEvents.increment();
+                        consumedEvents.incrementAndGet();
+                        if (shed != null) {
+                            shed.add(oldest);
+                        }
+                    }
+                }
+                return reserved;
+            case TENANT_QUOTA:
+                AtomicInteger tenantDepth = tenantDepths.computeIfAbsent(tenantKey(tenantId),
+                        t -> new AtomicInteger());
+                if (tenantDepth.addAndGet(events) > tenantQuota) {
+                    tenantDepth.addAndGet(-events);
+                    shedQuotaEvents.add(events);
+                    return 0;
+                }
+                if (!queue.reserve(events)) {
+                    tenantDepth.addAndGet(-events);
+                    rejectedEvents.add(events);
+                    return 0;
+                }
+                return events;
+            default:
+                if (!queue.reserve(events)) {
+                    rejectedEvents.add(events);
+                    return 0;
+                }
+                return events;
+        }
+    }
+
+    /**
+     * Queues a batch into the room reserved by reserve().
+     *
+     * @param events as many events as reserved, with the tenant of the reservation already assigned
+     */
+    public void enqueue(List<Event> events) {
+        queuedEvents.addAndGet(events.size());
+        queue.offerReserved(events);
+    }
+
+    /**
+     * Returns the room reserved for a batch that is not queued, its events are counted as rejected.
+     */
+    public void release(String tenantId, int events) {
+        queue.release(events);
+        if (shedding == SheddingPolicy.TENANT_QUOTA) {
+            AtomicInteger tenantDepth = tenantDepths.get(tenantKey(tenantId));
+            if (tenantDepth != null) {
+                tenantDepth.addAndGet(-events);
+            }
+        }
+        rejectedEvents.add(events);
+    }
+
+    /**
+     * @return a mark of the events queued so far, for awaitConsumed()
+     */
+    public long getQueuedMark() {
+        return queuedEvents.get();
+    }
+
+    /**
+     * Waits until the events queued before the mark are taken from the queue, so they are held by the engine or they
+     * were shed.
+     *
+     * @return false if the timeout expires or the drainer is stopped before
+     */
+    public boolean awaitConsumed(long mark, long timeoutMs) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        while (consumedEvents.get() < mark) {
+            if (!running || System.nanoTime() - deadline > 0) {
+                return false;
+            }
+            LockSupport.parkNanos(DRAIN_PARK_NANOS);
+        }
+        return true;
+    }
+
+    public int getQueueDepth() {
+        return queue.depth();
+    }
+
+    public int getQueueCapacity() {
+        return queue.capacity();
+    }
+
+    public long getRejectedEvents() {
+        return rejectedEvents.sum();
+    }
+
+    public long getShedOldestEvents() {
+        return shedOldestEvents.sum();
+    }
+
+    public long getShedQuotaEvents() {
+        return shedQuotaEvents.sum();
+    }
+
+    public long getLateEvents() {
+        return lateEvents.sum();
+    }
+
+    public long getInsertedEvents() {
+        return insertedEvents.sum();
+    }
+
+    public long getBuilds() {
+        return builds.sum();
+    }
+
+    /**
+     * @return time in milliseconds of the last compilation of conditions into the engine
+     */
+    public long getLastBuildMs() {
+        return TimeUnit.NANOSECONDS.toMillis(lastBuildNanos);
+    }
+
+    public long getMaxBuildMs() {
+        return TimeUnit.NANOSECONDS.toMillis(maxBuildNanos);
+    }
+
+    /**
+     * Records a compilation of conditions into the engine.
+     */
+    protected void built(long buildNanos) {
+        builds.increment();
+        lastBuildNanos = buildNanos;
+        if (buildNanos > maxBuildNanos) {
+            maxBuildNanos = buildNanos;
+        }
+    }
+
+    public long getSwaps() {
+        return swaps.sum();
+    }
+
+    /**
+     * @return time in milliseconds the drainer was blocked by the last swap of the engine session
+     */
+    public long getLastSwapStallMs() {
+        return TimeUnit.NANOSECONDS.toMillis(lastSwapStallNanos);
+    }
+
+    public long getMaxSwapStallMs() {
+        return TimeUnit.NANOSECONDS.toMillis(maxSwapStallNanos);
+    }
+
+    /**
+     * Records a swap of the engine session.
+     *
+     * @param stallNanos time the drainer was blocked by the swap
+     */
+    protected void swapped(long stallNanos) {
+        swaps.increment();
+        lastSwapStallNanos = stallNanos;
+        if (stallNanos > maxSwapStallNanos) {
+            maxSwapStallNanos = stallNanos;
+        }
+    }
+
+    private void drain() {
+        log.info("Starting ingest drainer");
+        List<Event> batch = new ArrayList<>(batchSize);
+        while (running) {
+            int drained = queue.drain(batch, batchSize);
+            if (drained == 0) {
+                try {
+                    idle();
+                } catch (Exception e) {
+                    log.error("Unexpected error on idle CEP session", e);
+                }
+                queue.await(DRAIN_PARK_NANOS);
+                continue;
+            }
+            if (shedding == SheddingPolicy.TENANT_QUOTA) {
+                for (int i = 0; i < batch.size(); i++) {
+                    AtomicInteger tenantDepth = tenantDepths.get(tenantKey(batch.get(i).getTenantId()));
+                    if (tenantDepth != null) {
+                        tenantDepth.decrementAndGet();
+                    }
+                }
+            }
+            long maxCtime = eventTime ? discardLate(batch) : 0;
+            try {
+                if (!batch.isEmpty()) {
+                    insert(batch);
+                    insertedEvents.add(batch.size());
+                    Consumer<List<Event>> listener = evaluatedListener;
+                    if (listener != null) {
+                        listener.accept(batch);
+                    }
+                }
+                if (eventTime && !batch.isEmpty() && maxCtime - allowedLateness > watermark) {
+                    watermark = maxCtime - allowedLateness;
+                    advance(watermark);
+                }
+            } catch (Exception e) {
+                log.errorf(e, "Error inserting [%s] events into CEP session", batch.size());
+            }
+            consumedEvents.addAndGet(drained);
+            batch.clear();
+        }
+        log.info("Stopping ingest drainer");
+    }
+
+    /*
+        Removes the events older than the watermark from the batch.
+        Returns the max ctime of the batch.
+     */
+    private long discardLate(List<Event> batch) {
+        long maxCtime = Long.MIN_VALUE;
+        int late = 0;
+        for (int i = 0; i < batch.size(); i++) {
+            Event event = batch.get(i);
+            if (event.getCtime() < watermark) {
+                late++;
+                continue;
+            }
+            maxCtime = Math.max(maxCtime, event.getCtime());
+            if (late > 0) {
+                batch.set(i - late, event);
+            }
+        }
+        if (late > 0) {
+            batch.subList(batch.size() - late, batch.size()).clear();
+            lateEvents.add(late);
+            log.debugf("Discarded [%s] late events. Watermark [%s]", late, watermark);
+        }
+        return maxCtime;
+    }
+
+    private static String tenantKey(String tenantId) {
+        return tenantId == null ? "" : tenantId;
+    }
+}
@@ -0,0 +1,297 @@
+/*
+ * Copyright 2015-2016 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.apm.alerter.cep;
+
+import java.util.function.Function;
+
+/**
+ * Compiles the constraints used on filter() and having() expressions into a tree of Constraint lambdas.
+ *
+ * Supported syntax is the subset of the Drools constraints used by the DSL:
+ *
+ *  <or> ::= <and> [ "||" <and> ]*
+ *  <and> ::= <unary> [ "&&" <unary> ]*
+ *  <unary> ::= "!" <unary> | "(" <or> ")" | <operand> [ <operator> <operand> ]
+ *  <operator> ::= "==" | "!=" | ">" | ">=" | "<" | "<="
+ *  <operand> ::= <string> | <number> | "true" | "false" | "null" | <path>
+ *  <path> ::= <name> [ "." <name> | "[" <string> "]" ]*
+ *
+ * Paths are resolved at compile time into Operands by the resolver, map access as context["field"] is resolved as
+ * context.field.
+ * As in Drools, a String and a Number are compared as numbers, and comparisons with null or NaN are false.
+ *
+ * @author Lucas Ponce
+ */
+public class ConstraintParser<T> {
+
+    /**
+     * Reads a value from the target.
+     */
+    @FunctionalInterface
+    public interface Operand<T> {
+        Object value(T target);
+    }
+
+    private final Function<String, Operand<T>> resolver;
+
+    private String text;
+    private int pos;
+
+    /**
+     * @param resolver returns the Operand of a path or throws IllegalArgumentException if the path is unknown
+     */
+    public ConstraintParser(Function<String, Operand<T>> resolver) {
+        this.resolver = resolver;
+    }
+
+    public synchronized Constraint<T> parse(String constraint) {
+        if (constraint == null || constraint.trim().isEmpty()) {
+            throw new IllegalArgumentException("Constraint must be not empty");
+        }
+        text = constraint;
+        pos = 0;
+        Constraint<T> parsed = parseOr();
+        skipBlanks();
+        if (pos < text.length()) {
+            throw error("Unexpected '" + text.charAt(pos) + "'");
+        }
+        return parsed;
+    }
+
+    private Constraint<T> parseOr() {
+        Constraint<T> left = parseAnd();
+        while (accept("||")) {
+            Constraint<T> l = left;
+            Constraint<T> r = parseAnd();
+            left = target -> l.test(target) || r.test(target);
+        }
+        return left;
+    }
+
+    private Constraint<T> parseAnd() {
+        Constraint<T> left = parseUnary();
+        while (accept("&&")) {
+            Constraint<T> l = left;
+            Constraint<T> r = parseUnary();
+            left = target -> l.test(target) && r.test(target);
+        }
+        return left;
+    }
+
+    private Constraint<T> parseUnary() {
+        skipBlanks();
+        if (peek('!') && !peek("!=")) {
+            pos++;
+            Constraint<T> negated = parseUnary();
+            return target -> !negated.test(target);
+        }
+        if (accept("(")) {
+            Constraint<T> inner = parseOr();
+            if (!accept(")")) {
+                throw error("Expected ')'");
+            }
+            return inner;
+        }
+        Operand<T> left = parseOperand();
+        String operator = parseOperator();
+        if (operator == null) {
+            return target -> Boolean.TRUE.equals(left.value(target));
+        }
+        Operand<T> right = parseOperand();
+        switch (operator) {
+            case "==":
+                return target -> equal(left.value(target), right.value(target));
+            case "!=":
+                return target -> !equal(left.value(target), right.value(target));
+            case ">":
+                return target -> {
+                    Integer c = compare(left.value(target), right.value(target));
+                    return c != null && c > 0;
+                };
+            case ">=":
+                return target -> {
+                    Integer c = compare(left.value(target), right.value(target));
+                    return c != null && c >= 0;
+                };
+            case "<":
+                return target -> {
+                    Integer c = compare(left.value(target), right.value(target));
+                    return c != null && c < 0;
+                };
+            default:
+                return target -> {
+                    Integer c = compare(left.value(target), right.value(target));
+                    return c != null && c <= 0;
+                };
+        }
+    }
+
+    private String parseOperator() {
+        for (String operator : new String[] {"==", "!=", ">=", "<=", ">", "<"}) {
+            if (accept(operator)) {
+                return operator;
+            }
+        }
+        return null;
+    }
+
+    private Operand<T> parseOperand() {
+        skipBlanks();
+        if (pos >= text.length()) {
+            throw error("Expected operand");
+        }
+        char c = text.charAt(pos);
+        if (c == '"' || c == '\'') {
+            String literal = parseString();
+            return target -> literal;
+        }
+        if (Character.isDigit(c) || (c == '-' && pos + 1 < text.length()
+                && Character.isDigit(text.charAt(pos + 1)))) {
+            int start = pos++;
+            while (pos < text.length() && (Character.isDigit(text.charAt(pos)) || text.charAt(pos) == '.')) {
+                pos++;
+            }
+            String number = text.substring(start, pos);
+            Number literal = number.indexOf('.') == -1 ? (Number) Long.valueOf(number) : Double.valueOf(number);
+            return target -> literal;
+        }
+        if (!isNameStart(c)) {
+            throw error("Unexpected '" + c + "'");
+        }
+        StringBuilder path = new StringBuilder(parseName());
+        while (true) {
+            if (accept(".")) {
+                path.append('.').append(parseName());
+            } else if (accept("[")) {
+                skipBlanks();
+                path.append('.').append(parseString());
+                if (!accept("]")) {
+                    throw error("Expected ']'");
+                }
+            } else {
+                break;
+            }
+        }
+        switch (path.toString()) {
+            case "true":
+                return target -> Boolean.TRUE;
+            case "false":
+                return target -> Boolean.FALSE;
+            case "null":
+                return target -> null;
+            default:
+                return resolver.apply(path.toString());
+        }
+    }
+
+    private String parseName() {
+        skipBlanks();
+        int start = pos;
+        while (pos < text.length() && (isNameStart(text.charAt(pos)) || Character.isDigit(text.charAt(pos)))) {
+            pos++;
+        }
+        if (start == pos) {
+            throw error("Expected name");
+        }
+        return text.substring(start, pos);
+    }
+
+    private String parseString() {
+        char quote = text.charAt(pos++);
+        StringBuilder literal = new StringBuilder();
+        while (pos < text.length() && text.charAt(pos) != quote) {
+            char c = text.charAt(pos++);
+            if (c == '\\' && pos < text.length()) {
+                c = text.charAt(pos++);
+            }
+            literal.append(c);
+        }
+        if (pos >= text.length()) {
+            throw error("Unterminated string");
+        }
+        pos++;
+        return literal.toString();
+    }
+
+    private boolean accept(String token) {
+        skipBlanks();
+        if (text.startsWith(token, pos)) {
+            pos += token.length();
+            return true;
+        }
+        return false;
+    }
+
+    private boolean peek(char c) {
+        return pos < text.length() && text.charAt(pos) == c;
+    }
+
+    private boolean peek(String token) {
+        return text.startsWith(token, pos);
+    }
+
+    private void skipBlanks() {
+        while (pos < text.length() && Character.isWhitespace(text.charAt(pos))) {
+            pos++;
+        }
+    }
+
+    private IllegalArgumentException error(String msg) {
+        return new IllegalArgumentException(msg + " at position " + pos + " of constraint [" + text + "]");
+    }
+
+    private static boolean isNameStart(char c) {
+        return Character.isLetter(c) || c == '_' || c == '$';
+    }
+
+    static boolean equal(Object left, Object right) {
+        if (left == null || right == null) {
+            return left == right;
+        }
+        if (left instanceof Number || right instanceof Number) {
+            Double l = toDouble(left);
+            Double r = toDouble(right);
+            return l != null && r != null && l.doubleValue() == r.doubleValue();
+        }
+        return left.equals(right);
+    }
+
+    /*
+        Returns null on not comparable values.
+     */
+    static Integer compare(Object left, Object right) {
+        if (left == null || right == null) {
+            return null;
+        }
+        if (left instanceof Number || right instanceof Number) {
+            Double l = toDouble(left);
+            Double r = toDouble(right);
+            if (l == null || r == null || l.isNaN() || r.isNaN()) {
+                return null;
+            }
+            return l < r ? -1 : (l > r ? 1 : 0);
+        }
+        if (left instanceof String && right instanceof String) {
+            return ((String) left).compareTo((String) right);
+        }
+        return null;
+    }
+
+    private static Double toDouble(Object value) {
+        return NumericFunction.toDouble(value);
+    }
+}
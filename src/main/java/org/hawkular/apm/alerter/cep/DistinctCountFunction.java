@@ -0,0 +1,89 @@
+/*
+ * Copyright 2015-2016 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.apm.alerter.cep;
+
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.kie.api.runtime.rule.AccumulateFunction;
+
+/**
+ * Accumulate function that counts the exact number of distinct non null values.
+ *
+ * It is used on "count.tags.<field>" and "count.context.<field>" having() constraints.
+ * Occurrences of each value are counted, so it supports reverse and an event leaving the window does not recalculate
+ * the function.
+ *
+ * @author Lucas Ponce
+ */
+public class DistinctCountFunction implements AccumulateFunction {
+
+    @Override
+    public Serializable createContext() {
+        return new DistinctData();
+    }
+
+    @Override
+    public void init(Serializable context) throws Exception {
+        ((DistinctData) context).values.clear();
+    }
+
+    @Override
+    public void accumulate(Serializable context, Object value) {
+        if (value != null) {
+            ((DistinctData) context).values.merge(value, 1, Integer::sum);
+        }
+    }
+
+    @Override
+    public void reverse(Serializable context, Object value) throws Exception {
+        if (value != null) {
+            ((DistinctData) context).values.computeIfPresent(value, (v, n) -> n == 1 ? null : n - 1);
+        }
+    }
+
+    @Override
+    public Object getResult(Serializable context) throws Exception {
+        return (long) ((DistinctData) context).values.size();
+    }
+
+    @Override
+    public boolean supportsReverse() {
+        return true;
+    }
+
+    @Override
+    public Class<?> getResultType() {
+        return Long.class;
+    }
+
+    @Override
+    public void writeExternal(ObjectOutput out) throws IOException {
+    }
+
+    @Override
+    public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
+    }
+
+    public static class DistinctData implements Serializable {
+        private final Map<Object, Integer> values = new HashMap<>();
+    }
+}
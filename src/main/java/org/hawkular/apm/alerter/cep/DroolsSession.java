@@ -0,0 +1,643 @@
+/*
+ * Copyright 2015-2016 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.apm.alerter.cep;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.hawkular.alerts.api.model.event.Event;
+import org.hawkular.alerts.api.model.trigger.FullTrigger;
+import org.hawkular.alerts.api.model.trigger.Trigger;
+import org.hawkular.apm.alerter.AlerterProperties;
+import org.hawkular.apm.alerter.Expression;
+import org.hawkular.apm.alerter.LruCache;
+import org.jboss.logging.Logger;
+import org.kie.api.KieBaseConfiguration;
+import org.kie.api.conf.EventProcessingOption;
+import org.kie.api.io.ResourceType;
+import org.kie.api.runtime.ClassObjectFilter;
+import org.kie.api.runtime.KieSession;
+import org.kie.api.runtime.KieSessionConfiguration;
+import org.kie.api.runtime.conf.ClockTypeOption;
+import org.kie.api.time.SessionPseudoClock;
+import org.kie.internal.KnowledgeBase;
+import org.kie.internal.KnowledgeBaseFactory;
+import org.kie.internal.builder.KnowledgeBuilder;
+import org.kie.internal.builder.KnowledgeBuilderFactory;
+import org.kie.internal.definition.KnowledgePackage;
+import org.kie.internal.io.ResourceFactory;
+
+/**
+ * Wraps a KieBase and its KieSession and keeps track of the rules deployed per trigger.
+ *
+ * In incremental mode a trigger change only adds, removes or replaces the rules generated for that trigger in the
+ * running KieBase, so the session and the events it holds survive the update.
+ * In full mode the KieBase and the KieSession are rebuilt on every update.
+ *
+ * On wall clock the KieSession uses a realtime clock and rules are fired by a fireUntilHalt() task.
+ * On event-time the KieSession uses a pseudo clock advanced to the watermark and rules are fired by the drainer.
+ *
+ * A rebuild does not pause the ingest: the running KieSession keeps evaluating while the new KieBase is built.
+ * The new KieSession is warmed with the events of the running one and the recent events, with its results
+ * discarded, and then it replaces the running one. The drainer is only blocked while the events inserted during
+ * the warm-up are replayed.
+ *
+ * Events restored from a snapshot are replayed the same way into the first KieSession built, so the windows open
+ * before a restart are not lost.
+ *
+ * @author Lucas Ponce
+ */
+public class DroolsSession extends CepSession {
+    private final Logger log = Logger.getLogger(DroolsSession.class);
+
+    /*
+        Generated DRL has not a package declaration.
+     */
+    private static final String DEFAULT_PACKAGE = "defaultpkg";
+
+    private static final String PACKAGE_CACHE_SIZE = "hawkular-apm-alerter.package-cache-size";
+    private static final String PACKAGE_CACHE_SIZE_ENV = "HAWKULAR_APM_ALERTER_PACKAGE_CACHE_SIZE";
+    private static final int DEFAULT_PACKAGE_CACHE_SIZE = 1000;
+
+    private static final String WARMUP_EVENTS = "hawkular-apm-alerter.warmup-events";
+    private static final String WARMUP_EVENTS_ENV = "HAWKULAR_APM_ALERTER_WARMUP_EVENTS";
+    private static final int DEFAULT_WARMUP_EVENTS = 10000;
+
+    /*
+        Results of the warm-up of a new session
+     */
+    private static final ResultSink DISCARDED_RESULTS = event -> { };
+
+    private static final long COLLECT_TIMEOUT_MS = 30000;
+
+    private KnowledgeBase kieBase;
+    private volatile KieSession kieSession;
+
+    /*
+        Held by the drainer while it inserts into the KieSession, and by a rebuild while it swaps the KieSession
+     */
+    private final Object swapLock = new Object();
+
+    /*
+        Last events inserted, null if warm-up is disabled. Guarded by swapLock.
+     */
+    private final RecentEvents recent;
+
+    /*
+        Events restored from a snapshot and not yet replayed. Guarded by swapLock.
+     */
+    private List<Event> restored = Collections.emptyList();
+
+    /*
+        Actions that read the working memory. On event time the drainer fires the rules, so it runs them.
+     */
+    private final Queue<KieSession.AtomicAction> actions = new ConcurrentLinkedQueue<>();
+
+    /*
+        Ctime of the oldest event, refreshed by the thread that fires the rules
+     */
+    private volatile long oldestEventCtime;
+    private final AtomicBoolean oldestEventPending = new AtomicBoolean(false);
+
+    /*
+        Trigger key -> Rules deployed for that trigger
+     */
+    private final Map<String, DeployedTrigger> deployed = new HashMap<>();
+
+    /*
+        Extract rule name -> Trigger keys that share the rule
+     */
+    private final Map<String, Set<String>> extractRules = new HashMap<>();
+
+    /*
+        DRL fingerprint -> Packages compiled against the current KieBase.
+        Compiled packages reference the KieBase classloader (i.e. for declared types), so this cache is not shared
+        between KieBases and it is cleared on rebuild.
+     */
+    private final LruCache<String, Collection<KnowledgePackage>> packages = new LruCache<>(AlerterProperties
+            .getProperty(PACKAGE_CACHE_SIZE, PACKAGE_CACHE_SIZE_ENV, DEFAULT_PACKAGE_CACHE_SIZE));
+
+    /*
+        Exposed for tests
+     */
+    LruCache<String, Collection<KnowledgePackage>> getPackages() {
+        return packages;
+    }
+
+    /*
+        Exposed for tests
+     */
+    KieSession getKieSession() {
+        return kieSession;
+    }
+
+    public DroolsSession(ResultSink results, ThreadFactory threadFactory, boolean incremental, int queueSize,
+                         int batchSize) {
+        super(results, threadFactory, incremental, queueSize, batchSize);
+        int warmupEvents = AlerterProperties.getProperty(WARMUP_EVENTS, WARMUP_EVENTS_ENV, DEFAULT_WARMUP_EVENTS);
+        this.recent = warmupEvents > 0 ? new RecentEvents(warmupEvents) : null;
+    }
+
+    @Override
+    public synchronized void update(Collection<FullTrigger> activeTriggers) {
+        Map<String, FullTrigger> triggers = new LinkedHashMap<>();
+        Map<String, Expression> expressions = new HashMap<>();
+        parse(activeTriggers, triggers, expressions);
+        if (!incremental || kieSession == null) {
+            rebuild(triggers, expressions);
+            return;
+        }
+        for (String key : new ArrayList<>(deployed.keySet())) {
+            Expression expression = expressions.get(key);
+            if (expression == null || !expression.getDrl().equals(deployed.get(key).drl)) {
+                undeploy(key);
+            }
+        }
+        triggers.keySet().removeAll(deployed.keySet());
+        deploy(triggers, expressions);
+        log.infof("Incremental update: [%s] new or modified triggers, [%s] deployed triggers", triggers.size(),
+                deployed.size());
+    }
+
+    /*
+        Without a session nothing is deployed, so the changed triggers are all the triggers of the shard.
+     */
+    @Override
+    public synchronized void update(Collection<FullTrigger> changed, Collection<Trigger> removed) {
+        Map<String, FullTrigger> triggers = new LinkedHashMap<>();
+        Map<String, Expression> expressions = new HashMap<>();
+        parse(changed, triggers, expressions);
+        if (kieSession == null) {
+            rebuild(triggers, expressions);
+            return;
+        }
+        removed.stream().forEach(trigger -> undeploy(key(trigger)));
+        for (FullTrigger fullTrigger : changed) {
+            String key = key(fullTrigger.getTrigger());
+            Expression expression = expressions.get(key);
+            DeployedTrigger deployedTrigger = deployed.get(key);
+            if (deployedTrigger != null && expression != null && expression.getDrl().equals(deployedTrigger.drl)) {
+                triggers.remove(key);
+            } else {
+                undeploy(key);
+            }
+        }
+        deploy(triggers, expressions);
+        log.infof("Incremental update: [%s] new or modified triggers, [%s] removed triggers, [%s] deployed triggers",
+                triggers.size(), removed.size(), deployed.size());
+    }
+
+    private void parse(Collection<FullTrigger> fullTriggers, Map<String, FullTrigger> triggers,
+                       Map<String, Expression> expressions) {
+        for (FullTrigger fullTrigger : fullTriggers) {
+            String key = key(fullTrigger.getTrigger());
+            try {
+                expressions.put(key, new Expression(Collections.singletonList(fullTrigger)));
+                triggers.put(key, fullTrigger);
+            } catch (Exception e) {
+                log.errorf("Trigger [%s] cannot be parsed. Skipping. Reason: %s", key, e.getMessage());
+            }
+        }
+    }
+
+    @Override
+    protected void insert(List<Event> batch) {
+        synchronized (swapLock) {
+            if (recent != null) {
+                for (int i = 0; i < batch.size(); i++) {
+                    recent.add(batch.get(i));
+                }
+            }
+            KieSession session = kieSession;
+            if (session == null) {
+                log.debugf("No CEP session. Discarding [%s] events", batch.size());
+                return;
+            }
+            for (int i = 0; i < batch.size(); i++) {
+                session.insert(batch.get(i));
+            }
+            if (isEventTime()) {
+                session.fireAllRules();
+                runActions(session);
+            }
+        }
+    }
+
+    @Override
+    protected void advance(long time) {
+        synchronized (swapLock) {
+            KieSession session = kieSession;
+            if (session == null) {
+                return;
+            }
+            advanceClock(session, time);
+            session.fireAllRules();
+            runActions(session);
+        }
+    }
+
+    @Override
+    protected void idle() {
+        if (!isEventTime() || actions.isEmpty()) {
+            return;
+        }
+        synchronized (swapLock) {
+            KieSession session = kieSession;
+            if (session != null) {
+                runActions(session);
+            }
+        }
+    }
+
+    /*
+        The action runs on the thread that fires the rules, so it does not race with the evaluation.
+     */
+    private void submit(KieSession session, KieSession.AtomicAction action) {
+        if (isEventTime()) {
+            actions.add(action);
+        } else {
+            session.submit(action);
+        }
+    }
+
+    /*
+        Must be called holding the swapLock
+     */
+    private void runActions(KieSession session) {
+        KieSession.AtomicAction action;
+        while ((action = actions.poll()) != null) {
+            try {
+                action.execute(session);
+            } catch (Exception e) {
+                log.error("Unexpected error on CEP session action", e);
+            }
+        }
+    }
+
+    /*
+        On wall clock rules are fired by the fireUntilHalt() task, not by the drainer.
+     */
+    @Override
+    public boolean firesOnInsert() {
+        return isEventTime();
+    }
+
+    /*
+        Without a KieSession the restored events are still pending, so they are kept for the next snapshot.
+     */
+    @Override
+    public List<Event> snapshot() {
+        List<Event> events = new ArrayList<>();
+        KieSession session;
+        synchronized (swapLock) {
+            session = kieSession;
+            if (session == null) {
+                events.addAll(restored);
+            }
+        }
+        if (session != null) {
+            collect(session, events);
+        }
+        events.sort(Comparator.comparingLong(Event::getCtime));
+        return events;
+    }
+
+    /*
+        The working memory is read on the thread that fires the rules, so it is not modified meanwhile.
+        On event time the rules are fired by the drainer holding the swapLock, so it is read holding the swapLock.
+     */
+    private void collect(KieSession session, List<Event> events) {
+        if (isEventTime()) {
+            synchronized (swapLock) {
+                collectFacts(session, events);
+            }
+            return;
+        }
+        CompletableFuture<List<Event>> collected = new CompletableFuture<>();
+        session.submit(s -> {
+            try {
+                List<Event> facts = new ArrayList<>();
+                collectFacts(s, facts);
+                collected.complete(facts);
+            } catch (Exception e) {
+                collected.completeExceptionally(e);
+            }
+        });
+        try {
+            events.addAll(collected.get(COLLECT_TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while collecting the events of the CEP session", e);
+        } catch (ExecutionException | TimeoutException e) {
+            throw new IllegalStateException("Events of the CEP session cannot be collected", e);
+        }
+    }
+
+    private static void collectFacts(KieSession session, List<Event> events) {
+        session.getObjects(new ClassObjectFilter(Event.class)).stream().forEach(fact -> events.add((Event) fact));
+    }
+
+    @Override
+    public long getFactCount() {
+        KieSession session = kieSession;
+        return session == null ? 0 : session.getFactCount();
+    }
+
+    /*
+        Working memory is scanned by the thread that fires the rules, the drainer is not blocked.
+        The value returned is the one of the previous scan, it is meant for monitoring, not for the hot path.
+     */
+    @Override
+    public long getOldestEventCtime() {
+        KieSession session = kieSession;
+        if (session == null) {
+            return 0;
+        }
+        if (oldestEventPending.compareAndSet(false, true)) {
+            submit(session, s -> {
+                try {
+                    long oldest = Long.MAX_VALUE;
+                    for (Object fact : s.getObjects(new ClassObjectFilter(Event.class))) {
+                        oldest = Math.min(oldest, ((Event) fact).getCtime());
+                    }
+                    oldestEventCtime = oldest == Long.MAX_VALUE ? 0 : oldest;
+                } finally {
+                    oldestEventPending.set(false);
+                }
+            });
+        }
+        return oldestEventCtime;
+    }
+
+    @Override
+    public void restore(List<Event> events) {
+        synchronized (swapLock) {
+            restored = new ArrayList<>(events);
+        }
+    }
+
+    @Override
+    public synchronized void stop() {
+        KieSession session;
+        synchronized (swapLock) {
+            session = kieSession;
+            kieSession = null;
+        }
+        dispose(session);
+    }
+
+    private void dispose(KieSession session) {
+        if (session != null) {
+            session.halt();
+            session.dispose();
+            session.destroy();
+            log.info("Sent halt() signal to CEP session");
+        }
+    }
+
+    /*
+        The running KieSession is not touched until the new one is ready, it keeps evaluating meanwhile.
+     */
+    private void rebuild(Map<String, FullTrigger> triggers, Map<String, Expression> expressions) {
+        deployed.clear();
+        extractRules.clear();
+        packages.clear();
+
+        KieBaseConfiguration kieBaseConfiguration = KnowledgeBaseFactory.newKnowledgeBaseConfiguration();
+        kieBaseConfiguration.setOption( EventProcessingOption.STREAM );
+        kieBase = KnowledgeBaseFactory.newKnowledgeBase(kieBaseConfiguration);
+        deploy(triggers, expressions);
+        if (deployed.isEmpty()) {
+            log.warn("No rules were deployed. CEP session is not started.");
+            stop();
+            return;
+        }
+
+        KieSessionConfiguration kieSessionConf = KnowledgeBaseFactory.newKnowledgeSessionConfiguration();
+        kieSessionConf.setOption( ClockTypeOption.get( isEventTime() ? "pseudo" : "realtime" ) );
+
+        KieSession session = kieBase.newKieSession(kieSessionConf, null);
+        session.setGlobal("results", DISCARDED_RESULTS);
+        session.setGlobal("log", log);
+        log.info("Clock time: " + session.getSessionClock().getCurrentTime());
+
+        session.getKieBase().getKiePackages().stream().forEach(p -> log.info(p.getRules()));
+
+        KieSession previous = swap(session);
+        dispose(previous);
+        if (isEventTime()) {
+            return;
+        }
+        threadFactory.newThread(() -> {
+            log.info("Starting fireUntilHalt()");
+            session.fireUntilHalt();
+            log.info("Stopping fireUntilHalt()");
+        }).start();
+    }
+
+    /*
+        The new session is warmed with the events of the previous session, the restored events and the recent events.
+        The same event instance can be in several of them, but the KieSession keeps a single fact per instance.
+        Events are replayed in two passes: the first one without blocking the drainer, the second one with the events
+        inserted meanwhile, just before the swap.
+        Results of the replayed events were already sent by the previous session, so they are discarded.
+     */
+    private KieSession swap(KieSession session) {
+        long start = System.nanoTime();
+        long sequence = 0;
+        int replayed = 0;
+        List<Event> events;
+        KieSession current;
+        synchronized (swapLock) {
+            events = new ArrayList<>(restored);
+            current = kieSession;
+            if (recent != null) {
+                events.addAll(recent.since(sequence));
+                sequence = recent.sequence();
+            }
+        }
+        // events inserted after the sequence can be collected too, the KieSession keeps a single fact per instance
+        if (current != null) {
+            try {
+                collect(current, events);
+            } catch (IllegalStateException e) {
+                log.warn("Events of the previous CEP session cannot be collected. Warming up without them", e);
+            }
+        }
+        events.sort(Comparator.comparingLong(Event::getCtime));
+        replayed += replay(session, events);
+        // the bulk of the warm-up is evaluated before the drainer is blocked
+        if (isEventTime() && getWatermark() != Long.MIN_VALUE) {
+            advanceClock(session, getWatermark());
+        }
+        session.fireAllRules();
+        KieSession previous;
+        long stall;
+        synchronized (swapLock) {
+            long stallStart = System.nanoTime();
+            if (recent != null) {
+                replayed += replay(session, recent.since(sequence));
+            }
+            if (isEventTime() && getWatermark() != Long.MIN_VALUE) {
+                advanceClock(session, getWatermark());
+            }
+            session.fireAllRules();
+            session.setGlobal("results", results);
+            // the replayed events are not profiled
+            if (profiler != null) {
+                session.addEventListener(profiler.newAgendaListener());
+                session.addEventListener(profiler.newRuntimeListener());
+            }
+            restored = Collections.emptyList();
+            previous = kieSession;
+            kieSession = session;
+            // a scan submitted to the previous session is not run
+            oldestEventPending.set(false);
+            stall = System.nanoTime() - stallStart;
+        }
+        swapped(stall);
+        log.infof("Swapped CEP session. Replayed [%s] events in [%s] ms. Drainer blocked [%s] ms", replayed,
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), TimeUnit.NANOSECONDS.toMillis(stall));
+        return previous;
+    }
+
+    private static int replay(KieSession session, List<Event> events) {
+        for (int i = 0; i < events.size(); i++) {
+            session.insert(events.get(i));
+        }
+        return events.size();
+    }
+
+    private static void advanceClock(KieSession session, long time) {
+        SessionPseudoClock clock = session.getSessionClock();
+        long delta = time - clock.getCurrentTime();
+        if (delta > 0) {
+            clock.advanceTime(delta, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /*
+        Triggers are compiled together in a single KnowledgeBuilder pass.
+        If it fails, triggers are compiled one by one to isolate the wrong ones.
+     */
+    private void deploy(Map<String, FullTrigger> triggers, Map<String, Expression> expressions) {
+        if (triggers.isEmpty()) {
+            return;
+        }
+        long start = System.nanoTime();
+        try {
+            if (triggers.size() > 1) {
+                Expression batch = new Expression(triggers.values());
+                if (addPackages(batch.getDrl())) {
+                    triggers.keySet().stream().forEach(key -> register(key, expressions.get(key)));
+                    return;
+                }
+            }
+            triggers.keySet().stream().forEach(key -> {
+                Expression expression = expressions.get(key);
+                if (addPackages(expression.getDrl())) {
+                    register(key, expression);
+                }
+            });
+        } finally {
+            built(System.nanoTime() - start);
+        }
+    }
+
+    private boolean addPackages(String drl) {
+        String key = Expression.fingerprint(drl);
+        Collection<KnowledgePackage> compiled = packages.get(key);
+        if (compiled == null) {
+            log.debugf("Rules: \n %s", drl);
+            KnowledgeBuilder kbuilder = KnowledgeBuilderFactory.newKnowledgeBuilder(kieBase);
+            kbuilder.add(ResourceFactory.newByteArrayResource(drl.getBytes()), ResourceType.DRL);
+            if (kbuilder.hasErrors()) {
+                log.errorf("Rules cannot be compiled: %s", kbuilder.getErrors());
+                return false;
+            }
+            compiled = kbuilder.getKnowledgePackages();
+            packages.put(key, compiled);
+        }
+        kieBase.addKnowledgePackages(compiled);
+        return true;
+    }
+
+    private void register(String key, Expression expression) {
+        Set<String> conditionRules = new HashSet<>(expression.getRuleNames());
+        conditionRules.removeAll(expression.getExtractRuleNames());
+        deployed.put(key, new DeployedTrigger(expression.getDrl(), conditionRules,
+                expression.getExtractRuleNames()));
+        expression.getExtractRuleNames().stream()
+                .forEach(rule -> extractRules.computeIfAbsent(rule, r -> new HashSet<>()).add(key));
+    }
+
+    private void undeploy(String key) {
+        DeployedTrigger deployedTrigger = deployed.remove(key);
+        if (deployedTrigger == null) {
+            return;
+        }
+        deployedTrigger.conditionRules.stream().forEach(rule -> removeRule(rule));
+        deployedTrigger.extractRules.stream().forEach(rule -> {
+            Set<String> owners = extractRules.get(rule);
+            if (owners != null) {
+                owners.remove(key);
+                if (owners.isEmpty()) {
+                    extractRules.remove(rule);
+                    removeRule(rule);
+                }
+            }
+        });
+    }
+
+    private void removeRule(String rule) {
+        if (kieBase.getRule(DEFAULT_PACKAGE, rule) != null) {
+            kieBase.removeRule(DEFAULT_PACKAGE, rule);
+        }
+    }
+
+    private static String key(Trigger trigger) {
+        return trigger.getTenantId() + "-" + trigger.getId();
+    }
+
+    private static class DeployedTrigger {
+        String drl;
+        Set<String> conditionRules;
+        Set<String> extractRules;
+
+        DeployedTrigger(String drl, Set<String> conditionRules, Set<String> extractRules) {
+            this.drl = drl;
+            this.conditionRules = conditionRules;
+            this.extractRules = extractRules;
+        }
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright 2015-2016 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.apm.alerter.cep;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Throughput, lag and memory metrics of the CEP engine.
+ *
+ * The only counter updated on the ingest path is the received events LongAdder, the rest of the metrics are read
+ * from the counters the sessions and the result batcher already keep. Rates are calculated from the samples taken
+ * by tick() over the last minute.
+ *
+ * @author Lucas Ponce
+ */
+public class EngineMetrics implements EngineMetricsMBean {
+    private static final int RATE_SAMPLES = 60;
+
+    private final CepSession[] sessions;
+    private final ResultBatcher results;
+    private final RuleProfiler profiler;
+
+    private final LongAdder receivedEvents = new LongAdder();
+    private final RateMeter receivedRate;
+    private final RateMeter insertedRate;
+
+    /**
+     * @param profiler rule profiler, null if profiling is disabled
+     */
+    public EngineMetrics(CepSession[] sessions, ResultBatcher results, RuleProfiler profiler) {
+        this.sessions = sessions;
+        this.results = results;
+        this.profiler = profiler;
+        this.receivedRate = new RateMeter(receivedEvents::sum, RATE_SAMPLES);
+        this.insertedRate = new RateMeter(this::getInsertedEvents, RATE_SAMPLES);
+    }
+
+    public void received(int events) {
+        receivedEvents.add(events);
+    }
+
+    /**
+     * Samples the counters of the rates. It is expected to be called once per second.
+     */
+    public void tick() {
+        receivedRate.tick();
+        insertedRate.tick();
+    }
+
+    @Override
+    public long getReceivedEvents() {
+        return receivedEvents.sum();
+    }
+
+    @Override
+    public double getReceivedEventsPerSecond() {
+        return receivedRate.getRate();
+    }
+
+    @Override
+    public long getInsertedEvents() {
+        return Arrays.stream(sessions).mapToLong(CepSession::getInsertedEvents).sum();
+    }
+
+    @Override
+    public double getInsertedEventsPerSecond() {
+        return insertedRate.getRate();
+    }
+
+    @Override
+    public long getQueueDepth() {
+        return Arrays.stream(sessions).mapToLong(CepSession::getQueueDepth).sum();
+    }
+
+    @Override
+    public long getFactCount() {
+        return Arrays.stream(sessions).mapToLong(CepSession::getFactCount).sum();
+    }
+
+    @Override
+    public long getSentResults() {
+        return results.getSentEvents();
+    }
+
+    @Override
+    public long getFailedResults() {
+        return results.getFailedEvents();
+    }
+
+    @Override
+    public long getDroppedResults() {
+        return results.getDroppedEvents();
+    }
+
+    @Override
+    public long getResultSendP99Us() {
+        return TimeUnit.NANOSECONDS.toMicros(results.getSendLatency().getPercentile(99));
+    }
+
+    @Override
+    public long getResultLatencyP99Us() {
+        return TimeUnit.NANOSECONDS.toMicros(results.getResultLatency().getPercentile(99));
+    }
+
+    @Override
+    public long getLastBuildMs() {
+        return Arrays.stream(sessions).mapToLong(CepSession::getLastBuildMs).max().orElse(0);
+    }
+
+    @Override
+    public long getMaxBuildMs() {
+        return Arrays.stream(sessions).mapToLong(CepSession::getMaxBuildMs).max().orElse(0);
+    }
+
+    /*
+        Sessions scan their working memory, so it is not cheap on large sessions and it is not exposed on JMX
+     */
+    public long getOldestEventAgeMs() {
+        long oldest = Arrays.stream(sessions).mapToLong(CepSession::getOldestEventCtime).filter(ctime -> ctime > 0)
+                .min().orElse(0);
+        return oldest == 0 ? 0 : Math.max(0, System.currentTimeMillis() - oldest);
+    }
+
+    /**
+     * @return all the metrics, with the latency histograms and the firings per rule if profiling is enabled
+     */
+    public Map<String, Object> toMap() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("receivedEvents", getReceivedEvents());
+        metrics.put("receivedEventsPerSecond", getReceivedEventsPerSecond());
+        metrics.put("insertedEvents", getInsertedEvents());
+        metrics.put("insertedEventsPerSecond", getInsertedEventsPerSecond());
+        metrics.put("queueDepth", getQueueDepth());
+        metrics.put("factCount", getFactCount());
+        metrics.put("oldestEventAgeMs", getOldestEventAgeMs());
+        metrics.put("builds", Arrays.stream(sessions).mapToLong(CepSession::getBuilds).sum());
+        metrics.put("lastBuildMs", getLastBuildMs());
+        metrics.put("maxBuildMs", getMaxBuildMs());
+        metrics.put("sentResults", getSentResults());
+        metrics.put("failedResults", getFailedResults());
+        metrics.put("droppedResults", getDroppedResults());
+        metrics.put("resultRetries", results.getRetries());
+        metrics.put("resultSend", results.getSendLatency().toMap());
+        metrics.put("resultLatency", results.getResultLatency().toMap());
+        if (profiler != null) {
+            metrics.put("firings", profiler.getFirings());
+        }
+        return metrics;
+    }
+}
@@ -0,0 +1,51 @@
+/*
+ * Copyright 2015-2016 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.apm.alerter.cep;
+
+/**
+ * JMX view of the CEP engine metrics.
+ *
+ * @author Lucas Ponce
+ */
+public interface EngineMetricsMBean {
+
+    long getReceivedEvents();
+
+    double getReceivedEventsPerSecond();
+
+    long getInsertedEvents();
+
+    double getInsertedEventsPerSecond();
+
+    long getQueueDepth();
+
+    long getFactCount();
+
+    long getSentResults();
+
+    long getFailedResults();
+
+    long getDroppedResults();
+
+    long getResultSendP99Us();
+
+    long getResultLatencyP99Us();
+
+    long getLastBuildMs();
+
+    long getMaxBuildMs();
+}
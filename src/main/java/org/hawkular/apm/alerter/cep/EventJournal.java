@@ -0,0 +1,404 @@
+/*
+ * Copyright 2015-2016 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.apm.alerter.cep;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
+
+import org.hawkular.alerts.api.model.event.Event;
+import org.hawkular.apm.alerter.EventCodec;
+import org.jboss.logging.Logger;
+
+/**
+ * Write-ahead journal of the ingested events.
+ *
+ * The journal is a sequence of fixed-size segment files mapped in memory. Each append writes a record with a batch of
+ * events encoded with the EventCodec binary format:
+ *
+ * <pre>
+ * record := length:int32 crc32:int32 payload[|length|]
+ * </pre>
+ *
+ * A negative length marks a tombstone: its events were journaled before but they were shed from the ingest queue
+ * without being evaluated, so they are removed from the recovered events. Events are matched by tenantId and id.
+ *
+ * Segments are zero filled, so a zero length marks the end of the written records. A torn record is detected by its
+ * crc and it ends the segment as well.
+ *
+ * A position is the logical offset segment * segmentSize + offset. Appended records survive a process crash as soon
+ * as they are copied into the mapped segment. sync() forces them to disk with group commit: the first caller flushes
+ * all the records appended so far and the concurrent callers just wait for it.
+ *
+ * A checkpoint marks the position of a snapshot, the events appended before it must be in the snapshot. On recovery the
+ * events are read from the last checkpoint. Older segments are deleted.
+ *
+ * @author Lucas Ponce
+ */
+public class EventJournal implements Closeable {
+    private static final Logger log = Logger.getLogger(EventJournal.class);
+
+    private static final String SEGMENT_SUFFIX = ".journal";
+    private static final String CHECKPOINT_FILE = "checkpoint";
+    private static final String TMP_SUFFIX = ".tmp";
+    private static final int HEADER = 8;
+
+    private final Path dir;
+    private final int segmentSize;
+
+    private final Object appendLock = new Object();
+    private long segment;
+    private FileChannel channel;
+    private MappedByteBuffer buffer;
+    private volatile long position;
+
+    private final Object syncLock = new Object();
+    private long synced;
+
+    /*
+        Checkpoint of the last snapshot, guarded by checkpointLock
+     */
+    private final Object checkpointLock = new Object();
+    private long checkpoint;
+
+    private final LongAdder appends = new LongAdder();
+    private final LongAdder appendedEvents = new LongAdder();
+    private final LongAdder syncs = new LongAdder();
+
+    public EventJournal(Path dir, int segmentSize) throws IOException {
+        if (segmentSize <= HEADER) {
+            throw new IllegalArgumentException("segmentSize must be greater than " + HEADER);
+        }
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+        Files.createDirectories(dir);
+        readCheckpoint();
+        List<Long> segments = segments();
+        segment = segments.isEmpty() ? segment(checkpoint) : segments.get(segments.size() - 1);
+        map(segment);
+        int offset = 0;
+        while (offset >= 0 && offset < segmentSize) {
+            int next = next(buffer, offset, segmentSize, null);
+            if (next < 0) {
+                break;
+            }
+            offset = next;
+        }
+        buffer.position(offset);
+        position = segment * segmentSize + offset;
+        synced = position;
+        log.infof("Journal [%s] opened at position [%s]", dir, position);
+    }
+
+    /**
+     * Appends a batch of events.
+     *
+     * @return position after the record of the batch
+     */
+    public long append(Collection<Event> events) throws IOException {
+        return append(events, Collections.emptyList());
+    }
+
+    /**
+     * Appends a batch of events and the tombstones of previous events shed from the ingest queue.
+     * The tombstones are written first, both are forced by the same sync().
+     *
+     * @return position after the record of the batch
+     */
+    public long append(Collection<Event> events, Collection<Event> tombstones) throws IOException {
+        if (events.isEmpty() && tombstones.isEmpty()) {
+            return position;
+        }
+        byte[] shed = tombstones.isEmpty() ? null : payload(tombstones);
+        byte[] payload = events.isEmpty() ? null : payload(events);
+        synchronized (appendLock) {
+            if (shed != null) {
+                write(shed, true);
+            }
+            if (payload != null) {
+                write(payload, false);
+                appends.increment();
+                appendedEvents.add(events.size());
+            }
+            position = segment * segmentSize + buffer.position();
+            return position;
+        }
+    }
+
+    private byte[] payload(Collection<Event> events) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(64 * events.size());
+        EventCodec.encode(events, out, EventCodec.DEFAULT_FRAME_EVENTS);
+        byte[] payload = out.toByteArray();
+        if (payload.length > segmentSize - HEADER) {
+            throw new IOException("Batch of [" + payload.length + "] bytes does not fit on a journal segment of ["
+                    + segmentSize + "] bytes");
+        }
+        return payload;
+    }
+
+    /*
+        Must be called holding the appendLock
+     */
+    private void write(byte[] payload, boolean tombstone) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(payload, 0, payload.length);
+        if (buffer.remaining() < HEADER + payload.length) {
+            roll();
+        }
+        buffer.putInt(tombstone ? -payload.length : payload.length);
+        buffer.putInt((int) crc.getValue());
+        buffer.put(payload);
+    }
+
+    /**
+     * Forces to disk the records appended up to the position.
+     * Callers blocked while a sync is running find their records already forced when they get the lock.
+     */
+    public void sync(long target) throws IOException {
+        synchronized (syncLock) {
+            if (synced >= target) {
+                return;
+            }
+            long flushed;
+            MappedByteBuffer current;
+            synchronized (appendLock) {
+                flushed = position;
+                current = buffer;
+            }
+            // records of previous segments were forced on roll()
+            current.force();
+            syncs.increment();
+            synced = flushed;
+        }
+    }
+
+    public long position() {
+        return position;
+    }
+
+    /**
+     * Marks the position of a snapshot and deletes the segments not needed for recovery.
+     * Appends are not blocked by the file I/O of the checkpoint.
+     */
+    public void checkpoint(long position) throws IOException {
+        synchronized (checkpointLock) {
+            ByteBuffer data = ByteBuffer.allocate(8);
+            data.putLong(position);
+            Path tmp = dir.resolve(CHECKPOINT_FILE + TMP_SUFFIX);
+            try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                data.flip();
+                while (data.hasRemaining()) {
+                    out.write(data);
+                }
+                out.force(true);
+            }
+            Files.move(tmp, dir.resolve(CHECKPOINT_FILE), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            checkpoint = position;
+            long current;
+            synchronized (appendLock) {
+                current = segment;
+            }
+            // segments before the current one are not written anymore
+            long first = Math.min(segment(checkpoint), current);
+            for (Long old : segments()) {
+                if (old < first) {
+                    Files.deleteIfExists(segmentFile(old));
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the events appended after the last checkpoint
+     */
+    public List<Event> recover() throws IOException {
+        List<Event> events = new ArrayList<>();
+        long from;
+        long to;
+        synchronized (checkpointLock) {
+            from = checkpoint;
+        }
+        synchronized (appendLock) {
+            to = position;
+        }
+        for (Long index : segments()) {
+            if (index < segment(from) || index * segmentSize >= to) {
+                continue;
+            }
+            try (FileChannel readChannel = FileChannel.open(segmentFile(index), StandardOpenOption.READ)) {
+                int size = (int) Math.min(segmentSize, readChannel.size());
+                ByteBuffer read = readChannel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+                int offset = 0;
+                int start = index == segment(from) ? (int) (from - index * segmentSize) : 0;
+                while (offset >= 0 && offset < size) {
+                    List<Event> record = offset >= start ? events : null;
+                    int next = next(read, offset, size, record);
+                    if (next < 0) {
+                        break;
+                    }
+                    offset = next;
+                }
+            }
+        }
+        return events;
+    }
+
+    public long getAppends() {
+        return appends.sum();
+    }
+
+    public long getAppendedEvents() {
+        return appendedEvents.sum();
+    }
+
+    public long getSyncs() {
+        return syncs.sum();
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (appendLock) {
+            if (buffer != null) {
+                buffer.force();
+                buffer = null;
+            }
+            if (channel != null) {
+                channel.close();
+                channel = null;
+            }
+        }
+    }
+
+    /*
+        Must be called holding the appendLock
+     */
+    private void roll() throws IOException {
+        buffer.force();
+        channel.close();
+        segment++;
+        map(segment);
+        log.debugf("Journal rolled to segment [%s]", segment);
+    }
+
+    private void map(long index) throws IOException {
+        channel = FileChannel.open(segmentFile(index), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+    }
+
+    /*
+        Reads the record at offset. Its events are decoded into the list if it is not null, or removed from the list if
+        the record is a tombstone.
+        Returns the offset of the next record, or -1 if there is no valid record at offset.
+     */
+    private static int next(ByteBuffer segment, int offset, int size, List<Event> events) throws IOException {
+        if (size - offset < HEADER) {
+            return -1;
+        }
+        int length = segment.getInt(offset);
+        boolean tombstone = length < 0 && length != Integer.MIN_VALUE;
+        if (tombstone) {
+            length = -length;
+        }
+        if (length <= 0 || length > size - offset - HEADER) {
+            return -1;
+        }
+        int crc = segment.getInt(offset + 4);
+        byte[] payload = new byte[length];
+        ByteBuffer record = segment.duplicate();
+        record.position(offset + HEADER);
+        record.get(payload);
+        CRC32 check = new CRC32();
+        check.update(payload, 0, length);
+        if ((int) check.getValue() != crc) {
+            log.warnf("Torn journal record at offset [%s]", offset);
+            return -1;
+        }
+        if (events != null) {
+            try (InputStream in = new ByteArrayInputStream(payload)) {
+                if (tombstone) {
+                    Set<String> shed = new HashSet<>();
+                    EventCodec.decode(in).stream().forEach(e -> shed.add(key(e)));
+                    events.removeIf(e -> shed.contains(key(e)));
+                } else {
+                    events.addAll(EventCodec.decode(in));
+                }
+            }
+        }
+        return offset + HEADER + length;
+    }
+
+    private static String key(Event event) {
+        return event.getTenantId() + "|" + event.getId();
+    }
+
+    private void readCheckpoint() throws IOException {
+        Path file = dir.resolve(CHECKPOINT_FILE);
+        if (!Files.exists(file)) {
+            return;
+        }
+        ByteBuffer data = ByteBuffer.wrap(Files.readAllBytes(file));
+        // a checkpoint file of two positions is recovered from the first one, as it was written
+        if (data.remaining() == 8 || data.remaining() == 16) {
+            checkpoint = data.getLong();
+        }
+    }
+
+    private long segment(long position) {
+        return position / segmentSize;
+    }
+
+    private Path segmentFile(long index) {
+        return dir.resolve(String.format("%020d", index) + SEGMENT_SUFFIX);
+    }
+
+    private List<Long> segments() throws IOException {
+        List<Long> segments = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*" + SEGMENT_SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                try {
+                    segments.add(Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length())));
+                } catch (NumberFormatException e) {
+                    log.warnf("Unknown journal file [%s]", file);
+                }
+            }
+        }
+        Collections.sort(segments);
+        return segments;
+    }
+}
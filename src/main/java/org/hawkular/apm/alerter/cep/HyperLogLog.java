@@ -0,0 +1,112 @@
+/*
+ * Copyright 2015-2016 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.apm.alerter.cep;
+
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * A HyperLogLog cardinality estimator.
+ *
+ * Up to EXACT_LIMIT distinct values the hashes are kept and the count is exact, then the set is replaced by
+ * 2^PRECISION one byte registers, so memory used per estimator is bounded regardless of the number of values.
+ * With the default precision the standard error of the estimation is ~1.6%.
+ *
+ * @author Lucas Ponce
+ */
+public class HyperLogLog implements Serializable {
+
+    private static final int PRECISION = 12;
+    private static final int REGISTERS = 1 << PRECISION;
+    private static final int EXACT_LIMIT = 64;
+    private static final double ALPHA = 0.7213 / (1 + 1.079 / REGISTERS);
+
+    private Set<Long> exact = new HashSet<>();
+    private byte[] registers;
+
+    public void add(Object value) {
+        if (value == null) {
+            return;
+        }
+        long hash = hash(value.toString());
+        if (registers == null) {
+            exact.add(hash);
+            if (exact.size() > EXACT_LIMIT) {
+                registers = new byte[REGISTERS];
+                for (Long h : exact) {
+                    offer(h);
+                }
+                exact = null;
+            }
+        } else {
+            offer(hash);
+        }
+    }
+
+    public long cardinality() {
+        if (registers == null) {
+            return exact.size();
+        }
+        double sum = 0;
+        int zeros = 0;
+        for (byte register : registers) {
+            sum += 1.0 / (1L << register);
+            if (register == 0) {
+                zeros++;
+            }
+        }
+        double estimate = ALPHA * REGISTERS * REGISTERS / sum;
+        if (estimate <= 2.5 * REGISTERS && zeros > 0) {
+            // Linear counting for small cardinalities
+            estimate = REGISTERS * Math.log((double) REGISTERS / zeros);
+        }
+        return Math.round(estimate);
+    }
+
+    public void clear() {
+        exact = new HashSet<>();
+        registers = null;
+    }
+
+    private void offer(long hash) {
+        int index = (int) (hash >>> (64 - PRECISION));
+        long w = hash << PRECISION;
+        int rank = w == 0 ? 64 - PRECISION + 1 : Long.numberOfLeadingZeros(w) + 1;
+        if (rank > registers[index]) {
+            registers[index] = (byte) rank;
+        }
+    }
+
+    /*
+        64 bits FNV-1a followed by the MurmurHash3 finalizer to spread the bits used as register index.
+     */
+    static long hash(String value) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright 2015-2016 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.apm.alerter.cep;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A bounded multi-producer single-consumer queue.
+ *
+ * Producers never block: an offer over capacity is rejected.
+ * A batch can reserve its room first, so it is queued whole or not at all.
+ * The consumer drains elements in batches and parks while the queue is empty.
+ *
+ * @author Lucas Ponce
+ */
+public class IngestQueue<T> {
+
+    private final int capacity;
+    private final ConcurrentLinkedQueue<T> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger depth = new AtomicInteger();
+
+    private volatile Thread consumer;
+    private volatile boolean waiting;
+
+    public IngestQueue(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be greater than 0");
+        }
+        this.capacity = capacity;
+    }
+
+    /*
+        The slot is reserved with a CAS, so depth() never reads over capacity under concurrent producers
+     */
+    public boolean offer(T element) {
+        int current;
+        do {
+            current = depth.get();
+            if (current >= capacity) {
+                return false;
+            }
+        } while (!depth.compareAndSet(current, current + 1));
+        queue.offer(element);
+        if (waiting) {
+            LockSupport.unpark(consumer);
+        }
+        return true;
+    }
+
+    /**
+     * Reserves room for n elements. The room is filled with offerReserved() or returned with release().
+     *
+     * @return false if there is not room for n elements, nothing is reserved then
+     */
+    public boolean reserve(int n) {
+        int current;
+        do {
+            current = depth.get();
+            if (n > capacity - current) {
+                return false;
+            }
+        } while (!depth.compareAndSet(current, current + n));
+        return true;
+    }
+
+    /**
+     * Queues elements into the room reserved by reserve(), so they are never rejected.
+     */
+    public void offerReserved(Collection<T> elements) {
+        for (T element : elements) {
+            queue.offer(element);
+        }
+        if (waiting) {
+            LockSupport.unpark(consumer);
+        }
+    }
+
+    /**
+     * Returns the room of n reserved elements that are not going to be queued.
+     */
+    public void release(int n) {
+        depth.addAndGet(-n);
+    }
+
+    /**
+     * Moves up to max elements into batch. It must be called only from the consumer thread.
+     *
+     * @return number of elements drained
+     */
+    public int drain(List<T> batch, int max) {
+        int drained = 0;
+        T element;
+        while (drained < max && (element = queue.poll()) != null) {
+            batch.add(element);
+            drained++;
+        }
+        if (drained > 0) {
+            depth.addAndGet(-drained);
+        }
+        return drained;
+    }
+
+    /**
+     * Removes the head of the queue. Unlike drain() it can be called from any thread.
+     *
+     * @return the removed element or null if the queue is empty
+     */
+    public T poll() {
+        T element = queue.poll();
+        if (element != null) {
+            depth.decrementAndGet();
+        }
+        return element;
+    }
+
+    /**
+     * Parks the consumer thread until an element is offered or the timeout expires.
+     */
+    public void await(long nanos) {
+        consumer = Thread.currentThread();
+        waiting = true;
+        try {
+            if (queue.isEmpty()) {
+                LockSupport.parkNanos(this, nanos);
+            }
+        } finally {
+            waiting = false;
+        }
+    }
+
+    public int depth() {
+        return depth.get();
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright 2015-2016 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.apm.alerter.cep;
+
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.io.Serializable;
+
+import org.kie.api.runtime.rule.AccumulateFunction;
+
+/**
+ * Base of the accumulate functions over numeric tags or context values.
+ *
+ * Values are Strings on Events, they are parsed as double and non numeric values are ignored.
+ * State per group is constant: the number of values and their sum, min and max.
+ * Functions without numeric values return NaN, so any comparison on a having() constraint is false.
+ *
+ * @author Lucas Ponce
+ */
+public abstract class NumericFunction implements AccumulateFunction {
+
+    public static class NumericData implements Serializable {
+        long count;
+        double sum;
+        double min;
+        double max;
+    }
+
+    @Override
+    public Serializable createContext() {
+        return new NumericData();
+    }
+
+    @Override
+    public void init(Serializable context) throws Exception {
+        NumericData data = (NumericData) context;
+        data.count = 0;
+        data.sum = 0;
+        data.min = Double.POSITIVE_INFINITY;
+        data.max = Double.NEGATIVE_INFINITY;
+    }
+
+    @Override
+    public void accumulate(Serializable context, Object value) {
+        Double number = toDouble(value);
+        if (number == null) {
+            return;
+        }
+        NumericData data = (NumericData) context;
+        data.count++;
+        data.sum += number;
+        data.min = Math.min(data.min, number);
+        data.max = Math.max(data.max, number);
+    }
+
+    @Override
+    public void reverse(Serializable context, Object value) throws Exception {
+        Double number = toDouble(value);
+        if (number == null) {
+            return;
+        }
+        NumericData data = (NumericData) context;
+        data.count--;
+        data.sum -= number;
+    }
+
+    @Override
+    public Object getResult(Serializable context) throws Exception {
+        NumericData data = (NumericData) context;
+        return data.count == 0 ? Double.NaN : result(data);
+    }
+
+    protected abstract double result(NumericData data);
+
+    @Override
+    public boolean supportsReverse() {
+        return true;
+    }
+
+    @Override
+    public Class<?> getResultType() {
+        return Double.class;
+    }
+
+    @Override
+    public void writeExternal(ObjectOutput out) throws IOException {
+    }
+
+    @Override
+    public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
+    }
+
+    static Double toDouble(Object value) {
+        if (value == null) {
+            return null;
+        }
+        if (value instanceof Number) {
+            return ((Number) value).doubleValue();
+        }
+        try {
+            return Double.valueOf(value.toString().trim());
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright 2015-2016 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.apm.alerter.cep;
+
+import java.util.function.LongSupplier;
+
+/**
+ * Rate per second of a counter over a sliding window.
+ *
+ * The counter is not touched on the hot path: tick() samples its total, usually once per second, and the rate is
+ * calculated from the oldest and the newest samples of the window.
+ *
+ * @author Lucas Ponce
+ */
+public class RateMeter {
+    private final LongSupplier counter;
+    private final long[] totals;
+    private final long[] times;
+    private long ticks;
+
+    /**
+     * @param counter total of the counter
+     * @param samples number of samples of the window
+     */
+    public RateMeter(LongSupplier counter, int samples) {
+        if (counter == null || samples < 2) {
+            throw new IllegalArgumentException("counter must be not null and samples greater than 1");
+        }
+        this.counter = counter;
+        this.totals = new long[samples];
+        this.times = new long[samples];
+    }
+
+    public synchronized void tick() {
+        tick(System.nanoTime());
+    }
+
+    synchronized void tick(long nanos) {
+        int i = (int) (ticks % totals.length);
+        totals[i] = counter.getAsLong();
+        times[i] = nanos;
+        ticks++;
+    }
+
+    /**
+     * @return events per second over the window, 0 until two samples are taken
+     */
+    public synchronized double getRate() {
+        if (ticks < 2) {
+            return 0;
+        }
+        int newest = (int) ((ticks - 1) % totals.length);
+        int oldest = ticks < totals.length ? 0 : (int) (ticks % totals.length);
+        long elapsed = times[newest] - times[oldest];
+        return elapsed <= 0 ? 0 : (totals[newest] - totals[oldest]) * 1e9 / elapsed;
+    }
+}
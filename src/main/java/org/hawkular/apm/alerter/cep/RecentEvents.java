@@ -0,0 +1,67 @@
+/*
+ * Copyright 2015-2016 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.apm.alerter.cep;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.hawkular.alerts.api.model.event.Event;
+
+/**
+ * Ring buffer of the last events inserted into a session.
+ * It is used to warm a new session before it replaces the running one.
+ *
+ * Events are numbered by a sequence, so a reader can ask only for the events added after a previous read.
+ * It is not thread safe, callers must synchronize the access.
+ *
+ * @author Lucas Ponce
+ */
+class RecentEvents {
+    private final Event[] events;
+    private long sequence;
+
+    RecentEvents(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        this.events = new Event[capacity];
+    }
+
+    void add(Event event) {
+        events[(int) (sequence % events.length)] = event;
+        sequence++;
+    }
+
+    /**
+     * @return sequence of the next event to be added
+     */
+    long sequence() {
+        return sequence;
+    }
+
+    /**
+     * @return the events added from the given sequence that are still in the buffer, in insertion order
+     */
+    List<Event> since(long from) {
+        long first = Math.max(from, sequence - events.length);
+        List<Event> recent = new ArrayList<>((int) Math.max(0, sequence - first));
+        for (long i = first; i < sequence; i++) {
+            recent.add(events[(int) (i % events.length)]);
+        }
+        return recent;
+    }
+}
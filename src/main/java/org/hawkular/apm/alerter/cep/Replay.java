@@ -0,0 +1,252 @@
+/*
+ * Copyright 2015-2016 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.apm.alerter.cep;
+
+import static org.hawkular.alerts.api.model.trigger.Mode.FIRING;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.hawkular.alerts.api.model.condition.ExternalCondition;
+import org.hawkular.alerts.api.model.event.Event;
+import org.hawkular.alerts.api.model.trigger.FullTrigger;
+import org.hawkular.alerts.api.model.trigger.Trigger;
+import org.hawkular.apm.alerter.Expression;
+import org.hawkular.apm.alerter.ResultPayload;
+import org.jboss.logging.Logger;
+import org.kie.api.KieBaseConfiguration;
+import org.kie.api.conf.EventProcessingOption;
+import org.kie.api.io.ResourceType;
+import org.kie.api.runtime.KieSession;
+import org.kie.api.runtime.KieSessionConfiguration;
+import org.kie.api.runtime.conf.ClockTypeOption;
+import org.kie.api.time.SessionPseudoClock;
+import org.kie.internal.KnowledgeBase;
+import org.kie.internal.KnowledgeBaseFactory;
+import org.kie.internal.builder.KnowledgeBuilder;
+import org.kie.internal.builder.KnowledgeBuilderFactory;
+import org.kie.internal.io.ResourceFactory;
+
+/**
+ * Evaluates an expression against recorded events on an isolated session, i.e. for backtesting a condition before
+ * enabling it.
+ *
+ * The session uses a pseudo clock driven by the ctime of the events, so a recording is evaluated as fast as possible
+ * with the same windows than the live session. Events are expected in ctime order, events older than the clock are
+ * still evaluated at their ctime but counted as out of order.
+ * The live sessions are not touched, results are collected here instead of being sent to the Alerts system.
+ *
+ * @author Lucas Ponce
+ */
+public class Replay {
+    private final Logger log = Logger.getLogger(Replay.class);
+
+    public static final String REPLAY_ALERTER_ID = "HawkularAPM";
+
+    private final String tenantId;
+    private final String expression;
+    private final String source;
+    private final Trigger trigger;
+    private final boolean nativeEngine;
+    private final int maxResults;
+
+    private String dataId;
+
+    private KieSession kieSession;
+    private WindowEngine windowEngine;
+
+    private final List<Event> results = new ArrayList<>();
+    private final List<Event> single = new ArrayList<>(1);
+
+    private long clock = Long.MIN_VALUE;
+    private long events;
+    private long outOfOrder;
+    private long totalResults;
+    private long firstCtime = Long.MIN_VALUE;
+    private long start;
+    private long compileMs;
+
+    /**
+     * @param tenantId the tenant of the replayed events
+     * @param expression the ExternalCondition expression to evaluate
+     * @param dataId the dataId of the condition, if null it is taken from the first event
+     * @param source the source of the trigger, if null the events source is not checked
+     * @param nativeEngine true to evaluate on the native windowed engine instead of Drools
+     * @param maxResults max number of result events kept, the rest are only counted
+     */
+    public Replay(String tenantId, String expression, String dataId, String source, boolean nativeEngine,
+                  int maxResults) {
+        if (tenantId == null || tenantId.isEmpty()) {
+            throw new IllegalArgumentException("TenantId must be not empty");
+        }
+        if (expression == null || expression.isEmpty()) {
+            throw new IllegalArgumentException("Expression must be not empty");
+        }
+        this.tenantId = tenantId;
+        this.expression = expression;
+        this.dataId = dataId;
+        this.source = source;
+        this.nativeEngine = nativeEngine;
+        this.maxResults = maxResults;
+        trigger = new Trigger(tenantId, "replay-" + UUID.randomUUID().toString(), "Replay");
+        if (source != null) {
+            trigger.setSource(source);
+        }
+        this.start = System.nanoTime();
+        if (dataId != null) {
+            build();
+        }
+    }
+
+    /**
+     * Advances the clock to the ctime of the event and evaluates it.
+     */
+    public void add(Event event) {
+        if (event == null) {
+            return;
+        }
+        event.setTenantId(tenantId);
+        if (source == null) {
+            event.setDataSource(trigger.getSource());
+        }
+        if (dataId == null) {
+            if (event.getDataId() == null) {
+                throw new IllegalArgumentException("Event [" + event.getId() + "] has not a dataId");
+            }
+            dataId = event.getDataId();
+            build();
+        }
+        events++;
+        long ctime = event.getCtime();
+        if (firstCtime == Long.MIN_VALUE) {
+            firstCtime = ctime;
+        }
+        if (ctime < clock) {
+            outOfOrder++;
+        } else {
+            clock = ctime;
+        }
+        if (nativeEngine) {
+            single.add(event);
+            windowEngine.insert(single, clock);
+            single.clear();
+        } else {
+            SessionPseudoClock sessionClock = kieSession.getSessionClock();
+            long delta = clock - sessionClock.getCurrentTime();
+            if (delta > 0) {
+                sessionClock.advanceTime(delta, TimeUnit.MILLISECONDS);
+            }
+            kieSession.insert(event);
+            kieSession.fireAllRules();
+        }
+    }
+
+    /**
+     * Releases the session.
+     *
+     * @return the throughput stats of the replay
+     */
+    public Map<String, Object> finish() {
+        long durationNs = System.nanoTime() - start;
+        if (kieSession != null) {
+            kieSession.dispose();
+            kieSession = null;
+        }
+        if (windowEngine != null) {
+            windowEngine.clear();
+        }
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("engine", nativeEngine ? "native" : "drools");
+        stats.put("dataId", dataId);
+        stats.put("events", events);
+        stats.put("outOfOrderEvents", outOfOrder);
+        stats.put("results", totalResults);
+        stats.put("resultsTruncated", totalResults > results.size());
+        stats.put("compileMs", compileMs);
+        stats.put("durationMs", TimeUnit.NANOSECONDS.toMillis(durationNs));
+        stats.put("eventsPerSecond", durationNs > 0 ? events * 1000000000L / durationNs : 0);
+        if (events > 0) {
+            stats.put("firstCtime", firstCtime);
+            stats.put("lastCtime", clock);
+        }
+        return stats;
+    }
+
+    public List<Event> getResults() {
+        return results;
+    }
+
+    private void build() {
+        long compileStart = System.nanoTime();
+        ExternalCondition condition = new ExternalCondition(trigger.getId(), FIRING, dataId, REPLAY_ALERTER_ID,
+                expression);
+        FullTrigger fullTrigger = new FullTrigger(trigger, null, Collections.singletonList(condition));
+        ResultSink sink = new ReplayResults();
+        if (nativeEngine) {
+            windowEngine = new WindowEngine(sink);
+            windowEngine.update(Collections.singletonList(fullTrigger), false);
+            if (windowEngine.getRules() == 0) {
+                throw new IllegalArgumentException("Expression [" + expression + "] cannot be parsed");
+            }
+        } else {
+            Expression exp = new Expression(null, Collections.singletonList(fullTrigger), false);
+            KieBaseConfiguration kieBaseConfiguration = KnowledgeBaseFactory.newKnowledgeBaseConfiguration();
+            kieBaseConfiguration.setOption( EventProcessingOption.STREAM );
+            KnowledgeBase kieBase = KnowledgeBaseFactory.newKnowledgeBase(kieBaseConfiguration);
+            KnowledgeBuilder kbuilder = KnowledgeBuilderFactory.newKnowledgeBuilder(kieBase);
+            kbuilder.add(ResourceFactory.newByteArrayResource(exp.getDrl().getBytes()), ResourceType.DRL);
+            if (kbuilder.hasErrors()) {
+                throw new IllegalArgumentException("Expression [" + expression + "] cannot be compiled: "
+                        + kbuilder.getErrors());
+            }
+            kieBase.addKnowledgePackages(kbuilder.getKnowledgePackages());
+            KieSessionConfiguration kieSessionConf = KnowledgeBaseFactory.newKnowledgeSessionConfiguration();
+            kieSessionConf.setOption( ClockTypeOption.get( "pseudo" ) );
+            kieSession = kieBase.newKieSession(kieSessionConf, null);
+            kieSession.setGlobal("results", sink);
+            kieSession.setGlobal("log", log);
+        }
+        compileMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - compileStart);
+    }
+
+    /*
+        Results are kept up to maxResults, collected events are serialized here as there is not a batcher.
+     */
+    private class ReplayResults implements ResultSink {
+
+        @Override
+        public void sendResult(Event event) {
+            sendResult(event, null);
+        }
+
+        @Override
+        public void sendResult(Event event, List<Event> events) {
+            totalResults++;
+            if (results.size() < maxResults) {
+                if (events != null && ResultPayload.getMode() == ResultPayload.Mode.LAZY) {
+                    ResultPayload.serialize(event, events);
+                }
+                results.add(event);
+            }
+        }
+    }
+}
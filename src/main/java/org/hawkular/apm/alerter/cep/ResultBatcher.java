@@ -0,0 +1,274 @@
+/*
+ * Copyright 2015-2016 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.apm.alerter.cep;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.hawkular.alerts.api.model.event.Event;
+import org.hawkular.apm.alerter.ResultPayload;
+import org.jboss.logging.Logger;
+
+/**
+ * Accumulates result events and sends them in batches.
+ *
+ * A batch is flushed when it reaches batchSize or when lingerMs have passed since its first event, with a lingerMs of 0
+ * the results available are flushed as soon as the first one arrives.
+ * Pending results are bounded by queueSize, when the queue is full the oldest result is discarded.
+ * A failed batch is retried up to maxRetries times with an exponential backoff starting at backoffMs, retries stop
+ * once the batcher thread is interrupted.
+ * Results added with their collected events get those events serialized here, outside of the rules firing thread.
+ *
+ * @author Lucas Ponce
+ */
+public class ResultBatcher implements Runnable {
+    private final Logger log = Logger.getLogger(ResultBatcher.class);
+
+    private static final long MAX_BACKOFF_MS = 30000;
+
+    /*
+        Max time the batcher waits on the queue before checking if it is stopped
+     */
+    private static final long POLL_MS = 100;
+
+    @FunctionalInterface
+    public interface Sender {
+        void send(Collection<Event> events) throws Exception;
+    }
+
+    private final Sender sender;
+    private final BlockingQueue<Pending> queue;
+    private final int batchSize;
+    private final long lingerMs;
+    private final int maxRetries;
+    private final long backoffMs;
+
+    private volatile boolean running = true;
+    private final CountDownLatch stopped = new CountDownLatch(1);
+
+    private final LongAdder sentEvents = new LongAdder();
+    private final LongAdder sentBatches = new LongAdder();
+    private final LongAdder droppedEvents = new LongAdder();
+    private final LongAdder failedEvents = new LongAdder();
+    private final LongAdder retries = new LongAdder();
+
+    /*
+        Duration of the successful send() calls, and time from the result queued to its batch sent
+     */
+    private final LatencyHistogram sendLatency = new LatencyHistogram();
+    private final LatencyHistogram resultLatency = new LatencyHistogram();
+
+    public ResultBatcher(Sender sender, int queueSize, int batchSize, long lingerMs, int maxRetries,
+                         long backoffMs) {
+        if (sender == null) {
+            throw new IllegalArgumentException("sender must be not null");
+        }
+        if (queueSize < 1) {
+            throw new IllegalArgumentException("queueSize must be greater than 0");
+        }
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("batchSize must be greater than 0");
+        }
+        if (lingerMs < 0) {
+            throw new IllegalArgumentException("lingerMs must not be negative");
+        }
+        if (maxRetries < 0) {
+            throw new IllegalArgumentException("maxRetries must not be negative");
+        }
+        if (backoffMs < 0) {
+            throw new IllegalArgumentException("backoffMs must not be negative");
+        }
+        this.sender = sender;
+        this.queue = new ArrayBlockingQueue<>(queueSize);
+        this.batchSize = batchSize;
+        this.lingerMs = lingerMs;
+        this.maxRetries = maxRetries;
+        this.backoffMs = backoffMs;
+    }
+
+    public void add(Event result) {
+        add(result, null);
+    }
+
+    /**
+     * @param result the result event
+     * @param events collected events to be serialized into the result before it is sent
+     */
+    public void add(Event result, List<Event> events) {
+        Pending pending = new Pending(result, events);
+        while (!queue.offer(pending)) {
+            if (queue.poll() != null) {
+                droppedEvents.increment();
+            }
+        }
+    }
+
+    @Override
+    public void run() {
+        log.info("Starting result batcher");
+        List<Pending> batch = new ArrayList<>(batchSize);
+        while (running) {
+            try {
+                // the wait for the first result does not depend on the linger, a lingerMs of 0 would spin
+                Pending first = queue.poll(POLL_MS, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                long deadline = System.currentTimeMillis() + lingerMs;
+                // a stop flushes the batch without waiting for the linger
+                while (batch.size() < batchSize && running) {
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0) {
+                        queue.drainTo(batch, batchSize - batch.size());
+                        break;
+                    }
+                    Pending next = queue.poll(Math.min(remaining, POLL_MS), TimeUnit.MILLISECONDS);
+                    if (next != null) {
+                        batch.add(next);
+                    }
+                }
+                flush(batch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                running = false;
+            } catch (Exception e) {
+                log.error("Unexpected error on result batcher.", e);
+            }
+            batch.clear();
+        }
+        // Last attempt with pending results
+        try {
+            queue.drainTo(batch);
+            if (!batch.isEmpty()) {
+                flush(batch);
+            }
+        } finally {
+            stopped.countDown();
+        }
+        log.info("Stopping result batcher");
+    }
+
+    /**
+     * Stops the batcher and waits for the flush of the pending results.
+     *
+     * @return false if the batcher did not finish within the timeout
+     */
+    public boolean stop(long timeoutMs) throws InterruptedException {
+        running = false;
+        return stopped.await(timeoutMs, TimeUnit.MILLISECONDS);
+    }
+
+    private void flush(List<Pending> batch) {
+        List<Event> events = new ArrayList<>(batch.size());
+        for (Pending pending : batch) {
+            if (pending.events != null) {
+                try {
+                    ResultPayload.serialize(pending.result, pending.events);
+                } catch (Exception e) {
+                    log.errorf(e, "Error serializing collected events of result [%s]", pending.result.getId());
+                }
+            }
+            events.add(pending.result);
+        }
+        long backoff = backoffMs;
+        for (int attempt = 0; attempt <= maxRetries; attempt++) {
+            try {
+                long start = System.nanoTime();
+                sender.send(events);
+                long end = System.nanoTime();
+                sendLatency.record(end - start);
+                for (int i = 0; i < batch.size(); i++) {
+                    resultLatency.record(end - batch.get(i).queued);
+                }
+                sentEvents.add(events.size());
+                sentBatches.increment();
+                return;
+            } catch (Exception e) {
+                if (attempt == maxRetries || Thread.currentThread().isInterrupted()) {
+                    log.errorf(e, "Error sending [%s] result events. Discarding them after [%s] retries.",
+                            events.size(), attempt);
+                    failedEvents.add(events.size());
+                    return;
+                }
+                log.warnf("Error sending [%s] result events. Retrying in [%s] ms. Reason: %s", events.size(),
+                        backoff, e.getMessage());
+                retries.increment();
+                try {
+                    Thread.sleep(backoff);
+                } catch (InterruptedException ie) {
+                    log.errorf("Interrupted while retrying. Discarding [%s] result events.", events.size());
+                    failedEvents.add(events.size());
+                    Thread.currentThread().interrupt();
+                    running = false;
+                    return;
+                }
+                backoff = Math.min(backoff * 2, MAX_BACKOFF_MS);
+            }
+        }
+    }
+
+    public int getPending() {
+        return queue.size();
+    }
+
+    public long getSentEvents() {
+        return sentEvents.sum();
+    }
+
+    public long getSentBatches() {
+        return sentBatches.sum();
+    }
+
+    public long getDroppedEvents() {
+        return droppedEvents.sum();
+    }
+
+    public long getFailedEvents() {
+        return failedEvents.sum();
+    }
+
+    public long getRetries() {
+        return retries.sum();
+    }
+
+    public LatencyHistogram getSendLatency() {
+        return sendLatency;
+    }
+
+    public LatencyHistogram getResultLatency() {
+        return resultLatency;
+    }
+
+    private static class Pending {
+        Event result;
+        List<Event> events;
+        long queued;
+
+        Pending(Event result, List<Event> events) {
+            this.result = result;
+            this.events = events;
+            this.queued = System.nanoTime();
+        }
+    }
+}
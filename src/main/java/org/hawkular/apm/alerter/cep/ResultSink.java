@@ -0,0 +1,40 @@
+/*
+ * Copyright 2015-2016 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.apm.alerter.cep;
+
+import java.util.List;
+
+import org.hawkular.alerts.api.model.event.Event;
+
+/**
+ * Receives the result events produced by the rules. It is the "results" global of the rules.
+ *
+ * @author Lucas Ponce
+ */
+@FunctionalInterface
+public interface ResultSink {
+
+    void sendResult(Event event);
+
+    /**
+     * @param event the result event
+     * @param events the events collected by the rule that produced the result
+     */
+    default void sendResult(Event event, List<Event> events) {
+        sendResult(event);
+    }
+}
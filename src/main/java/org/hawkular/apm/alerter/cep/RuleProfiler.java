@@ -0,0 +1,150 @@
+/*
+ * Copyright 2015-2016 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.apm.alerter.cep;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.hawkular.alerts.api.model.event.Event;
+import org.kie.api.event.rule.AfterMatchFiredEvent;
+import org.kie.api.event.rule.BeforeMatchFiredEvent;
+import org.kie.api.event.rule.DefaultAgendaEventListener;
+import org.kie.api.event.rule.DefaultRuleRuntimeEventListener;
+import org.kie.api.event.rule.MatchCancelledEvent;
+import org.kie.api.event.rule.MatchCreatedEvent;
+import org.kie.api.event.rule.ObjectInsertedEvent;
+
+/**
+ * Per rule counters and consequence latencies of the CEP sessions, and inserted events per dataId.
+ *
+ * Counters are LongAdders and latencies are recorded into a LatencyHistogram, so the listeners do not lock.
+ * Listeners are created per KieSession: a KieSession fires its rules from a single thread, so the start of the
+ * consequence in progress is kept in a plain field.
+ *
+ * @author Lucas Ponce
+ */
+public class RuleProfiler {
+    private static final String NO_DATA_ID = "";
+
+    private final Map<String, RuleStats> rules = new ConcurrentHashMap<>();
+    private final Map<String, LongAdder> inserts = new ConcurrentHashMap<>();
+
+    public AgendaListener newAgendaListener() {
+        return new AgendaListener();
+    }
+
+    public RuntimeListener newRuntimeListener() {
+        return new RuntimeListener();
+    }
+
+    /**
+     * @return rules and dataIds sorted by name
+     */
+    public Map<String, Object> getProfile() {
+        Map<String, Object> ruleProfile = new TreeMap<>();
+        rules.entrySet().stream().forEach(entry -> ruleProfile.put(entry.getKey(), entry.getValue().toMap()));
+        Map<String, Object> insertProfile = new TreeMap<>();
+        inserts.entrySet().stream().forEach(entry -> insertProfile.put(entry.getKey(), entry.getValue().sum()));
+        Map<String, Object> profile = new TreeMap<>();
+        profile.put("rules", ruleProfile);
+        profile.put("inserts", insertProfile);
+        return profile;
+    }
+
+    /**
+     * @return fire count per rule
+     */
+    public Map<String, Long> getFirings() {
+        Map<String, Long> firings = new TreeMap<>();
+        rules.entrySet().stream().forEach(entry -> firings.put(entry.getKey(), entry.getValue().fired.getCount()));
+        return firings;
+    }
+
+    public void reset() {
+        rules.clear();
+        inserts.clear();
+    }
+
+    /*
+        get() first, so the common case does not lock a bin of the map
+     */
+    private RuleStats stats(String rule) {
+        RuleStats stats = rules.get(rule);
+        return stats != null ? stats : rules.computeIfAbsent(rule, r -> new RuleStats());
+    }
+
+    private static class RuleStats {
+        final LongAdder matchesCreated = new LongAdder();
+        final LongAdder matchesCancelled = new LongAdder();
+        final LatencyHistogram fired = new LatencyHistogram();
+
+        Map<String, Object> toMap() {
+            Map<String, Object> map = new TreeMap<>();
+            map.put("matchesCreated", matchesCreated.sum());
+            map.put("matchesCancelled", matchesCancelled.sum());
+            map.put("fired", fired.getCount());
+            map.put("consequence", fired.toMap());
+            return map;
+        }
+    }
+
+    public class AgendaListener extends DefaultAgendaEventListener {
+        private long firing;
+
+        @Override
+        public void matchCreated(MatchCreatedEvent event) {
+            stats(event.getMatch().getRule().getName()).matchesCreated.increment();
+        }
+
+        @Override
+        public void matchCancelled(MatchCancelledEvent event) {
+            stats(event.getMatch().getRule().getName()).matchesCancelled.increment();
+        }
+
+        @Override
+        public void beforeMatchFired(BeforeMatchFiredEvent event) {
+            firing = System.nanoTime();
+        }
+
+        @Override
+        public void afterMatchFired(AfterMatchFiredEvent event) {
+            stats(event.getMatch().getRule().getName()).fired.record(System.nanoTime() - firing);
+        }
+    }
+
+    public class RuntimeListener extends DefaultRuleRuntimeEventListener {
+
+        /*
+            Only events inserted from outside the rules are counted, facts inserted by rules have a rule
+         */
+        @Override
+        public void objectInserted(ObjectInsertedEvent event) {
+            if (event.getRule() != null || !(event.getObject() instanceof Event)) {
+                return;
+            }
+            String dataId = ((Event) event.getObject()).getDataId();
+            String key = dataId == null ? NO_DATA_ID : dataId;
+            LongAdder counter = inserts.get(key);
+            if (counter == null) {
+                counter = inserts.computeIfAbsent(key, k -> new LongAdder());
+            }
+            counter.increment();
+        }
+    }
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright 2015-2016 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.apm.alerter.cep;
+
+/**
+ * Defines what the engine does with new events when an ingest queue is overloaded.
+ *
+ * NONE: events over capacity are rejected and clients are asked to retry once the high-water mark is reached.
+ * DROP_OLDEST: oldest queued events are discarded to make room for the new ones, clients are never asked to retry.
+ * TENANT_QUOTA: events of a tenant over its quota of queued events are discarded, so a noisy tenant cannot fill the
+ * queue for the rest.
+ *
+ * @author Lucas Ponce
+ */
+public enum SheddingPolicy {
+    NONE("none"), DROP_OLDEST("drop-oldest"), TENANT_QUOTA("tenant-quota");
+
+    private final String value;
+
+    SheddingPolicy(String value) {
+        this.value = value;
+    }
+
+    public String getValue() {
+        return value;
+    }
+
+    public static SheddingPolicy fromValue(String value) {
+        for (SheddingPolicy policy : values()) {
+            if (policy.value.equalsIgnoreCase(value)) {
+                return policy;
+            }
+        }
+        throw new IllegalArgumentException("Unknown shedding policy [" + value + "]");
+    }
+}
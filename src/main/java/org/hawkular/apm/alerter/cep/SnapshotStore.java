@@ -0,0 +1,87 @@
+/*
+ * Copyright 2015-2016 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.apm.alerter.cep;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import org.hawkular.alerts.api.model.event.Event;
+import org.hawkular.apm.alerter.EventCodec;
+
+/**
+ * Local file with the events held in the working memory of the CEP sessions.
+ *
+ * Events are stored with the EventCodec binary format, as a stream of frames, one or more per shard.
+ * A snapshot is written into a temporary file and then moved over the previous one, so a crash while writing never
+ * leaves a partial snapshot.
+ *
+ * @author Lucas Ponce
+ */
+class SnapshotStore {
+    private static final String SNAPSHOT_FILE = "events.snapshot";
+    private static final String TMP_SUFFIX = ".tmp";
+
+    private final Path file;
+
+    SnapshotStore(Path dir) throws IOException {
+        Files.createDirectories(dir);
+        this.file = dir.resolve(SNAPSHOT_FILE);
+    }
+
+    void write(List<Collection<Event>> shards) throws IOException {
+        Path tmp = file.resolveSibling(SNAPSHOT_FILE + TMP_SUFFIX);
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            OutputStream out = new BufferedOutputStream(Channels.newOutputStream(channel));
+            for (Collection<Event> events : shards) {
+                EventCodec.encode(events, out, EventCodec.DEFAULT_FRAME_EVENTS);
+            }
+            out.flush();
+            // the snapshot must be on disk before it replaces the previous one
+            channel.force(true);
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * @return events of the last snapshot, empty if there is no snapshot
+     */
+    List<Event> read() throws IOException {
+        if (!Files.exists(file)) {
+            return Collections.emptyList();
+        }
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(file))) {
+            return EventCodec.decode(in);
+        }
+    }
+
+    Path getFile() {
+        return file;
+    }
+}
@@ -0,0 +1,298 @@
+/*
+ * Copyright 2015-2016 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.apm.alerter.cep;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+import org.hawkular.alerts.api.model.condition.Condition;
+import org.hawkular.alerts.api.model.condition.ExternalCondition;
+import org.hawkular.alerts.api.model.event.Event;
+import org.hawkular.alerts.api.model.trigger.FullTrigger;
+import org.hawkular.alerts.api.model.trigger.Trigger;
+import org.hawkular.apm.alerter.Expression;
+import org.jboss.logging.Logger;
+
+/**
+ * Evaluates the groupBy DSL without Drools.
+ *
+ * Each ExternalCondition is compiled into a WindowRule. Rules are indexed by tenantId, source and dataId, so an
+ * event is only evaluated by the rules that can match it.
+ * Changed groups are evaluated once per insert() or advance() call, as Drools does on each fireAllRules().
+ * Rules are queued by the expiration of their oldest event, so only the rules with events leaving the window are
+ * expired.
+ *
+ * The engine is not thread safe by itself, methods are synchronized.
+ *
+ * @author Lucas Ponce
+ */
+public class WindowEngine {
+    private final Logger log = Logger.getLogger(WindowEngine.class);
+
+    /*
+        Results of the replayed events
+     */
+    private static final ResultSink DISCARDED_RESULTS = event -> { };
+
+    private final ResultSink results;
+
+    /*
+        Rule key -> Rule
+     */
+    private Map<String, WindowRule> rules = new HashMap<>();
+
+    /*
+        tenantId|source|dataId -> Rules
+     */
+    private Map<String, List<WindowRule>> index = new HashMap<>();
+
+    /*
+        Trigger key -> Rule keys of the trigger conditions
+     */
+    private Map<String, List<String>> triggerRules = new HashMap<>();
+
+    /*
+        Rules by the time their oldest event leaves the window. A rule may be queued more than once, the entry equal
+        to WindowRule.scheduled is the current one and the rest are ignored when polled.
+     */
+    private PriorityQueue<Timer> timers = new PriorityQueue<>();
+
+    private final List<WindowRule.Group> dirty = new ArrayList<>();
+
+    public WindowEngine(ResultSink results) {
+        this.results = results;
+    }
+
+    /**
+     * @param activeTriggers triggers to deploy
+     * @param keepState if true unchanged conditions keep their groups and windows
+     */
+    public synchronized void update(Collection<FullTrigger> activeTriggers, boolean keepState) {
+        Map<String, WindowRule> updated = new HashMap<>();
+        Map<String, List<String>> updatedTriggers = new HashMap<>();
+        for (FullTrigger fullTrigger : activeTriggers) {
+            compile(fullTrigger, keepState, updated, updatedTriggers);
+        }
+        deploy(updated, updatedTriggers);
+    }
+
+    /**
+     * Deploys only the changes of the active triggers, the rest of the rules are not touched.
+     * Unchanged conditions of a changed trigger keep their groups and windows.
+     *
+     * @param changed created or updated triggers
+     * @param removed removed triggers
+     */
+    public synchronized void update(Collection<FullTrigger> changed, Collection<Trigger> removed) {
+        Map<String, WindowRule> updated = new HashMap<>(rules);
+        Map<String, List<String>> updatedTriggers = new HashMap<>(triggerRules);
+        List<Trigger> touched = new ArrayList<>(removed);
+        changed.stream().forEach(fullTrigger -> touched.add(fullTrigger.getTrigger()));
+        for (Trigger trigger : touched) {
+            List<String> keys = updatedTriggers.remove(key(trigger));
+            if (keys != null) {
+                keys.stream().forEach(updated::remove);
+            }
+        }
+        for (FullTrigger fullTrigger : changed) {
+            compile(fullTrigger, true, updated, updatedTriggers);
+        }
+        deploy(updated, updatedTriggers);
+    }
+
+    private void compile(FullTrigger fullTrigger, boolean keepState, Map<String, WindowRule> updated,
+                         Map<String, List<String>> updatedTriggers) {
+        Trigger trigger = fullTrigger.getTrigger();
+        List<WindowRule> compiled = new ArrayList<>();
+        try {
+            for (Condition condition : fullTrigger.getConditions()) {
+                if (!(condition instanceof ExternalCondition)) {
+                    continue;
+                }
+                ExternalCondition external = (ExternalCondition) condition;
+                String key = Expression.fingerprint(trigger.getTenantId(), trigger.getId(),
+                        external.getConditionId(), trigger.getSource(), external.getDataId(),
+                        external.getAlerterId(), external.getExpression());
+                WindowRule rule = keepState ? rules.get(key) : null;
+                compiled.add(rule != null ? rule : new WindowRule(key, trigger, external));
+            }
+        } catch (Exception e) {
+            log.errorf("Trigger [%s-%s] cannot be parsed. Skipping. Reason: %s", trigger.getTenantId(),
+                    trigger.getId(), e.getMessage());
+            return;
+        }
+        List<String> keys = new ArrayList<>(compiled.size());
+        compiled.stream().forEach(rule -> {
+            updated.put(rule.getKey(), rule);
+            keys.add(rule.getKey());
+        });
+        updatedTriggers.put(key(trigger), keys);
+    }
+
+    private void deploy(Map<String, WindowRule> updated, Map<String, List<String>> updatedTriggers) {
+        Map<String, List<WindowRule>> updatedIndex = new HashMap<>();
+        updated.values().stream()
+                .forEach(rule -> updatedIndex.computeIfAbsent(rule.getIndex(), i -> new ArrayList<>()).add(rule));
+        PriorityQueue<Timer> updatedTimers = new PriorityQueue<>();
+        updated.values().stream().forEach(rule -> {
+            rule.scheduled = Long.MAX_VALUE;
+            schedule(rule, updatedTimers);
+        });
+        rules = updated;
+        triggerRules = updatedTriggers;
+        index = updatedIndex;
+        timers = updatedTimers;
+        log.infof("Deployed [%s] conditions", rules.size());
+    }
+
+    private static String key(Trigger trigger) {
+        return trigger.getTenantId() + "-" + trigger.getId();
+    }
+
+    /**
+     * Expires the windows at now and evaluates a batch of events.
+     */
+    public synchronized void insert(Collection<Event> events, long now) {
+        insert(events, now, results);
+    }
+
+    /**
+     * Evaluates a batch of events already seen by a previous engine, as the events of a snapshot.
+     * Their results were already sent, so they are discarded.
+     */
+    public synchronized void replay(Collection<Event> events, long now) {
+        insert(events, now, DISCARDED_RESULTS);
+    }
+
+    private void insert(Collection<Event> events, long now, ResultSink sink) {
+        expire(now);
+        for (Event event : events) {
+            List<WindowRule> eventRules = index.getOrDefault(WindowRule.index(event.getTenantId(),
+                    event.getDataSource(), event.getDataId()), Collections.emptyList());
+            for (int i = 0; i < eventRules.size(); i++) {
+                WindowRule rule = eventRules.get(i);
+                rule.add(event, now, dirty);
+                schedule(rule, timers);
+            }
+        }
+        evaluate(sink);
+    }
+
+    /**
+     * Expires the windows at now.
+     */
+    public synchronized void advance(long now) {
+        expire(now);
+        evaluate(results);
+    }
+
+    /**
+     * @return the events in the windows of the rules, in ctime order. An event held by several rules is returned once.
+     */
+    public synchronized List<Event> getEvents() {
+        Set<Event> events = Collections.newSetFromMap(new IdentityHashMap<>());
+        rules.values().stream().forEach(rule -> rule.collect(events));
+        List<Event> sorted = new ArrayList<>(events);
+        sorted.sort(Comparator.comparingLong(Event::getCtime));
+        return sorted;
+    }
+
+    public synchronized void clear() {
+        rules = new HashMap<>();
+        index = new HashMap<>();
+        triggerRules = new HashMap<>();
+        timers = new PriorityQueue<>();
+        dirty.clear();
+    }
+
+    private void expire(long now) {
+        Timer timer;
+        while ((timer = timers.peek()) != null && timer.time <= now) {
+            timers.poll();
+            WindowRule rule = timer.rule;
+            if (rule.scheduled != timer.time) {
+                continue;
+            }
+            rule.scheduled = Long.MAX_VALUE;
+            rule.expire(now, dirty);
+            schedule(rule, timers);
+        }
+    }
+
+    private static void schedule(WindowRule rule, PriorityQueue<Timer> timers) {
+        long next = rule.getNextExpiration();
+        if (next < rule.scheduled) {
+            rule.scheduled = next;
+            timers.add(new Timer(next, rule));
+        }
+    }
+
+    public synchronized int getRules() {
+        return rules.size();
+    }
+
+    public synchronized long getGroups() {
+        return rules.values().stream().mapToLong(WindowRule::getGroups).sum();
+    }
+
+    public synchronized long getEntries() {
+        return rules.values().stream().mapToLong(WindowRule::getEntries).sum();
+    }
+
+    /**
+     * @return ctime of the oldest event in the windows of the rules, 0 if there are no events
+     */
+    public synchronized long getOldestEventCtime() {
+        return rules.values().stream().mapToLong(WindowRule::getOldestEventCtime).filter(ctime -> ctime > 0).min()
+                .orElse(0);
+    }
+
+    private void evaluate(ResultSink sink) {
+        for (int i = 0; i < dirty.size(); i++) {
+            WindowRule.Group group = dirty.get(i);
+            try {
+                group.rule.evaluate(group, sink);
+            } catch (Exception e) {
+                log.errorf(e, "Error evaluating rule [%s]", group.rule.getKey());
+            }
+        }
+        dirty.clear();
+    }
+
+    private static class Timer implements Comparable<Timer> {
+        final long time;
+        final WindowRule rule;
+
+        Timer(long time, WindowRule rule) {
+            this.time = time;
+            this.rule = rule;
+        }
+
+        @Override
+        public int compareTo(Timer other) {
+            return Long.compare(time, other.time);
+        }
+    }
+}
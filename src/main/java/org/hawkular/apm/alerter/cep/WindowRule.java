@@ -0,0 +1,506 @@
+/*
+ * Copyright 2015-2016 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.apm.alerter.cep;
+
+import java.io.Serializable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.UUID;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.hawkular.alerts.api.model.condition.ExternalCondition;
+import org.hawkular.alerts.api.model.event.Event;
+import org.hawkular.alerts.api.model.trigger.Trigger;
+import org.hawkular.apm.alerter.Expression;
+import org.hawkular.apm.alerter.ResultPayload;
+import org.kie.api.runtime.rule.AccumulateFunction;
+
+/**
+ * An ExternalCondition expression compiled for the WindowEngine.
+ *
+ * It follows the semantics of the DRL generated by Expression:
+ * - A group is created for each distinct value of the groupBy() field.
+ * - Events passing the filter() constraints are kept in the window of their group.
+ *   A time window holds events until ctime + size, a length window holds the last N events of the condition.
+ *   All events leave the window after Expression.DEFAULT_EXPIRATION.
+ * - Each time the events of a group change and the having() constraints are true, a result is sent.
+ *
+ * Unlike Drools, where length windows are applied before the tenant and group joins, here a length window only holds
+ * events of the tenant, source and dataId of the condition.
+ *
+ * @author Lucas Ponce
+ */
+public class WindowRule {
+
+    private static final Pattern TIME = Pattern.compile("(?:(\\d+)d)?(?:(\\d+)h)?(?:(\\d+)m(?!s))?(?:(\\d+)s)?" +
+            "(?:(\\d+)(?:ms)?)?");
+    private static final long[] TIME_UNITS = {86400000L, 3600000L, 60000L, 1000L, 1L};
+
+    private static final long EXPIRATION = parseTime(Expression.DEFAULT_EXPIRATION);
+
+    private static final Pattern FUNCTION = Pattern.compile("(count|sum|avg|min|max)\\.(context|tags)\\.(\\w+)");
+
+    private static final String CONTEXT = "context.";
+    private static final String TAGS = "tags.";
+    private static final String COUNT = "count";
+
+    private final String key;
+    private final String tenantId;
+    private final String source;
+    private final String dataId;
+    private final String alerterId;
+    private final String text;
+
+    private String field;
+    private ConstraintParser.Operand<Event> groupBy;
+    private final List<Constraint<Event>> filters = new ArrayList<>();
+    private final List<Constraint<Group>> having = new ArrayList<>();
+    private final List<Aggregate> aggregates = new ArrayList<>();
+    private final Map<String, Integer> aggregateIndexes = new HashMap<>();
+    private long timeWindow = EXPIRATION;
+    private int lengthWindow;
+
+    /*
+        Groups are partitioned by the value of the groupBy() field
+     */
+    private final Map<String, Group> groups = new HashMap<>();
+    private final PriorityQueue<Entry> expirations = new PriorityQueue<>((e1, e2) -> e1.expiration != e2.expiration
+            ? Long.compare(e1.expiration, e2.expiration) : Long.compare(e1.seq, e2.seq));
+    /*
+        Entries of a length window in insertion order. Expired entries are only marked as removed and skipped when
+        they reach the head, lengthCount holds the entries still in the window.
+     */
+    private final ArrayDeque<Entry> lengthEntries = new ArrayDeque<>();
+    private int lengthCount;
+    private long seq;
+
+    /*
+        Entries still in a window, the expirations queue also holds removed entries until they are polled
+     */
+    private int entries;
+
+    /*
+        Earliest time this rule is scheduled on the WindowEngine expiration queue
+     */
+    long scheduled = Long.MAX_VALUE;
+
+    public WindowRule(String key, Trigger trigger, ExternalCondition condition) {
+        this.key = key;
+        this.tenantId = trigger.getTenantId();
+        this.source = trigger.getSource();
+        this.dataId = condition.getDataId();
+        this.alerterId = condition.getAlerterId();
+        String expression = condition.getExpression();
+        if (expression == null || expression.trim().isEmpty()) {
+            throw new IllegalArgumentException("Expression must be not null");
+        }
+        this.text = expression.replaceAll("\"", "'");
+        compile(expression);
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    /**
+     * @return tenantId, source and dataId of the events evaluated by this rule
+     */
+    public String getIndex() {
+        return index(tenantId, source, dataId);
+    }
+
+    public static String index(String tenantId, String source, String dataId) {
+        return tenantId + "|" + source + "|" + dataId;
+    }
+
+    public int getGroups() {
+        return groups.size();
+    }
+
+    public int getEntries() {
+        return entries;
+    }
+
+    /**
+     * @return ctime of the oldest event in the windows of this rule, 0 if there are no events
+     */
+    public long getOldestEventCtime() {
+        Entry entry;
+        while ((entry = expirations.peek()) != null && entry.removed) {
+            expirations.poll();
+        }
+        // all the entries of a rule have the same window, so the first to expire is the oldest
+        return entry == null ? 0 : entry.expiration - (lengthWindow > 0 ? EXPIRATION : timeWindow);
+    }
+
+    /**
+     * Adds the events in the windows of this rule.
+     */
+    public void collect(Collection<Event> events) {
+        for (Group group : groups.values()) {
+            for (Entry entry : group.entries) {
+                events.add(entry.event);
+            }
+        }
+    }
+
+    /**
+     * @return time when the oldest event leaves the window, Long.MAX_VALUE if the rule holds no events
+     */
+    public long getNextExpiration() {
+        Entry entry = expirations.peek();
+        return entry == null ? Long.MAX_VALUE : entry.expiration;
+    }
+
+    private void compile(String expression) {
+        String[] section = expression.split(":");
+        if (section.length < 2 || section.length > 5) {
+            throw new IllegalArgumentException("Wrong sections for expression [" + expression + "]");
+        }
+        if (!section[0].equals("event")) {
+            throw new IllegalArgumentException("Expression [" + expression + "] must start with 'event'");
+        }
+        if (!section[1].startsWith("groupBy(")) {
+            throw new IllegalArgumentException("Expression [" + expression + "] must contain a 'groupBy()' section");
+        }
+        String groupByField = inner(section[1], "groupBy(");
+        groupBy = eventOperand(groupByField);
+        field = groupByField.startsWith(TAGS) ? groupByField.substring(TAGS.length())
+                : groupByField.startsWith(CONTEXT) ? groupByField.substring(CONTEXT.length()) : groupByField;
+        ConstraintParser<Event> filterParser = new ConstraintParser<>(WindowRule::eventOperand);
+        ConstraintParser<Group> havingParser = new ConstraintParser<>(this::groupOperand);
+        for (int i = 2; i < section.length; i++) {
+            if (section[i].startsWith("window(")) {
+                compileWindow(inner(section[i], "window("));
+            } else if (section[i].startsWith("filter(")) {
+                for (String constraint : inner(section[i], "filter(").split(",")) {
+                    filters.add(filterParser.parse(constraint));
+                }
+            } else if (section[i].startsWith("having(")) {
+                for (String constraint : inner(section[i], "having(").split(",")) {
+                    having.add(havingParser.parse(constraint));
+                }
+            } else {
+                throw new IllegalArgumentException("Expression [" + expression + "] contains an invalid '" + section[i]
+                        + "' section");
+            }
+        }
+    }
+
+    private void compileWindow(String window) {
+        if (window.startsWith("time,")) {
+            timeWindow = Math.min(EXPIRATION, parseTime(window.substring("time,".length()).trim()));
+        } else if (window.startsWith("length,")) {
+            lengthWindow = Integer.parseInt(window.substring("length,".length()).trim());
+            if (lengthWindow < 1) {
+                throw new IllegalArgumentException("Window [" + window + "] must have a positive length");
+            }
+        } else {
+            throw new IllegalArgumentException("Window [" + window + "] must contain a valid 'time' or 'length' token");
+        }
+    }
+
+    private ConstraintParser.Operand<Group> groupOperand(String path) {
+        if (COUNT.equals(path)) {
+            return group -> (long) group.entries.size();
+        }
+        Matcher matcher = FUNCTION.matcher(path);
+        if (!matcher.matches()) {
+            throw new IllegalArgumentException("Unknown having() function [" + path + "]");
+        }
+        Integer index = aggregateIndexes.get(path);
+        if (index == null) {
+            index = aggregates.size();
+            aggregates.add(new Aggregate(function(matcher.group(1)),
+                    eventOperand(matcher.group(2) + "." + matcher.group(3))));
+            aggregateIndexes.put(path, index);
+        }
+        int i = index;
+        AccumulateFunction function = aggregates.get(i).function;
+        return group -> {
+            try {
+                return function.getResult(group.contexts[i]);
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        };
+    }
+
+    private static AccumulateFunction function(String name) {
+        switch (name) {
+            case "count":
+                return Expression.APPROXIMATE_COUNT ? new ApproximateCountFunction() : new DistinctCountFunction();
+            case "sum":
+                return new SumFunction();
+            case "avg":
+                return new AvgFunction();
+            case "min":
+                return new MinFunction();
+            default:
+                return new MaxFunction();
+        }
+    }
+
+    static ConstraintParser.Operand<Event> eventOperand(String path) {
+        if (path.startsWith(CONTEXT)) {
+            String name = path.substring(CONTEXT.length());
+            return event -> event.getContext() == null ? null : event.getContext().get(name);
+        }
+        if (path.startsWith(TAGS)) {
+            String name = path.substring(TAGS.length());
+            return event -> event.getTags() == null ? null : event.getTags().get(name);
+        }
+        switch (path) {
+            case "tenantId":
+                return Event::getTenantId;
+            case "id":
+                return Event::getId;
+            case "ctime":
+                return Event::getCtime;
+            case "dataSource":
+                return Event::getDataSource;
+            case "dataId":
+                return Event::getDataId;
+            case "category":
+                return Event::getCategory;
+            case "text":
+                return Event::getText;
+            default:
+                throw new IllegalArgumentException("Unknown event field [" + path + "]");
+        }
+    }
+
+    /**
+     * Adds an event of the tenant, source and dataId of this rule.
+     *
+     * @param dirty groups changed by the event are added here
+     */
+    public void add(Event event, long now, List<Group> dirty) {
+        Object value = groupBy.value(event);
+        if (value == null) {
+            return;
+        }
+        String groupValue = value.toString();
+        Group group = groups.get(groupValue);
+        if (group == null) {
+            group = new Group(this, groupValue);
+            groups.put(groupValue, group);
+            markDirty(group, dirty);
+        }
+        for (int i = 0; i < filters.size(); i++) {
+            if (!filters.get(i).test(event)) {
+                return;
+            }
+        }
+        long expiration = event.getCtime() + (lengthWindow > 0 ? EXPIRATION : timeWindow);
+        if (expiration <= now) {
+            return;
+        }
+        Entry entry = new Entry(event, expiration, seq++, group);
+        group.entries.add(entry);
+        entries++;
+        for (int i = 0; i < aggregates.size(); i++) {
+            Aggregate aggregate = aggregates.get(i);
+            aggregate.function.accumulate(group.contexts[i], aggregate.input.value(event));
+        }
+        markDirty(group, dirty);
+        expirations.add(entry);
+        if (lengthWindow > 0) {
+            lengthEntries.add(entry);
+            lengthCount++;
+            if (lengthCount > lengthWindow) {
+                pollRemoved();
+                remove(lengthEntries.poll(), dirty);
+            }
+        }
+    }
+
+    /**
+     * Removes the events out of the windows at now.
+     */
+    public void expire(long now, List<Group> dirty) {
+        Entry entry;
+        while ((entry = expirations.peek()) != null && entry.expiration <= now) {
+            expirations.poll();
+            if (!entry.removed) {
+                remove(entry, dirty);
+            }
+        }
+        pollRemoved();
+    }
+
+    private void pollRemoved() {
+        while (!lengthEntries.isEmpty() && lengthEntries.peek().removed) {
+            lengthEntries.poll();
+        }
+    }
+
+    private void remove(Entry entry, List<Group> dirty) {
+        entry.removed = true;
+        entries--;
+        if (lengthWindow > 0) {
+            lengthCount--;
+        }
+        Group group = entry.group;
+        group.entries.remove(entry);
+        for (int i = 0; i < aggregates.size(); i++) {
+            Aggregate aggregate = aggregates.get(i);
+            if (aggregate.function.supportsReverse()) {
+                try {
+                    aggregate.function.reverse(group.contexts[i], aggregate.input.value(entry.event));
+                } catch (Exception e) {
+                    group.recompute = true;
+                }
+            } else {
+                group.recompute = true;
+            }
+        }
+        markDirty(group, dirty);
+    }
+
+    /**
+     * Evaluates the having() constraints of a changed group and sends a result if they are true.
+     */
+    public void evaluate(Group group, ResultSink results) throws Exception {
+        group.dirty = false;
+        if (group.entries.isEmpty()) {
+            // the window of the group is empty, a next event of the group creates it again
+            groups.remove(group.value, group);
+        }
+        if (group.recompute) {
+            for (int i = 0; i < aggregates.size(); i++) {
+                Aggregate aggregate = aggregates.get(i);
+                aggregate.function.init(group.contexts[i]);
+                for (Entry entry : group.entries) {
+                    aggregate.function.accumulate(group.contexts[i], aggregate.input.value(entry.event));
+                }
+            }
+            group.recompute = false;
+        }
+        for (int i = 0; i < having.size(); i++) {
+            if (!having.get(i).test(group)) {
+                return;
+            }
+        }
+        Event result = new Event(tenantId, UUID.randomUUID().toString(), dataId, alerterId, text);
+        if (ResultPayload.collectsEvents()) {
+            List<Event> events = new ArrayList<>(group.entries.size());
+            for (Entry entry : group.entries) {
+                events.add(entry.event);
+            }
+            ResultPayload.attach(result, events);
+            result.addContext(field, group.value);
+            results.sendResult(result, events);
+        } else {
+            ResultPayload.attach(result, group.entries.size());
+            result.addContext(field, group.value);
+            results.sendResult(result);
+        }
+    }
+
+    private static void markDirty(Group group, List<Group> dirty) {
+        if (!group.dirty) {
+            group.dirty = true;
+            dirty.add(group);
+        }
+    }
+
+    private static String inner(String section, String token) {
+        int endSection = section.lastIndexOf(')');
+        if (endSection == -1) {
+            throw new IllegalArgumentException("Expression [" + section + " must contain a valid '" + token + ")'");
+        }
+        return section.substring(token.length(), endSection).trim();
+    }
+
+    /**
+     * @param time a Drools time value as [Nd][Nh][Nm][Ns][N[ms]]
+     * @return the time value in milliseconds
+     */
+    public static long parseTime(String time) {
+        Matcher matcher = TIME.matcher(time == null ? "" : time.trim());
+        if (time == null || time.trim().isEmpty() || !matcher.matches()) {
+            throw new IllegalArgumentException("Invalid time value [" + time + "]");
+        }
+        long millis = 0;
+        for (int i = 0; i < TIME_UNITS.length; i++) {
+            if (matcher.group(i + 1) != null) {
+                millis += Long.parseLong(matcher.group(i + 1)) * TIME_UNITS[i];
+            }
+        }
+        return millis;
+    }
+
+    /**
+     * Events of a group inside the window, in insertion order, and the state of its accumulate functions.
+     */
+    public static class Group {
+        final WindowRule rule;
+        final String value;
+        final Set<Entry> entries = new LinkedHashSet<>();
+        final Serializable[] contexts;
+        boolean dirty;
+        boolean recompute;
+
+        Group(WindowRule rule, String value) {
+            this.rule = rule;
+            this.value = value;
+            this.contexts = new Serializable[rule.aggregates.size()];
+            for (int i = 0; i < contexts.length; i++) {
+                contexts[i] = rule.aggregates.get(i).function.createContext();
+                try {
+                    rule.aggregates.get(i).function.init(contexts[i]);
+                } catch (Exception e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        }
+    }
+
+    private static class Entry {
+        final Event event;
+        final long expiration;
+        final long seq;
+        final Group group;
+        boolean removed;
+
+        Entry(Event event, long expiration, long seq, Group group) {
+            this.event = event;
+            this.expiration = expiration;
+            this.seq = seq;
+            this.group = group;
+        }
+    }
+
+    private static class Aggregate {
+        final AccumulateFunction function;
+        final ConstraintParser.Operand<Event> input;
+
+        Aggregate(AccumulateFunction function, ConstraintParser.Operand<Event> input) {
+            this.function = function;
+            this.input = input;
+        }
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright 2015-2016 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.apm.alerter.cep;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ThreadFactory;
+
+import org.hawkular.alerts.api.model.event.Event;
+import org.hawkular.alerts.api.model.trigger.FullTrigger;
+import org.hawkular.alerts.api.model.trigger.Trigger;
+
+/**
+ * A CEP shard evaluated by the native WindowEngine instead of Drools.
+ *
+ * On wall clock windows are expired on each batch and while the ingest queue is idle.
+ * On event-time windows are expired when the watermark advances.
+ *
+ * Events restored from a snapshot are replayed, with their results discarded, once conditions are deployed.
+ *
+ * @author Lucas Ponce
+ */
+public class WindowSession extends CepSession {
+
+    private final WindowEngine engine;
+
+    /*
+        Events restored from a snapshot and not yet replayed
+     */
+    private List<Event> restored = Collections.emptyList();
+
+    public WindowSession(ResultSink results, ThreadFactory threadFactory, boolean incremental, int queueSize,
+                         int batchSize) {
+        super(results, threadFactory, incremental, queueSize, batchSize);
+        engine = new WindowEngine(results);
+    }
+
+    @Override
+    public void update(Collection<FullTrigger> activeTriggers) {
+        engine.update(activeTriggers, incremental);
+        replay();
+    }
+
+    @Override
+    public void update(Collection<FullTrigger> changed, Collection<Trigger> removed) {
+        engine.update(changed, removed);
+        replay();
+    }
+
+    /*
+        Without rules the restored events would be dropped, so they are kept for the next update
+     */
+    private synchronized void replay() {
+        if (restored.isEmpty() || engine.getRules() == 0) {
+            return;
+        }
+        engine.replay(restored, isEventTime() ? getWatermark() : System.currentTimeMillis());
+        restored = Collections.emptyList();
+    }
+
+    /*
+        Until the restored events are replayed they are kept for the next snapshot
+     */
+    @Override
+    public synchronized List<Event> snapshot() {
+        return restored.isEmpty() ? engine.getEvents() : new ArrayList<>(restored);
+    }
+
+    @Override
+    public synchronized void restore(List<Event> events) {
+        restored = new ArrayList<>(events);
+    }
+
+    @Override
+    protected void insert(List<Event> batch) {
+        engine.insert(batch, isEventTime() ? getWatermark() : System.currentTimeMillis());
+    }
+
+    @Override
+    protected void idle() {
+        if (!isEventTime()) {
+            engine.advance(System.currentTimeMillis());
+        }
+    }
+
+    @Override
+    protected void advance(long time) {
+        engine.advance(time);
+    }
+
+    /*
+        Events in the windows of the rules, the same event is counted once per rule that holds it
+     */
+    @Override
+    public long getFactCount() {
+        return engine.getEntries();
+    }
+
+    @Override
+    public long getOldestEventCtime() {
+        return engine.getOldestEventCtime();
+    }
+
+    @Override
+    public void stop() {
+        engine.clear();
+    }
+}
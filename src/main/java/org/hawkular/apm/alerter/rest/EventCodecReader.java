@@ -0,0 +1,64 @@
+/*
+ * Copyright 2015-2016 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.apm.alerter.rest;
+
+import static org.hawkular.apm.alerter.EventCodec.APPLICATION_EVENTS;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Type;
+import java.util.Collection;
+
+import javax.ws.rs.Consumes;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.ext.MessageBodyReader;
+import javax.ws.rs.ext.Provider;
+
+import org.hawkular.alerts.api.model.event.Event;
+import org.hawkular.apm.alerter.EventCodec;
+import org.jboss.logging.Logger;
+
+/**
+ * Reads a collection of events encoded with the EventCodec binary format.
+ *
+ * @author Lucas Ponce
+ */
+@Provider
+@Consumes(APPLICATION_EVENTS)
+public class EventCodecReader implements MessageBodyReader<Collection<Event>> {
+    private final Logger log = Logger.getLogger(EventCodecReader.class);
+
+    @Override
+    public boolean isReadable(Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType) {
+        return Collection.class.isAssignableFrom(type);
+    }
+
+    @Override
+    public Collection<Event> readFrom(Class<Collection<Event>> type, Type genericType, Annotation[] annotations,
+                                      MediaType mediaType, MultivaluedMap<String, String> httpHeaders,
+                                      InputStream entityStream) throws IOException, WebApplicationException {
+        try {
+            return EventCodec.decode(entityStream);
+        } catch (IOException e) {
+            log.debug(e.getMessage(), e);
+            throw new WebApplicationException(ResponseUtil.badRequest("Bad events: " + e.getMessage()));
+        }
+    }
+}
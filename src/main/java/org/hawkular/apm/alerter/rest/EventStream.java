@@ -0,0 +1,96 @@
+/*
+ * Copyright 2015-2016 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.apm.alerter.rest;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.hawkular.alerts.api.model.event.Event;
+
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+
+/**
+ * Incremental parser of a stream of events using the Jackson streaming API.
+ *
+ * The stream can be a JSON array of events or a sequence of JSON events (i.e. one per line).
+ * Events are decoded one by one and handed in chunks, so the heap used does not depend on the size of the stream.
+ *
+ * @author Lucas Ponce
+ */
+public class EventStream {
+
+    public static final String APPLICATION_NDJSON = "application/x-ndjson";
+
+    private static final ObjectReader EVENT_READER = new ObjectMapper()
+            .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false)
+            .readerFor(Event.class);
+
+    @FunctionalInterface
+    public interface ChunkHandler {
+        /**
+         * @param chunk decoded events, the list is not reused by the parser
+         * @return false if the chunk is rejected, the rest of the stream is not read
+         */
+        boolean handle(List<Event> chunk) throws Exception;
+    }
+
+    /**
+     * @param in the stream of events
+     * @param chunkSize max number of events per chunk
+     * @param handler receives the decoded chunks
+     * @return number of events accepted by the handler
+     * @throws JsonParseException if the stream is not an array or a sequence of events
+     */
+    public static long read(InputStream in, int chunkSize, ChunkHandler handler) throws Exception {
+        if (chunkSize < 1) {
+            throw new IllegalArgumentException("chunkSize must be greater than 0");
+        }
+        long events = 0;
+        try (JsonParser parser = EVENT_READER.getFactory().createParser(in)) {
+            JsonToken token = parser.nextToken();
+            boolean array = token == JsonToken.START_ARRAY;
+            if (array) {
+                token = parser.nextToken();
+            }
+            List<Event> chunk = new ArrayList<>(chunkSize);
+            while (token == JsonToken.START_OBJECT) {
+                chunk.add(EVENT_READER.readValue(parser));
+                if (chunk.size() == chunkSize) {
+                    if (!handler.handle(chunk)) {
+                        return events;
+                    }
+                    events += chunk.size();
+                    chunk = new ArrayList<>(chunkSize);
+                }
+                token = parser.nextToken();
+            }
+            if (array ? token != JsonToken.END_ARRAY : token != null) {
+                throw new JsonParseException(parser, "Expected an event but found [" + token + "]");
+            }
+            if (!chunk.isEmpty() && handler.handle(chunk)) {
+                events += chunk.size();
+            }
+        }
+        return events;
+    }
+}
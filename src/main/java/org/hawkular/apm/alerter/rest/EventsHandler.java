@@ -18,22 +18,41 @@ package org.hawkular.apm.alerter.rest;
 
 import static javax.ws.rs.core.MediaType.APPLICATION_JSON;
 
+import static org.hawkular.apm.alerter.EventCodec.APPLICATION_EVENTS;
+import static org.hawkular.apm.alerter.rest.EventStream.APPLICATION_NDJSON;
 import static org.hawkular.apm.alerter.rest.HawkularApmAlerterApp.TENANT_HEADER_NAME;
 
+import java.io.InputStream;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.inject.Inject;
 import javax.ws.rs.Consumes;
+import javax.ws.rs.GET;
 import javax.ws.rs.HeaderParam;
 import javax.ws.rs.POST;
 import javax.ws.rs.Path;
 import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.Suspended;
 import javax.ws.rs.core.Response;
 
 import org.hawkular.alerts.api.model.event.Event;
+import org.hawkular.apm.alerter.AlerterProperties;
+import org.hawkular.apm.alerter.cep.Ack;
 import org.hawkular.apm.alerter.cep.CepEngine;
+import org.hawkular.apm.alerter.cep.JournalException;
 import org.jboss.logging.Logger;
 
+import com.fasterxml.jackson.core.JsonProcessingException;
+
 /**
  * REST endpoint for events
  *
@@ -44,38 +63,293 @@ import org.jboss.logging.Logger;
 public class EventsHandler {
     private final Logger log = Logger.getLogger(EventsHandler.class);
 
+    private static final String OVERLOADED_STATUS = "hawkular-apm-alerter.overloaded-status";
+    private static final String OVERLOADED_STATUS_ENV = "HAWKULAR_APM_ALERTER_OVERLOADED_STATUS";
+    private static final int DEFAULT_OVERLOADED_STATUS = ResponseUtil.TOO_MANY_REQUESTS;
+
+    private static final String RETRY_AFTER = "hawkular-apm-alerter.retry-after";
+    private static final String RETRY_AFTER_ENV = "HAWKULAR_APM_ALERTER_RETRY_AFTER";
+    private static final long DEFAULT_RETRY_AFTER = 1;
+
+    private static final String STREAM_CHUNK_SIZE = "hawkular-apm-alerter.stream-chunk-size";
+    private static final String STREAM_CHUNK_SIZE_ENV = "HAWKULAR_APM_ALERTER_STREAM_CHUNK_SIZE";
+    private static final int DEFAULT_STREAM_CHUNK_SIZE = 1000;
+
+    private static final String ASYNC_TIMEOUT = "hawkular-apm-alerter.async-timeout";
+    private static final String ASYNC_TIMEOUT_ENV = "HAWKULAR_APM_ALERTER_ASYNC_TIMEOUT";
+    private static final long DEFAULT_ASYNC_TIMEOUT = 30000;
+
+    private static final String ACK_TIMEOUT = "hawkular-apm-alerter.ack-timeout";
+    private static final String ACK_TIMEOUT_ENV = "HAWKULAR_APM_ALERTER_ACK_TIMEOUT";
+    private static final long DEFAULT_ACK_TIMEOUT = 5000;
+
+    private static final int OVERLOADED = AlerterProperties.getProperty(OVERLOADED_STATUS, OVERLOADED_STATUS_ENV,
+            DEFAULT_OVERLOADED_STATUS);
+    private static final long RETRY_AFTER_SECONDS = AlerterProperties.getProperty(RETRY_AFTER, RETRY_AFTER_ENV,
+            DEFAULT_RETRY_AFTER);
+    private static final int CHUNK_SIZE = AlerterProperties.getProperty(STREAM_CHUNK_SIZE, STREAM_CHUNK_SIZE_ENV,
+            DEFAULT_STREAM_CHUNK_SIZE);
+    private static final long ASYNC_TIMEOUT_MS = AlerterProperties.getProperty(ASYNC_TIMEOUT, ASYNC_TIMEOUT_ENV,
+            DEFAULT_ASYNC_TIMEOUT);
+    private static final long ACK_TIMEOUT_MS = AlerterProperties.getProperty(ACK_TIMEOUT, ACK_TIMEOUT_ENV,
+            DEFAULT_ACK_TIMEOUT);
+
     @HeaderParam(TENANT_HEADER_NAME)
     String tenantId;
 
     @Inject
     private CepEngine cep;
 
+    @Inject
+    private IngestExecutor ingestExecutor;
+
     public EventsHandler() {
         log.debug("Creating instance.");
     }
 
     @POST
     @Path("/data")
-    @Consumes(APPLICATION_JSON)
+    @Consumes({APPLICATION_JSON, APPLICATION_EVENTS})
     @Produces(APPLICATION_JSON)
     public Response sendEvents(final Collection<Event> events) {
+        return process(tenantId, events);
+    }
+
+    private Response process(String tenantId, Collection<Event> events) {
+        try {
+            if (isEmpty(events)) {
+                return ResponseUtil.badRequest("Events are empty");
+            } else if (cep.isOverloaded(tenantId, events)) {
+                return overloaded(tenantId, "");
+            }
+            if (cep.processEvents(tenantId, events) == 0) {
+                return overloaded(tenantId, "");
+            }
+            return ResponseUtil.ok();
+        } catch (JournalException e) {
+            return notJournaled(e);
+        } catch (Exception e) {
+            log.debug(e.getMessage(), e);
+            if (isBadArguments(e)) {
+                return ResponseUtil.badRequest("Bad arguments: " + e.getMessage());
+            }
+            return ResponseUtil.internalError(e);
+        }
+    }
+
+    /**
+     * Large batches are parsed incrementally and handed to the engine in chunks as they are decoded.
+     * If the engine gets overloaded in the middle of the stream, the rest of the stream is rejected and the number
+     * of queued events is reported in the error message. Chunks are queued whole, so the rejected events are the tail
+     * of the stream after the queued ones. A malformed event in the middle of the stream is reported the same way.
+     */
+    @POST
+    @Path("/stream")
+    @Consumes({APPLICATION_JSON, APPLICATION_NDJSON})
+    @Produces(APPLICATION_JSON)
+    public Response streamEvents(final InputStream events) {
+        return ingest(tenantId, events);
+    }
+
+    /**
+     * As /data but the request does not hold a web worker thread while the events are queued and journaled: the body
+     * is unmarshalled by the container, the batch is queued on the bounded IngestExecutor pool and the response is
+     * resumed once it is queued into the engine.
+     * On timeout the batch is not queued.
+     */
+    @POST
+    @Path("/async")
+    @Consumes({APPLICATION_JSON, APPLICATION_EVENTS})
+    @Produces(APPLICATION_JSON)
+    public void sendEventsAsync(final Collection<Event> events, @Suspended final AsyncResponse response) {
+        if (isEmpty(events)) {
+            response.resume(ResponseUtil.badRequest("Events are empty"));
+            return;
+        } else if (cep.isOverloaded(tenantId, events)) {
+            response.resume(overloaded(tenantId, ""));
+            return;
+        }
+        final Progress progress = new Progress();
+        response.setTimeout(ASYNC_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        response.setTimeoutHandler(r -> {
+            synchronized (progress) {
+                if (progress.done) {
+                    // the task is resuming the response with its outcome
+                    r.setTimeout(ASYNC_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                    return;
+                }
+                progress.cancelled = true;
+            }
+            r.resume(ResponseUtil.serviceUnavailable("Events were not queued in " + ASYNC_TIMEOUT_MS
+                    + " ms. Retry after " + RETRY_AFTER_SECONDS + " seconds", RETRY_AFTER_SECONDS));
+        });
+        final String tenant = tenantId;
+        try {
+            ingestExecutor.execute(() -> {
+                Response result;
+                synchronized (progress) {
+                    if (progress.cancelled) {
+                        return;
+                    }
+                    result = process(tenant, events);
+                    progress.done = true;
+                }
+                response.resume(result);
+            });
+        } catch (RejectedExecutionException e) {
+            log.debug(e.getMessage(), e);
+            response.resume(overloaded(tenant, ""));
+        }
+    }
+
+    /**
+     * Processes a batch and waits, up to timeout ms, for its evaluation to return the results it produced.
+     * The timeout is bounded by the hawkular-apm-alerter.ack-timeout property.
+     */
+    @POST
+    @Path("/ack")
+    @Consumes({APPLICATION_JSON, APPLICATION_EVENTS})
+    @Produces(APPLICATION_JSON)
+    public Response sendEventsAck(@QueryParam("timeout") final Long timeout, final Collection<Event> events) {
         try {
             if (isEmpty(events)) {
                 return ResponseUtil.badRequest("Events are empty");
-            } else {
-                events.stream().forEach(e -> e.setTenantId(tenantId));
-                cep.processEvents(events);
-                return ResponseUtil.ok();
+            } else if (cep.isOverloaded(tenantId, events)) {
+                return overloaded(tenantId, "");
+            }
+            long timeoutMs = timeout == null || timeout <= 0 ? ACK_TIMEOUT_MS : Math.min(timeout, ACK_TIMEOUT_MS);
+            Ack ack = cep.processEventsAck(tenantId, events, timeoutMs);
+            if (ack.getQueued() == 0) {
+                return overloaded(tenantId, "");
             }
+            Map<String, Object> status = new LinkedHashMap<>();
+            status.put("events", ack.getEvents());
+            status.put("queued", ack.getQueued());
+            status.put("evaluated", ack.isEvaluated());
+            status.put("timings", ack.getTimings());
+            status.put("results", ack.getResults());
+            return ResponseUtil.ok(status);
+        } catch (JournalException e) {
+            return notJournaled(e);
+        } catch (UnsupportedOperationException e) {
+            log.debug(e.getMessage(), e);
+            return ResponseUtil.notImplemented(e.getMessage());
+        } catch (IllegalStateException e) {
+            log.debug(e.getMessage(), e);
+            return ResponseUtil.conflict(e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return ResponseUtil.internalError(e);
         } catch (Exception e) {
             log.debug(e.getMessage(), e);
-            if (e.getCause() != null && e.getCause() instanceof IllegalArgumentException) {
+            if (isBadArguments(e)) {
                 return ResponseUtil.badRequest("Bad arguments: " + e.getMessage());
             }
             return ResponseUtil.internalError(e);
         }
     }
 
+    @GET
+    @Path("/ingest")
+    @Produces(APPLICATION_JSON)
+    public Response getIngestStatus() {
+        try {
+            return ResponseUtil.ok(cep.getIngestStatus());
+        } catch (Exception e) {
+            log.debug(e.getMessage(), e);
+            return ResponseUtil.internalError(e);
+        }
+    }
+
+    /*
+        Parses the stream in chunks, each chunk is queued into the engine as soon as it is decoded.
+        The chunks queued before an error are not rolled back, so the error reports how many events were queued.
+     */
+    private Response ingest(String tenantId, InputStream events) {
+        AtomicLong chunksQueued = new AtomicLong();
+        try {
+            if (cep.isOverloaded(tenantId)) {
+                return overloaded(tenantId, "");
+            }
+            AtomicBoolean rejected = new AtomicBoolean(false);
+            long accepted = EventStream.read(events, CHUNK_SIZE, chunk -> {
+                if (cep.isOverloaded(tenantId, chunk) || cep.processEvents(tenantId, chunk) == 0) {
+                    rejected.set(true);
+                    return false;
+                }
+                chunksQueued.addAndGet(chunk.size());
+                return true;
+            });
+            long queued = chunksQueued.get();
+            if (rejected.get()) {
+                return overloaded(tenantId, queuedPrefix(queued));
+            }
+            if (accepted == 0) {
+                return ResponseUtil.badRequest("Events are empty");
+            }
+            Map<String, Object> status = new HashMap<>();
+            status.put("events", accepted);
+            status.put("queued", queued);
+            return ResponseUtil.ok(status);
+        } catch (JournalException e) {
+            return notJournaled(queuedPrefix(chunksQueued.get()), e);
+        } catch (JsonProcessingException e) {
+            log.debug(e.getMessage(), e);
+            return ResponseUtil.badRequest(queuedPrefix(chunksQueued.get()) + "Bad events: " + e.getMessage());
+        } catch (Exception e) {
+            log.debug(e.getMessage(), e);
+            if (isBadArguments(e)) {
+                return ResponseUtil.badRequest(queuedPrefix(chunksQueued.get()) + "Bad arguments: " + e.getMessage());
+            }
+            return ResponseUtil.internalError(queuedPrefix(chunksQueued.get())
+                    + (e.getMessage() != null ? e.getMessage() : e.toString()));
+        }
+    }
+
+    private static String queuedPrefix(long queued) {
+        return "Queued [" + queued + "] events. ";
+    }
+
+    private Response notJournaled(JournalException e) {
+        return notJournaled("", e);
+    }
+
+    /*
+        With a sync journal a 200 means the events are on disk, so a failed journal is reported as unavailable.
+     */
+    private Response notJournaled(String prefix, JournalException e) {
+        log.debug(e.getMessage(), e);
+        return ResponseUtil.serviceUnavailable(prefix + e.getMessage() + ". Retry after " + RETRY_AFTER_SECONDS
+                + " seconds", RETRY_AFTER_SECONDS);
+    }
+
+    /*
+        Overloaded requests are recorded here, only when they are rejected.
+     */
+    private Response overloaded(String tenantId, String prefix) {
+        cep.overloaded(tenantId);
+        String message = prefix + "Events engine is overloaded. Retry after " + RETRY_AFTER_SECONDS + " seconds";
+        if (OVERLOADED == Response.Status.SERVICE_UNAVAILABLE.getStatusCode()) {
+            return ResponseUtil.serviceUnavailable(message, RETRY_AFTER_SECONDS);
+        }
+        return ResponseUtil.tooManyRequests(message, RETRY_AFTER_SECONDS);
+    }
+
+    /*
+        Outcome of an async request, guarded by itself
+     */
+    private static class Progress {
+        boolean cancelled;
+        boolean done;
+    }
+
+    /*
+        Exceptions of the engine reach the handler wrapped by the EJB container
+     */
+    private static boolean isBadArguments(Exception e) {
+        return e instanceof IllegalArgumentException || e.getCause() instanceof IllegalArgumentException;
+    }
+
     private boolean isEmpty(Collection collection) {
         return collection == null || collection.isEmpty();
     }
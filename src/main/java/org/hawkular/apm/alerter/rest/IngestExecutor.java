@@ -0,0 +1,94 @@
+/*
+ * Copyright 2015-2016 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.apm.alerter.rest;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import javax.ejb.Lock;
+import javax.ejb.LockType;
+import javax.ejb.Singleton;
+import javax.enterprise.concurrent.ManagedThreadFactory;
+
+import org.hawkular.apm.alerter.AlerterProperties;
+import org.jboss.logging.Logger;
+
+/**
+ * Bounded pool for the async ingest requests.
+ *
+ * The body of the request is unmarshalled by the container before the task is submitted, so a task only blocks its
+ * thread while the batch is queued and journaled. The pool is bounded, so it does not starve the managed executor,
+ * and requests are rejected when its queue is full.
+ *
+ * @author Lucas Ponce
+ */
+@Singleton
+public class IngestExecutor {
+    private final Logger log = Logger.getLogger(IngestExecutor.class);
+
+    private static final String ASYNC_THREADS = "hawkular-apm-alerter.async-threads";
+    private static final String ASYNC_THREADS_ENV = "HAWKULAR_APM_ALERTER_ASYNC_THREADS";
+    private static final int DEFAULT_ASYNC_THREADS = 4;
+
+    private static final String ASYNC_QUEUE_SIZE = "hawkular-apm-alerter.async-queue-size";
+    private static final String ASYNC_QUEUE_SIZE_ENV = "HAWKULAR_APM_ALERTER_ASYNC_QUEUE_SIZE";
+    private static final int DEFAULT_ASYNC_QUEUE_SIZE = 100;
+
+    @Resource
+    private ManagedThreadFactory threadFactory;
+
+    private ThreadPoolExecutor pool;
+
+    @PostConstruct
+    public void init() {
+        int threads = AlerterProperties.getProperty(ASYNC_THREADS, ASYNC_THREADS_ENV, DEFAULT_ASYNC_THREADS);
+        if (threads < 1) {
+            log.warnf("Invalid async threads [%s]. Using [%s]", threads, DEFAULT_ASYNC_THREADS);
+            threads = DEFAULT_ASYNC_THREADS;
+        }
+        int queueSize = AlerterProperties.getProperty(ASYNC_QUEUE_SIZE, ASYNC_QUEUE_SIZE_ENV,
+                DEFAULT_ASYNC_QUEUE_SIZE);
+        if (queueSize < 1) {
+            log.warnf("Invalid async queue size [%s]. Using [%s]", queueSize, DEFAULT_ASYNC_QUEUE_SIZE);
+            queueSize = DEFAULT_ASYNC_QUEUE_SIZE;
+        }
+        pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(queueSize),
+                threadFactory);
+        pool.allowCoreThreadTimeOut(true);
+        log.infof("Async ingest threads: [%s] Queue size: [%s]", threads, queueSize);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (pool != null) {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * @throws RejectedExecutionException if the queue of the pool is full
+     */
+    @Lock(LockType.READ)
+    public void execute(Runnable task) {
+        pool.execute(task);
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright 2015-2016 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.apm.alerter.rest;
+
+import static javax.ws.rs.core.MediaType.APPLICATION_JSON;
+
+import javax.inject.Inject;
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.Response;
+
+import org.hawkular.apm.alerter.ExpressionManager;
+import org.hawkular.apm.alerter.cep.CepEngine;
+import org.jboss.logging.Logger;
+
+/**
+ * REST endpoint for the engine metrics. The counters and rates are also exposed by the
+ * org.hawkular.apm.alerter:type=EngineMetrics MBean.
+ *
+ * @author Lucas Ponce
+ */
+@Path("/metrics")
+public class MetricsHandler {
+    private final Logger log = Logger.getLogger(MetricsHandler.class);
+
+    @Inject
+    private CepEngine cep;
+
+    @Inject
+    private ExpressionManager expressions;
+
+    public MetricsHandler() {
+        log.debug("Creating instance.");
+    }
+
+    @GET
+    @Path("/")
+    @Produces(APPLICATION_JSON)
+    public Response getMetrics() {
+        try {
+            return ResponseUtil.ok(cep.getMetrics());
+        } catch (Exception e) {
+            log.debug(e.getMessage(), e);
+            return ResponseUtil.internalError(e);
+        }
+    }
+
+    @GET
+    @Path("/refresh")
+    @Produces(APPLICATION_JSON)
+    public Response getRefreshStatus() {
+        try {
+            return ResponseUtil.ok(expressions.getRefreshStatus());
+        } catch (Exception e) {
+            log.debug(e.getMessage(), e);
+            return ResponseUtil.internalError(e);
+        }
+    }
+}
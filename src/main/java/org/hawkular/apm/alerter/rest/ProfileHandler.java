@@ -0,0 +1,83 @@
+/*
+ * Copyright 2015-2016 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.apm.alerter.rest;
+
+import static javax.ws.rs.core.MediaType.APPLICATION_JSON;
+
+import javax.inject.Inject;
+import javax.ws.rs.DELETE;
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.Response;
+
+import org.hawkular.apm.alerter.cep.CepEngine;
+import org.jboss.logging.Logger;
+
+/**
+ * REST endpoint for the rule profiling of the CEP engine.
+ * Profiling is enabled with the hawkular-apm-alerter.profiling property.
+ *
+ * @author Lucas Ponce
+ */
+@Path("/profile")
+public class ProfileHandler {
+    private final Logger log = Logger.getLogger(ProfileHandler.class);
+
+    @Inject
+    private CepEngine cep;
+
+    public ProfileHandler() {
+        log.debug("Creating instance.");
+    }
+
+    @GET
+    @Path("/")
+    @Produces(APPLICATION_JSON)
+    public Response getProfile() {
+        try {
+            if (!cep.isProfilingEnabled()) {
+                return profilingDisabled();
+            }
+            return ResponseUtil.ok(cep.getProfile());
+        } catch (Exception e) {
+            log.debug(e.getMessage(), e);
+            return ResponseUtil.internalError(e);
+        }
+    }
+
+    @DELETE
+    @Path("/")
+    @Produces(APPLICATION_JSON)
+    public Response resetProfile() {
+        try {
+            if (!cep.isProfilingEnabled()) {
+                return profilingDisabled();
+            }
+            cep.resetProfile();
+            return ResponseUtil.ok();
+        } catch (Exception e) {
+            log.debug(e.getMessage(), e);
+            return ResponseUtil.internalError(e);
+        }
+    }
+
+    private Response profilingDisabled() {
+        return ResponseUtil.notFound("Profiling is disabled. It is enabled with the hawkular-apm-alerter.profiling "
+                + "property");
+    }
+}
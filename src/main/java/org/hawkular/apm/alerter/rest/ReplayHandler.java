@@ -0,0 +1,121 @@
+/*
+ * Copyright 2015-2016 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.apm.alerter.rest;
+
+import static javax.ws.rs.core.MediaType.APPLICATION_JSON;
+
+import static org.hawkular.apm.alerter.rest.EventStream.APPLICATION_NDJSON;
+import static org.hawkular.apm.alerter.rest.HawkularApmAlerterApp.TENANT_HEADER_NAME;
+
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.ws.rs.Consumes;
+import javax.ws.rs.DefaultValue;
+import javax.ws.rs.HeaderParam;
+import javax.ws.rs.POST;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.core.Response;
+
+import org.hawkular.apm.alerter.AlerterProperties;
+import org.hawkular.apm.alerter.cep.Replay;
+import org.jboss.logging.Logger;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+
+/**
+ * REST endpoint to replay recorded events against an expression.
+ *
+ * The body is a JSON array of events or a stream of JSON events (i.e. one per line), it is parsed and evaluated
+ * event by event so a large recording is not loaded in memory.
+ *
+ * @author Lucas Ponce
+ */
+@Path("/replay")
+public class ReplayHandler {
+    private final Logger log = Logger.getLogger(ReplayHandler.class);
+
+    private static final String REPLAY_MAX_RESULTS = "hawkular-apm-alerter.replay-max-results";
+    private static final String REPLAY_MAX_RESULTS_ENV = "HAWKULAR_APM_ALERTER_REPLAY_MAX_RESULTS";
+    private static final int DEFAULT_REPLAY_MAX_RESULTS = 1000;
+
+    private static final int MAX_RESULTS = AlerterProperties.getProperty(REPLAY_MAX_RESULTS, REPLAY_MAX_RESULTS_ENV,
+            DEFAULT_REPLAY_MAX_RESULTS);
+
+    private static final int REPLAY_CHUNK_SIZE = 1000;
+
+    @HeaderParam(TENANT_HEADER_NAME)
+    String tenantId;
+
+    public ReplayHandler() {
+        log.debug("Creating instance.");
+    }
+
+    @POST
+    @Path("/")
+    @Consumes({APPLICATION_JSON, APPLICATION_NDJSON})
+    @Produces(APPLICATION_JSON)
+    public Response replay(@QueryParam("expression") final String expression,
+                           @QueryParam("dataId") final String dataId,
+                           @QueryParam("source") final String source,
+                           @QueryParam("engine") @DefaultValue("drools") final String engine,
+                           @QueryParam("maxResults") final Integer maxResults,
+                           final InputStream events) {
+        if (isEmpty(tenantId)) {
+            return ResponseUtil.badRequest("Tenant is empty");
+        }
+        if (isEmpty(expression)) {
+            return ResponseUtil.badRequest("Expression is empty");
+        }
+        if (!"drools".equalsIgnoreCase(engine) && !"native".equalsIgnoreCase(engine)) {
+            return ResponseUtil.badRequest("Unknown engine [" + engine + "]");
+        }
+        Replay replay = null;
+        try {
+            replay = new Replay(tenantId, expression, dataId, source, "native".equalsIgnoreCase(engine),
+                    maxResults == null || maxResults < 0 ? MAX_RESULTS : Math.min(maxResults, MAX_RESULTS));
+            Replay target = replay;
+            EventStream.read(events, REPLAY_CHUNK_SIZE, chunk -> {
+                chunk.stream().forEach(target::add);
+                return true;
+            });
+            Map<String, Object> response = new HashMap<>();
+            response.put("results", replay.getResults());
+            response.put("stats", replay.finish());
+            replay = null;
+            log.debugf("Replay stats: %s", response.get("stats"));
+            return ResponseUtil.ok(response);
+        } catch (IllegalArgumentException | JsonProcessingException e) {
+            log.debug(e.getMessage(), e);
+            return ResponseUtil.badRequest("Bad arguments: " + e.getMessage());
+        } catch (Exception e) {
+            log.debug(e.getMessage(), e);
+            return ResponseUtil.internalError(e);
+        } finally {
+            if (replay != null) {
+                replay.finish();
+            }
+        }
+    }
+
+    private boolean isEmpty(String s) {
+        return s == null || s.trim().isEmpty();
+    }
+}
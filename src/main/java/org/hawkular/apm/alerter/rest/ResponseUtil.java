@@ -29,6 +29,13 @@ import com.fasterxml.jackson.annotation.JsonInclude;
  */
 public class ResponseUtil {
 
+    /*
+        JAX-RS 2.0 Response.Status does not define 429
+     */
+    public static final int TOO_MANY_REQUESTS = 429;
+
+    public static final String RETRY_AFTER = "Retry-After";
+
     public static Response internalError(Exception e) {
         if (e.getMessage() == null) {
             return internalError(e.toString());
@@ -60,6 +67,26 @@ public class ResponseUtil {
                 .entity(new ApiError(message)).type(APPLICATION_JSON_TYPE).build();
     }
 
+    public static Response conflict(String message) {
+        return Response.status(Response.Status.CONFLICT)
+                .entity(new ApiError(message)).type(APPLICATION_JSON_TYPE).build();
+    }
+
+    public static Response notImplemented(String message) {
+        return Response.status(Response.Status.NOT_IMPLEMENTED)
+                .entity(new ApiError(message)).type(APPLICATION_JSON_TYPE).build();
+    }
+
+    public static Response tooManyRequests(String message, long retryAfterSeconds) {
+        return Response.status(TOO_MANY_REQUESTS).header(RETRY_AFTER, retryAfterSeconds)
+                .entity(new ApiError(message)).type(APPLICATION_JSON_TYPE).build();
+    }
+
+    public static Response serviceUnavailable(String message, long retryAfterSeconds) {
+        return Response.status(Response.Status.SERVICE_UNAVAILABLE).header(RETRY_AFTER, retryAfterSeconds)
+                .entity(new ApiError(message)).type(APPLICATION_JSON_TYPE).build();
+    }
+
     public static class ApiError {
 
         @JsonInclude
@@ -28,6 +28,8 @@ import java.util.concurrent.TimeUnit
 
 import static org.hawkular.alerts.api.model.trigger.Mode.FIRING
 import static org.junit.Assert.assertEquals
+import static org.junit.Assert.assertNotNull
+import static org.junit.Assert.assertTrue
 
 /**
  * Events REST tests.
@@ -448,4 +450,36 @@ class EventsITest extends AbstractITestBase {
         assertEquals(2, resp.data.size())
     }
 
+    @Test
+    void ingestStatus() {
+        def resp = alerter.get(path: "events/ingest")
+        assertEquals(200, resp.status)
+        assertTrue(resp.data.queueCapacity > 0)
+        assertTrue(resp.data.queueDepth <= resp.data.queueCapacity)
+        assertNotNull(resp.data.rejectedEvents)
+    }
+
+    @Test
+    void asyncIngest() {
+        Event e1 = new Event(TEST_TENANT, uuid(), now(), DATA_ID, "TraceCompletion", "E1 - Buy Book")
+        e1.addContext("accountId", "user1")
+        Event e2 = new Event(TEST_TENANT, uuid(), now(), DATA_ID, "TraceCompletion", "E2 - Buy Music")
+        e2.addContext("accountId", "user1")
+
+        def resp = alerter.post(path: "events/async", body: Arrays.asList(e1, e2))
+        assertEquals(200, resp.status)
+        assertEquals(2, resp.data.events)
+        assertEquals(2, resp.data.queued)
+    }
+
+    @Test
+    void engineMetrics() {
+        def resp = alerter.get(path: "metrics")
+        assertEquals(200, resp.status)
+        assertTrue(resp.data.receivedEvents >= resp.data.insertedEvents)
+        assertTrue(resp.data.queueDepth >= 0)
+        assertNotNull(resp.data.resultSend)
+        assertNotNull(resp.data.oldestEventAgeMs)
+    }
+
 }
@@ -0,0 +1,132 @@
+/*
+ * Copyright 2015-2016 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.apm.alerter;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.hawkular.alerts.api.model.event.Event;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @author Lucas Ponce
+ */
+public class EventCodecTest {
+
+    public static final String TEST_TENANT = "28026b36-8fe4-4332-84c8-524e173a68bf";
+    public static final String DATA_ID = "apm-data-id";
+
+    private static byte[] encode(List<Event> events, int frameEvents) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        EventCodec.encode(events, out, frameEvents);
+        return out.toByteArray();
+    }
+
+    @Test
+    public void roundTrip() throws Exception {
+        List<Event> events = new ArrayList<>();
+        for (int i = 0; i < 25; i++) {
+            // ctime goes backwards on some events
+            Event event = new Event(TEST_TENANT, "id-" + i, 1000L * i - (i % 4 == 0 ? 5000 : 0), DATA_ID,
+                    "TraceCompletion", "Buy Book \u00f1 " + i);
+            event.addContext("accountId", "user" + (i % 3));
+            event.addTag("location", "ip" + (i % 2));
+            events.add(event);
+        }
+        events.get(3).setText(null);
+        events.get(4).setCategory(null);
+
+        List<Event> decoded = EventCodec.decode(new ByteArrayInputStream(encode(events, 10)));
+
+        Assert.assertEquals(events.size(), decoded.size());
+        for (int i = 0; i < events.size(); i++) {
+            Event expected = events.get(i);
+            Event actual = decoded.get(i);
+            Assert.assertEquals(expected.getTenantId(), actual.getTenantId());
+            Assert.assertEquals(expected.getId(), actual.getId());
+            Assert.assertEquals(expected.getCtime(), actual.getCtime());
+            Assert.assertEquals(expected.getDataSource(), actual.getDataSource());
+            Assert.assertEquals(expected.getDataId(), actual.getDataId());
+            Assert.assertEquals(expected.getCategory(), actual.getCategory());
+            Assert.assertEquals(expected.getText(), actual.getText());
+            Assert.assertEquals(expected.getContext(), actual.getContext());
+            Assert.assertEquals(expected.getTags(), actual.getTags());
+        }
+    }
+
+    @Test
+    public void dictionaryIsSmallerThanJson() throws Exception {
+        List<Event> events = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            Event event = new Event(TEST_TENANT, "id-" + i, i, DATA_ID, "TraceCompletion", "Buy Book");
+            event.addContext("accountId", "user" + i);
+            events.add(event);
+        }
+        byte[] bytes = encode(events, 100);
+        // tenant (36 bytes) is encoded once
+        Assert.assertTrue(bytes.length < events.size() * 36);
+    }
+
+    @Test(expected = IOException.class)
+    public void truncatedFrame() throws Exception {
+        byte[] bytes = encode(Arrays.asList(new Event(TEST_TENANT, "id", 1, DATA_ID, "Trace", "text")), 10);
+        EventCodec.decode(new ByteArrayInputStream(Arrays.copyOf(bytes, bytes.length - 1)));
+    }
+
+    @Test(expected = IOException.class)
+    public void malformedStringLength() throws Exception {
+        // count 1, new dictionary entry whose string length is a varint of Long.MAX_VALUE
+        EventCodec.decode(new ByteArrayInputStream(frame(1, 1, 0xFF, 0xFF, 0xFF, 0xFF, 0xFF, 0xFF, 0xFF, 0xFF, 0x7F)));
+    }
+
+    @Test(expected = IOException.class)
+    public void malformedMapSize() throws Exception {
+        // count 1, null fields, context size with the sign bit set
+        EventCodec.decode(new ByteArrayInputStream(frame(1, 0, 0, 0, 0, 0, 0, 0,
+                0xFF, 0xFF, 0xFF, 0xFF, 0xFF, 0xFF, 0xFF, 0xFF, 0xFF, 0x01)));
+    }
+
+    @Test(expected = IOException.class)
+    public void frameLongerThanStream() throws Exception {
+        EventCodec.decode(new ByteArrayInputStream(new byte[] {0x03, 0x00, 0x00, 0x00, 0x01, 0x00}));
+    }
+
+    @Test
+    public void largeFrame() throws Exception {
+        List<Event> events = new ArrayList<>();
+        for (int i = 0; i < 5000; i++) {
+            events.add(new Event(TEST_TENANT, "id-" + i, i, DATA_ID, "TraceCompletion", "Buy Book " + i));
+        }
+        List<Event> decoded = EventCodec.decode(new ByteArrayInputStream(encode(events, 5000)));
+        Assert.assertEquals(events.size(), decoded.size());
+        Assert.assertEquals("Buy Book 4999", decoded.get(4999).getText());
+    }
+
+    private static byte[] frame(int... payload) {
+        byte[] bytes = new byte[payload.length + 4];
+        bytes[3] = (byte) payload.length;
+        for (int i = 0; i < payload.length; i++) {
+            bytes[i + 4] = (byte) payload[i];
+        }
+        return bytes;
+    }
+}
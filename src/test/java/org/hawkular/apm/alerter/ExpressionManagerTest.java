@@ -0,0 +1,385 @@
+/*
+ * Copyright 2015-2016 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.apm.alerter;
+
+import static org.hawkular.alerts.api.model.trigger.Mode.FIRING;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import javax.enterprise.concurrent.ManagedExecutorService;
+
+import org.hawkular.alerts.api.model.condition.Condition;
+import org.hawkular.alerts.api.model.condition.ExternalCondition;
+import org.hawkular.alerts.api.model.event.Event;
+import org.hawkular.alerts.api.model.trigger.FullTrigger;
+import org.hawkular.alerts.api.model.trigger.Trigger;
+import org.hawkular.alerts.api.services.DefinitionsService;
+import org.hawkular.apm.alerter.cep.CepEngine;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @author Lucas Ponce
+ */
+public class ExpressionManagerTest {
+
+    public static final String TEST_TENANT = "28026b36-8fe4-4332-84c8-524e173a68bf";
+    public static final String ALERTER_ID = "HawkularAPM";
+
+    private static final String EXPRESSION = "event:groupBy(context.accountId):window(time,10s):having(count > 1)";
+
+    /*
+        Answers the calls of the tests, the rest of the DefinitionsService is not used
+     */
+    interface Definitions {
+        Collection<Condition> getTriggerConditions(String tenantId, String triggerId) throws Exception;
+
+        default Trigger getTrigger(String tenantId, String triggerId) throws Exception {
+            throw new UnsupportedOperationException("getTrigger");
+        }
+
+        default Collection<Trigger> getAllTriggersByTag(String name, String value) throws Exception {
+            throw new UnsupportedOperationException("getAllTriggersByTag");
+        }
+    }
+
+    /*
+        Triggers of the test tenant, tagged for this alerter
+     */
+    static class TriggerStore implements Definitions {
+        Map<String, Trigger> triggers = new LinkedHashMap<>();
+        Map<String, Collection<Condition>> conditions = new HashMap<>();
+
+        void put(String triggerId, String alerterId, String expression) {
+            Trigger trigger = new Trigger(TEST_TENANT, triggerId, triggerId);
+            trigger.setTags(Collections.singletonMap(ALERTER_ID, "CorrelationEvaluation"));
+            triggers.put(triggerId, trigger);
+            conditions.put(triggerId, Collections.singletonList(new ExternalCondition(triggerId, FIRING,
+                    triggerId, alerterId, expression)));
+        }
+
+        @Override
+        public Collection<Condition> getTriggerConditions(String tenantId, String triggerId) {
+            return conditions.get(triggerId);
+        }
+
+        @Override
+        public Trigger getTrigger(String tenantId, String triggerId) {
+            return triggers.get(triggerId);
+        }
+
+        @Override
+        public Collection<Trigger> getAllTriggersByTag(String name, String value) {
+            return new ArrayList<>(triggers.values());
+        }
+    }
+
+    /*
+        Records the updates, an incremental update fails on demand
+     */
+    static class TestEngine implements CepEngine {
+        List<Collection<FullTrigger>> fullUpdates = new ArrayList<>();
+        List<Collection<FullTrigger>> changedUpdates = new ArrayList<>();
+        List<Collection<Trigger>> removedUpdates = new ArrayList<>();
+        boolean failIncremental;
+
+        @Override
+        public void updateConditions(Collection<FullTrigger> activeTriggers) {
+            fullUpdates.add(activeTriggers);
+        }
+
+        @Override
+        public void updateConditions(Collection<FullTrigger> activeTriggers, Collection<FullTrigger> changed,
+                                     Collection<Trigger> removed) {
+            if (failIncremental) {
+                throw new IllegalStateException("Conditions cannot be updated on shards [0]");
+            }
+            changedUpdates.add(changed);
+            removedUpdates.add(removed);
+        }
+
+        @Override
+        public void processEvents(Collection<Event> events) {
+        }
+
+        @Override
+        public void sendResult(Event event) {
+        }
+    }
+
+    ExecutorService pool;
+
+    @After
+    public void stop() {
+        if (pool != null) {
+            pool.shutdownNow();
+        }
+    }
+
+    static DefinitionsService definitions(Definitions definitions) {
+        return (DefinitionsService) Proxy.newProxyInstance(DefinitionsService.class.getClassLoader(),
+                new Class<?>[] { DefinitionsService.class }, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "getTriggerConditions":
+                            return definitions.getTriggerConditions((String) args[0], (String) args[1]);
+                        case "getTrigger":
+                            return definitions.getTrigger((String) args[0], (String) args[1]);
+                        case "getAllTriggersByTag":
+                            return definitions.getAllTriggersByTag((String) args[0], (String) args[1]);
+                        default:
+                            break;
+                    }
+                    throw new UnsupportedOperationException(method.getName());
+                });
+    }
+
+    static ManagedExecutorService executor(ExecutorService executor) {
+        return (ManagedExecutorService) Proxy.newProxyInstance(ManagedExecutorService.class.getClassLoader(),
+                new Class<?>[] { ManagedExecutorService.class }, (proxy, method, args) -> {
+                    try {
+                        return method.invoke(executor, args);
+                    } catch (InvocationTargetException e) {
+                        throw e.getCause();
+                    }
+                });
+    }
+
+    static List<Trigger> triggers(int numTriggers) {
+        List<Trigger> triggers = new ArrayList<>();
+        for (int i = 0; i < numTriggers; i++) {
+            triggers.add(new Trigger(TEST_TENANT, "trigger-" + i, "Trigger " + i));
+        }
+        return triggers;
+    }
+
+    /*
+        A condition on a dataId named as its trigger, so the fetched conditions can be matched with their trigger
+     */
+    static Collection<Condition> conditions(String triggerId) {
+        return Collections.singletonList(new ExternalCondition(triggerId, FIRING, triggerId, ALERTER_ID, EXPRESSION));
+    }
+
+    private static String dataId(Collection<Condition> conditions) {
+        return ((ExternalCondition) conditions.iterator().next()).getDataId();
+    }
+
+    private static List<String> triggerIds(Collection<?> triggers) {
+        return triggers.stream()
+                .map(trigger -> trigger instanceof FullTrigger ? ((FullTrigger) trigger).getTrigger() : trigger)
+                .map(trigger -> ((Trigger) trigger).getId())
+                .sorted()
+                .collect(Collectors.toList());
+    }
+
+    private static Set<ExpressionManager.TriggerKey> targets(String... triggerIds) {
+        Set<ExpressionManager.TriggerKey> targets = new HashSet<>();
+        for (String triggerId : triggerIds) {
+            targets.add(new ExpressionManager.TriggerKey(TEST_TENANT, triggerId));
+        }
+        return targets;
+    }
+
+    private static ExpressionManager manager(TriggerStore store, TestEngine engine) {
+        ExpressionManager manager = new ExpressionManager();
+        manager.definitions = definitions(store);
+        manager.cep = engine;
+        return manager;
+    }
+
+    @Test
+    public void conditionsKeepTheOrderOfTheTriggers() throws Exception {
+        pool = Executors.newFixedThreadPool(4);
+        Set<String> threads = ConcurrentHashMap.newKeySet();
+        ExpressionManager manager = new ExpressionManager();
+        manager.executor = executor(pool);
+        manager.definitions = definitions((tenantId, triggerId) -> {
+            threads.add(Thread.currentThread().getName());
+            // workers complete out of order
+            Thread.sleep(ThreadLocalRandom.current().nextInt(5));
+            if (triggerId.equals("trigger-7")) {
+                throw new IllegalStateException("Conditions not available");
+            }
+            return conditions(triggerId);
+        });
+
+        List<Trigger> triggers = triggers(50);
+        ExpressionManager.ConditionsFetch fetch = manager.fetchConditions(triggers);
+
+        Assert.assertEquals(1, fetch.failed.get());
+        Assert.assertNull(fetch.conditions[7]);
+        for (int i = 0; i < triggers.size(); i++) {
+            if (i != 7) {
+                Assert.assertEquals(triggers.get(i).getId(), dataId(fetch.conditions[i]));
+            }
+        }
+        Assert.assertTrue(threads.size() > 1);
+        Assert.assertTrue(threads.contains(Thread.currentThread().getName()));
+    }
+
+    @Test
+    public void callerFetchesWhenExecutorRejects() throws Exception {
+        pool = Executors.newFixedThreadPool(1);
+        pool.shutdown();
+        Set<String> threads = ConcurrentHashMap.newKeySet();
+        ExpressionManager manager = new ExpressionManager();
+        manager.executor = executor(pool);
+        manager.definitions = definitions((tenantId, triggerId) -> {
+            threads.add(Thread.currentThread().getName());
+            return conditions(triggerId);
+        });
+
+        List<Trigger> triggers = triggers(10);
+        ExpressionManager.ConditionsFetch fetch = manager.fetchConditions(triggers);
+
+        Assert.assertEquals(0, fetch.failed.get());
+        for (int i = 0; i < triggers.size(); i++) {
+            Assert.assertEquals(triggers.get(i).getId(), dataId(fetch.conditions[i]));
+        }
+        Assert.assertEquals(Collections.singleton(Thread.currentThread().getName()), threads);
+    }
+
+    @Test
+    public void interruptCancelsTheWorkers() throws Exception {
+        pool = Executors.newFixedThreadPool(1);
+        Thread caller = Thread.currentThread();
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch cancelled = new CountDownLatch(1);
+        ExpressionManager manager = new ExpressionManager();
+        manager.executor = executor(pool);
+        manager.definitions = definitions((tenantId, triggerId) -> {
+            if (Thread.currentThread() == caller) {
+                // the caller is interrupted once the pool worker is fetching
+                started.await(5, TimeUnit.SECONDS);
+                caller.interrupt();
+                return conditions(triggerId);
+            }
+            started.countDown();
+            try {
+                Thread.sleep(10000);
+            } catch (InterruptedException e) {
+                cancelled.countDown();
+                Thread.currentThread().interrupt();
+            }
+            return conditions(triggerId);
+        });
+
+        try {
+            manager.fetchConditions(triggers(2));
+            Assert.fail("Fetch should be interrupted");
+        } catch (InterruptedException e) {
+            // expected
+        }
+        Assert.assertTrue(cancelled.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void firstRefreshIsFull() {
+        TriggerStore store = new TriggerStore();
+        store.put("t1", ALERTER_ID, EXPRESSION);
+        store.put("t2", ALERTER_ID, EXPRESSION);
+        TestEngine engine = new TestEngine();
+        ExpressionManager manager = manager(store, engine);
+
+        manager.refresh(targets("t1"));
+
+        Assert.assertEquals(1, engine.fullUpdates.size());
+        Assert.assertEquals(Arrays.asList("t1", "t2"), triggerIds(engine.fullUpdates.get(0)));
+        Assert.assertTrue(engine.changedUpdates.isEmpty());
+    }
+
+    @Test
+    public void targetsAreSplitInChangedAndRemoved() {
+        TriggerStore store = new TriggerStore();
+        for (String triggerId : Arrays.asList("t1", "t2", "t3", "t4")) {
+            store.put(triggerId, ALERTER_ID, EXPRESSION);
+        }
+        TestEngine engine = new TestEngine();
+        ExpressionManager manager = manager(store, engine);
+        manager.refresh(null);
+
+        // t1 is updated, t2 is removed, t3 has no conditions for this alerter anymore, t4 and t5 are not targets
+        String updated = EXPRESSION.replace("count > 1", "count > 2");
+        store.put("t1", ALERTER_ID, updated);
+        store.triggers.remove("t2");
+        store.put("t3", "OtherAlerter", EXPRESSION);
+        store.put("t5", ALERTER_ID, EXPRESSION);
+        manager.refresh(targets("t1", "t2", "t3"));
+
+        Assert.assertEquals(1, engine.fullUpdates.size());
+        Assert.assertEquals(1, engine.changedUpdates.size());
+        Collection<FullTrigger> changed = engine.changedUpdates.get(0);
+        Assert.assertEquals(Arrays.asList("t1"), triggerIds(changed));
+        Assert.assertEquals(updated, ((ExternalCondition) changed.iterator().next().getConditions().iterator()
+                .next()).getExpression());
+        Assert.assertEquals(Arrays.asList("t2", "t3"), triggerIds(engine.removedUpdates.get(0)));
+        Assert.assertEquals("incremental", manager.getRefreshStatus().get("mode"));
+        Assert.assertEquals(2, manager.getRefreshStatus().get("activeTriggers"));
+    }
+
+    @Test
+    public void unknownTargetsFallBackToFullRefresh() {
+        TriggerStore store = new TriggerStore();
+        store.put("t1", ALERTER_ID, EXPRESSION);
+        TestEngine engine = new TestEngine();
+        ExpressionManager manager = manager(store, engine);
+        manager.refresh(null);
+
+        store.put("t2", ALERTER_ID, EXPRESSION);
+        manager.refresh(null);
+
+        Assert.assertEquals(2, engine.fullUpdates.size());
+        Assert.assertEquals(Arrays.asList("t1", "t2"), triggerIds(engine.fullUpdates.get(1)));
+        Assert.assertTrue(engine.changedUpdates.isEmpty());
+    }
+
+    @Test
+    public void failedIncrementalUpdateFallsBackToFullRefresh() {
+        TriggerStore store = new TriggerStore();
+        store.put("t1", ALERTER_ID, EXPRESSION);
+        TestEngine engine = new TestEngine();
+        ExpressionManager manager = manager(store, engine);
+        manager.refresh(null);
+
+        engine.failIncremental = true;
+        store.put("t2", ALERTER_ID, EXPRESSION);
+        manager.refresh(targets("t2"));
+
+        Assert.assertEquals(2, engine.fullUpdates.size());
+        Assert.assertEquals(Arrays.asList("t1", "t2"), triggerIds(engine.fullUpdates.get(1)));
+        Assert.assertEquals("full", manager.getRefreshStatus().get("mode"));
+        Assert.assertTrue(engine.changedUpdates.isEmpty());
+    }
+}
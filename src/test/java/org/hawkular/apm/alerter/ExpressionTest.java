@@ -20,7 +20,6 @@ import static org.hawkular.alerts.api.model.trigger.Mode.FIRING;
 
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collection;
 import java.util.List;
 import java.util.UUID;
 import java.util.concurrent.TimeUnit;
@@ -31,7 +30,7 @@ import org.hawkular.alerts.api.model.condition.ExternalCondition;
 import org.hawkular.alerts.api.model.event.Event;
 import org.hawkular.alerts.api.model.trigger.FullTrigger;
 import org.hawkular.alerts.api.model.trigger.Trigger;
-import org.hawkular.apm.alerter.cep.CepEngine;
+import org.hawkular.apm.alerter.cep.ResultSink;
 import org.junit.Assert;
 import org.junit.Test;
 import org.kie.api.KieBase;
@@ -77,18 +76,7 @@ public class ExpressionTest {
         // kieSession.addEventListener(new DebugRuleRuntimeEventListener());
         results = new ArrayList<>();
         kieSession.setGlobal("clock", clock);
-        kieSession.setGlobal("results", new CepEngine() {
-            @Override
-            public void sendResult(Event event) {
-                results.add(event);
-            }
-
-            @Override
-            public void updateConditions(Collection<FullTrigger> activeTriggers) { }
-
-            @Override
-            public void processEvents(Collection<Event> events) { }
-        });
+        kieSession.setGlobal("results", (ResultSink) results::add);
     }
 
     private void stopSession() {
@@ -459,6 +447,53 @@ public class ExpressionTest {
         });
     }
 
+    @Test
+    public void numericFunctions() {
+        Trigger trigger = new Trigger(TEST_TENANT, "slow-buys-scenario", "Slow Buys Scenario");
+        String expression = "event:groupBy(context.accountId):window(time,10s):" +
+                "having(count > 1, sum.context.duration > 3000, max.context.duration >= 2000)";
+        ExternalCondition condition = new ExternalCondition(trigger.getId(), FIRING, DATA_ID, ALERTER_ID, expression);
+        Expression exp = new Expression(Arrays.asList(new FullTrigger(trigger, null, Arrays.asList(condition))));
+
+        String drl = exp.getDrl();
+
+        System.out.println(drl);
+
+        startSession(drl);
+
+        // Init t0
+        clock.setStartupTime(1);
+        long now = clock.getCurrentTime();
+
+        Event e1 = new Event(TEST_TENANT, uuid(), now, DATA_ID, "TraceCompletion", "E1 - Buy Book");
+        e1.addContext("duration", "1000");
+        e1.addContext("accountId", "user1");
+
+        Event e2 = new Event(TEST_TENANT, uuid(), now, DATA_ID, "TraceCompletion", "E2 - Buy Book");
+        e2.addContext("duration", "1000");
+        e2.addContext("accountId", "user2");
+
+        insert(e1, e2);
+
+        // t0 + 1000
+        now = clock.advanceTime(1000, TimeUnit.MILLISECONDS);
+
+        Event e3 = new Event(TEST_TENANT, uuid(), now, DATA_ID, "TraceCompletion", "E3 - Buy Music");
+        e3.addContext("duration", "2500");
+        e3.addContext("accountId", "user1");
+
+        Event e4 = new Event(TEST_TENANT, uuid(), now, DATA_ID, "TraceCompletion", "E4 - Buy Music");
+        e4.addContext("duration", "not-a-number");
+        e4.addContext("accountId", "user2");
+
+        insert(e3, e4);
+
+        stopSession();
+
+        Assert.assertEquals(1, results.size());
+        Assert.assertEquals("user1", results.get(0).getContext().get("accountId"));
+    }
+
     @Test
     public void combinedScenarios() {
         List<FullTrigger> activeTriggers = new ArrayList<>();
@@ -723,6 +758,46 @@ public class ExpressionTest {
         });
     }
 
+    @Test
+    public void normalizedFingerprint() {
+        String expression = "event:groupBy(context.accountId):window(time,10s):having(count > 2)";
+        String spaced = "  event:groupBy(context.accountId):window(time,10s):having(count   >\t2)  ";
+        String quoted = "event:groupBy(tags.accountId):filter(tags.location == \"a  b\")";
+
+        Assert.assertEquals(expression, Expression.normalize(spaced));
+        Assert.assertEquals(quoted, Expression.normalize(quoted));
+        Assert.assertEquals(Expression.fingerprint(TEST_TENANT, null, DATA_ID, Expression.normalize(expression)),
+                Expression.fingerprint(TEST_TENANT, null, DATA_ID, Expression.normalize(spaced)));
+        Assert.assertNotEquals(Expression.fingerprint(TEST_TENANT, null, DATA_ID, expression),
+                Expression.fingerprint("other-tenant", null, DATA_ID, expression));
+    }
+
+    @Test
+    public void equivalentExpressionHitsCache() {
+        String dataId = DATA_ID + "-" + uuid();
+        String expression = "event:groupBy(context.accountId):window(time,10s):having(count > 2)";
+        String spaced = "  event:groupBy(context.accountId):window(time,10s):having(count   >\t2)  ";
+        Trigger trigger1 = new Trigger(TEST_TENANT, "cache-trigger-1", "Cache Trigger 1");
+        Trigger trigger2 = new Trigger(TEST_TENANT, "cache-trigger-2", "Cache Trigger 2");
+        FullTrigger full1 = new FullTrigger(trigger1, null, Arrays.asList(new ExternalCondition(trigger1.getId(),
+                FIRING, dataId, ALERTER_ID, expression)));
+        FullTrigger full2 = new FullTrigger(trigger2, null, Arrays.asList(new ExternalCondition(trigger2.getId(),
+                FIRING, dataId, ALERTER_ID, spaced)));
+
+        new Expression(Arrays.asList(full1));
+        long hits = Expression.getFragments().getHits();
+        long misses = Expression.getFragments().getMisses();
+        Expression equivalent = new Expression(Arrays.asList(full2));
+
+        Assert.assertEquals(hits + 1, Expression.getFragments().getHits());
+        Assert.assertEquals(misses, Expression.getFragments().getMisses());
+        Assert.assertTrue(equivalent.getDrl().contains("Cache Trigger 2"));
+
+        // one-off expressions do not use the cache
+        new Expression(null, Arrays.asList(full1), false);
+        Assert.assertEquals(hits + 1, Expression.getFragments().getHits());
+    }
+
     public static List<Event> extractEvents(Event e) {
         List<Event> events = new ArrayList<>();
         JsonUtil.fromJson(e.getContext().get("events"), ArrayList.class).stream()
@@ -0,0 +1,127 @@
+/*
+ * Copyright 2015-2016 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.apm.alerter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author Lucas Ponce
+ */
+public class RefreshSchedulerTest {
+
+    ScheduledExecutorService scheduler;
+
+    @Before
+    public void start() {
+        scheduler = Executors.newScheduledThreadPool(2);
+    }
+
+    @After
+    public void stop() {
+        scheduler.shutdownNow();
+    }
+
+    private static void await(RefreshScheduler<?> refresh, long runs) throws Exception {
+        for (int i = 0; i < 50 && refresh.getRuns() < runs; i++) {
+            Thread.sleep(20);
+        }
+    }
+
+    @Test
+    public void burstIsCollapsed() throws Exception {
+        AtomicInteger runs = new AtomicInteger();
+        RefreshScheduler<String> refresh = new RefreshScheduler<>(scheduler, t -> runs.incrementAndGet(), 100, 10000);
+        for (int i = 0; i < 500; i++) {
+            refresh.request();
+        }
+        await(refresh, 1);
+        Thread.sleep(200);
+
+        Assert.assertEquals(500, refresh.getRequests());
+        Assert.assertEquals(1, runs.get());
+    }
+
+    @Test
+    public void maxDelayBoundsContinuousRequests() throws Exception {
+        AtomicInteger runs = new AtomicInteger();
+        RefreshScheduler<String> refresh = new RefreshScheduler<>(scheduler, t -> runs.incrementAndGet(), 100, 300);
+        // requests every 20 ms never let a 100 ms quiet period pass
+        for (int i = 0; i < 50; i++) {
+            refresh.request();
+            Thread.sleep(20);
+        }
+        Assert.assertTrue(runs.get() >= 2);
+        Assert.assertTrue(runs.get() < 50);
+    }
+
+    @Test
+    public void runsDoNotOverlap() throws Exception {
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger overlaps = new AtomicInteger();
+        List<RefreshScheduler<String>> refresh = new ArrayList<>();
+        refresh.add(new RefreshScheduler<>(scheduler, t -> {
+            if (running.incrementAndGet() > 1) {
+                overlaps.incrementAndGet();
+            }
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            running.decrementAndGet();
+        }, 10, 10));
+        refresh.get(0).request();
+        Thread.sleep(50);
+        // received while the first run is in progress
+        refresh.get(0).request();
+        refresh.get(0).request();
+        await(refresh.get(0), 2);
+
+        Assert.assertEquals(0, overlaps.get());
+        Assert.assertEquals(2, refresh.get(0).getRuns());
+    }
+
+    @Test
+    public void targetsAreCollapsed() throws Exception {
+        List<Set<String>> batches = new CopyOnWriteArrayList<>();
+        RefreshScheduler<String> refresh = new RefreshScheduler<>(scheduler, batches::add, 50, 1000);
+        refresh.request("t1");
+        refresh.request("t2");
+        refresh.request("t1");
+        await(refresh, 1);
+        refresh.request("t3");
+        refresh.request();
+        await(refresh, 2);
+
+        Assert.assertEquals(2, batches.size());
+        Assert.assertEquals(new HashSet<>(Arrays.asList("t1", "t2")), batches.get(0));
+        Assert.assertNull(batches.get(1));
+    }
+}
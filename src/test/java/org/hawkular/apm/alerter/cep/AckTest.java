@@ -0,0 +1,60 @@
+/*
+ * Copyright 2015-2016 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.apm.alerter.cep;
+
+import java.util.concurrent.TimeUnit;
+
+import org.hawkular.alerts.api.model.event.Event;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @author Lucas Ponce
+ */
+public class AckTest {
+
+    @Test
+    public void evaluatedBeforeQueued() throws Exception {
+        Ack ack = new Ack(5);
+        // drainer can evaluate events before the producer gets the queued count
+        ack.evaluated(2);
+        Assert.assertFalse(ack.isEvaluated());
+        ack.queued(3);
+        Assert.assertFalse(ack.await(10, TimeUnit.MILLISECONDS));
+        ack.evaluated(1);
+        Assert.assertTrue(ack.await(10, TimeUnit.MILLISECONDS));
+        ack.completed();
+
+        Assert.assertEquals(3, ack.getQueued());
+        Assert.assertTrue(ack.getTimings().containsKey("evaluationMs"));
+    }
+
+    @Test
+    public void resultsAreNotDuplicated() throws Exception {
+        Ack ack = new Ack(2);
+        Event result = new Event("tenant", "result", 1, "dataId", "category", "text");
+        // a result whose collected events contain two events of the batch
+        ack.addResult(result);
+        ack.addResult(result);
+        ack.queued(0);
+        ack.completed();
+
+        Assert.assertTrue(ack.isEvaluated());
+        Assert.assertEquals(1, ack.getResults().size());
+        Assert.assertFalse(ack.getTimings().isEmpty());
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright 2015-2016 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.apm.alerter.cep;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.hawkular.alerts.api.model.event.Event;
+import org.hawkular.alerts.api.model.trigger.FullTrigger;
+import org.hawkular.alerts.api.model.trigger.Trigger;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @author Lucas Ponce
+ */
+public class CepSessionTest {
+
+    static class TestSession extends CepSession {
+        List<Event> inserted = new CopyOnWriteArrayList<>();
+        List<Long> advanced = new CopyOnWriteArrayList<>();
+
+        TestSession(ThreadFactory threadFactory) {
+            super(null, threadFactory, true, 100, 10);
+        }
+
+        @Override
+        public void update(Collection<FullTrigger> activeTriggers) { }
+
+        @Override
+        public void update(Collection<FullTrigger> changed, Collection<Trigger> removed) { }
+
+        @Override
+        protected void insert(List<Event> batch) {
+            inserted.addAll(batch);
+        }
+
+        @Override
+        protected void advance(long time) {
+            advanced.add(time);
+        }
+
+        @Override
+        public void stop() { }
+    }
+
+    private static Event event(long ctime) {
+        return new Event("tenant", "id" + ctime, ctime, "dataId", "category", "text");
+    }
+
+    private static void await(TestSession session, long watermark, long lateEvents, int inserted)
+            throws Exception {
+        for (int i = 0; i < 50 && (session.getWatermark() != watermark || session.getLateEvents() != lateEvents
+                || session.inserted.size() != inserted); i++) {
+            Thread.sleep(100);
+        }
+    }
+
+    @Test
+    public void eventTimeDiscardsLateEvents() throws Exception {
+        TestSession session = new TestSession(Executors.defaultThreadFactory());
+        session.setClock(true, 1000);
+        session.start();
+
+        session.offer(event(10000));
+        session.offer(event(12000));
+        await(session, 11000, 0, 2);
+
+        // Behind the watermark
+        session.offer(event(10500));
+        // Inside the allowed lateness
+        session.offer(event(11500));
+        await(session, 11000, 1, 3);
+
+        session.close();
+
+        Assert.assertEquals(11000, session.getWatermark());
+        Assert.assertEquals(1, session.getLateEvents());
+        Assert.assertEquals(3, session.inserted.size());
+        Assert.assertEquals(11000, session.advanced.get(session.advanced.size() - 1).longValue());
+    }
+
+    @Test
+    public void batchOfferReservesTenantQuota() throws Exception {
+        TestSession session = new TestSession(Executors.defaultThreadFactory());
+        session.setShedding(SheddingPolicy.TENANT_QUOTA, 30);
+
+        List<Event> batch = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            batch.add(new Event(null, "id" + i, i, "dataId", "category", "text"));
+        }
+        // Drainer is not started, so the quota is not released. A batch over the quota is rejected whole.
+        Assert.assertEquals(0, session.offer("tenant1", batch));
+        Assert.assertEquals(50, session.getShedQuotaEvents());
+        Assert.assertNull(batch.get(0).getTenantId());
+
+        Assert.assertEquals(30, session.offer("tenant1", batch.subList(0, 30)));
+        Assert.assertEquals("tenant1", batch.get(29).getTenantId());
+        Assert.assertNull(batch.get(30).getTenantId());
+
+        Assert.assertEquals(0, session.offer("tenant1", batch.subList(30, 40)));
+        Assert.assertEquals(10, session.offer("tenant2", batch.subList(30, 40)));
+        Assert.assertEquals(40, session.getQueueDepth());
+
+        session.start();
+        await(session, Long.MIN_VALUE, 0, 40);
+        session.close();
+
+        Assert.assertEquals(40, session.inserted.size());
+        Assert.assertEquals(30, session.offer("tenant1", batch.subList(0, 30)));
+    }
+
+    @Test
+    public void batchIsQueuedWholeOrRejected() throws Exception {
+        TestSession session = new TestSession(Executors.defaultThreadFactory());
+
+        List<Event> batch = new ArrayList<>();
+        for (int i = 0; i < 60; i++) {
+            batch.add(new Event(null, "id" + i, i, "dataId", "category", "text"));
+        }
+        Assert.assertEquals(60, session.offer("tenant1", batch));
+        Assert.assertEquals(0, session.offer("tenant1", batch.subList(0, 50)));
+        Assert.assertEquals(50, session.getRejectedEvents());
+        Assert.assertEquals(60, session.getQueueDepth());
+
+        // room reserved for a batch that is not queued is returned
+        Assert.assertEquals(40, session.reserve("tenant1", 40));
+        Assert.assertEquals(0, session.reserve("tenant1", 1));
+        session.release("tenant1", 40);
+        Assert.assertEquals(60, session.getQueueDepth());
+        Assert.assertEquals(40, session.offer("tenant1", batch.subList(0, 40)));
+    }
+
+    @Test
+    public void dropOldestMakesRoomForTheBatch() throws Exception {
+        TestSession session = new TestSession(Executors.defaultThreadFactory());
+        session.setShedding(SheddingPolicy.DROP_OLDEST, 0);
+
+        List<Event> batch = new ArrayList<>();
+        for (int i = 0; i < 150; i++) {
+            batch.add(new Event(null, "id" + i, i, "dataId", "category", "text"));
+        }
+        Assert.assertEquals(80, session.offer("tenant1", batch.subList(0, 80)));
+        Assert.assertEquals(50, session.offer("tenant1", batch.subList(80, 130)));
+        Assert.assertEquals(30, session.getShedOldestEvents());
+        Assert.assertEquals(100, session.getQueueDepth());
+
+        // a batch larger than the queue is shed from its head
+        Assert.assertEquals(100, session.offer("tenant2", batch));
+        Assert.assertEquals(30 + 100 + 50, session.getShedOldestEvents());
+        Assert.assertEquals(100, session.getQueueDepth());
+        Assert.assertEquals("tenant1", batch.get(49).getTenantId());
+        Assert.assertEquals("tenant2", batch.get(50).getTenantId());
+
+        session.start();
+        await(session, Long.MIN_VALUE, 0, 100);
+        session.close();
+        Assert.assertEquals(batch.subList(50, 150), session.inserted);
+    }
+
+    @Test
+    public void awaitConsumedEventsQueuedBeforeMark() throws Exception {
+        TestSession session = new TestSession(Executors.defaultThreadFactory());
+        List<Event> batch = new ArrayList<>();
+        for (int i = 0; i < 30; i++) {
+            batch.add(new Event(null, "id" + i, i, "dataId", "category", "text"));
+        }
+        Assert.assertEquals(30, session.offer("tenant1", batch));
+        long mark = session.getQueuedMark();
+        Assert.assertEquals(30, mark);
+
+        // Drainer is not started
+        Assert.assertFalse(session.awaitConsumed(mark, 100));
+
+        session.start();
+        Assert.assertTrue(session.awaitConsumed(mark, 5000));
+        Assert.assertEquals(30, session.inserted.size());
+        session.close();
+    }
+}
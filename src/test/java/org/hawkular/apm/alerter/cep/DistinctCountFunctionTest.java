@@ -0,0 +1,59 @@
+/*
+ * Copyright 2015-2016 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.apm.alerter.cep;
+
+import java.io.Serializable;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @author Lucas Ponce
+ */
+public class DistinctCountFunctionTest {
+
+    @Test
+    public void exactOnHighCardinality() throws Exception {
+        DistinctCountFunction function = new DistinctCountFunction();
+        Serializable context = function.createContext();
+        for (int i = 0; i < 100000; i++) {
+            function.accumulate(context, "user" + i);
+            function.accumulate(context, "user" + i);
+        }
+        function.accumulate(context, null);
+        Assert.assertEquals(100000L, function.getResult(context));
+    }
+
+    @Test
+    public void reverse() throws Exception {
+        DistinctCountFunction function = new DistinctCountFunction();
+        Serializable context = function.createContext();
+        function.accumulate(context, "ip1");
+        function.accumulate(context, "ip1");
+        function.accumulate(context, "ip2");
+        Assert.assertEquals(2L, function.getResult(context));
+
+        function.reverse(context, "ip1");
+        Assert.assertEquals(2L, function.getResult(context));
+
+        function.reverse(context, "ip1");
+        Assert.assertEquals(1L, function.getResult(context));
+
+        function.init(context);
+        Assert.assertEquals(0L, function.getResult(context));
+    }
+}
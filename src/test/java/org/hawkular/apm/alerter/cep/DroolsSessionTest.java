@@ -0,0 +1,233 @@
+/*
+ * Copyright 2015-2016 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.apm.alerter.cep;
+
+import static org.hawkular.alerts.api.model.trigger.Mode.FIRING;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
+
+import org.hawkular.alerts.api.model.condition.ExternalCondition;
+import org.hawkular.alerts.api.model.event.Event;
+import org.hawkular.alerts.api.model.trigger.FullTrigger;
+import org.hawkular.alerts.api.model.trigger.Trigger;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.kie.api.runtime.KieSession;
+
+/**
+ * @author Lucas Ponce
+ */
+public class DroolsSessionTest {
+
+    public static final String TEST_TENANT = "28026b36-8fe4-4332-84c8-524e173a68bf";
+    public static final String DATA_ID = "apm-data-id";
+    public static final String ALERTER_ID = "HawkularAPM";
+
+    private static final String COUNT_2 = "event:groupBy(context.accountId):window(time,10s):having(count > 1)";
+    private static final String COUNT_3 = "event:groupBy(context.accountId):window(time,10s):having(count > 2)";
+
+    List<Event> results = new CopyOnWriteArrayList<>();
+    DroolsSession session;
+
+    /*
+        Event time, so the drainer fires the rules and the evaluation is deterministic
+     */
+    private DroolsSession newSession(boolean incremental) {
+        session = new DroolsSession(results::add, Executors.defaultThreadFactory(), incremental, 1000, 100);
+        session.setClock(true, 0);
+        return session;
+    }
+
+    @After
+    public void closeSession() {
+        if (session != null) {
+            session.close();
+        }
+    }
+
+    private static FullTrigger trigger(String triggerId, String expression) {
+        Trigger trigger = new Trigger(TEST_TENANT, triggerId, triggerId);
+        ExternalCondition condition = new ExternalCondition(triggerId, FIRING, DATA_ID, ALERTER_ID, expression);
+        return new FullTrigger(trigger, null, Arrays.asList(condition));
+    }
+
+    private static Event event(long ctime, String accountId) {
+        Event event = new Event(TEST_TENANT, UUID.randomUUID().toString(), ctime, DATA_ID, "TraceCompletion",
+                "Buy " + ctime);
+        event.addContext("accountId", accountId);
+        return event;
+    }
+
+    /*
+        Waits until the drainer has inserted the events and fired the rules
+     */
+    private void insert(Event... events) {
+        for (Event event : events) {
+            Assert.assertTrue(session.offer(event));
+        }
+        Assert.assertTrue(session.awaitConsumed(session.getQueuedMark(), 10000));
+    }
+
+    private List<Event> results(String expression) {
+        return results.stream().filter(result -> expression.equals(result.getText())).collect(Collectors.toList());
+    }
+
+    @Test
+    public void packageCacheIsClearedOnRebuild() {
+        newSession(false);
+        List<FullTrigger> triggers = Arrays.asList(trigger("first", COUNT_2), trigger("second", COUNT_3));
+
+        session.update(triggers);
+        long compiled = session.getPackages().getMisses();
+        Assert.assertTrue(compiled > 0);
+        Assert.assertEquals(0, session.getPackages().getHits());
+
+        // Packages compiled for the previous KieBase are not reused by the new one
+        session.update(triggers);
+        Assert.assertEquals(0, session.getPackages().getHits());
+        Assert.assertEquals(2 * compiled, session.getPackages().getMisses());
+    }
+
+    @Test
+    public void incrementalUpdateKeepsWindowOfUnchangedTriggers() {
+        newSession(true);
+        session.update(Arrays.asList(trigger("first", COUNT_2), trigger("second", COUNT_3)));
+        session.start();
+
+        insert(event(1000, "user1"), event(2000, "user1"));
+        Assert.assertEquals(1, results(COUNT_2).size());
+        long facts = session.getFactCount();
+        long swaps = session.getSwaps();
+
+        // second is modified, first is unchanged
+        String modified = COUNT_3.replace("count > 2", "count > 0");
+        session.update(Arrays.asList(trigger("first", COUNT_2), trigger("second", modified)));
+        Assert.assertEquals(swaps, session.getSwaps());
+        Assert.assertEquals(facts, session.getFactCount());
+
+        // first does not fire again for the events inserted before the update, but it counts them in its window
+        insert(event(3000, "user1"));
+        Assert.assertEquals(2, results(COUNT_2).size());
+        Assert.assertEquals(0, results(COUNT_3).size());
+        Assert.assertFalse(results(modified).isEmpty());
+        results(modified).stream()
+                .forEach(result -> Assert.assertEquals("user1", result.getContext().get("accountId")));
+    }
+
+    @Test
+    public void sharedExtractRuleSurvivesRemovedTrigger() {
+        newSession(true);
+        FullTrigger first = trigger("first", COUNT_2);
+        session.update(Arrays.asList(first, trigger("second", COUNT_3)));
+        session.start();
+
+        insert(event(1000, "user1"), event(2000, "user1"));
+        Assert.assertEquals(1, results(COUNT_2).size());
+
+        session.update(Collections.emptyList(), Collections.singletonList(first.getTrigger()));
+
+        // A new group is only created by the "Extract" rule shared by both triggers
+        insert(event(3000, "user2"), event(4000, "user2"), event(5000, "user2"));
+        Assert.assertEquals(1, results(COUNT_2).size());
+        List<Event> fired = results(COUNT_3);
+        Assert.assertEquals(1, fired.size());
+        Assert.assertEquals("user2", fired.get(0).getContext().get("accountId"));
+    }
+
+    @Test
+    public void rebuildWarmsTheNewSessionWithoutResults() {
+        newSession(false);
+        session.update(Collections.singletonList(trigger("first", COUNT_2)));
+        session.start();
+
+        insert(event(1000, "user1"), event(2000, "user1"));
+        Assert.assertEquals(1, results(COUNT_2).size());
+        long facts = session.getFactCount();
+        long swaps = session.getSwaps();
+        KieSession previous = session.getKieSession();
+
+        session.update(Arrays.asList(trigger("first", COUNT_2), trigger("second", COUNT_3)));
+        Assert.assertEquals(swaps + 1, session.getSwaps());
+        Assert.assertNotSame(previous, session.getKieSession());
+        Assert.assertEquals(facts, session.getFactCount());
+        // Results of the replayed events were already sent by the previous session
+        Assert.assertEquals(1, results(COUNT_2).size());
+        Assert.assertEquals(0, results(COUNT_3).size());
+
+        // The new session counts the replayed events in its windows
+        insert(event(3000, "user1"));
+        Assert.assertEquals(2, results(COUNT_2).size());
+        Assert.assertEquals(1, results(COUNT_3).size());
+
+        try {
+            previous.insert(event(4000, "user1"));
+            Assert.fail("Previous session should be disposed");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void restoredEventsWarmTheFirstSession() {
+        newSession(false);
+        session.restore(Arrays.asList(event(1000, "user1"), event(2000, "user1")));
+        session.update(Collections.singletonList(trigger("first", COUNT_2)));
+        session.start();
+        // The restored events match the rule, but they are replayed without results
+        Assert.assertTrue(results.isEmpty());
+
+        insert(event(3000, "user1"));
+        Assert.assertEquals(1, results(COUNT_2).size());
+        Assert.assertEquals(3, session.snapshot().size());
+    }
+
+    @Test
+    public void eventsInsertedDuringSwapsAreNotLost() throws Exception {
+        newSession(false);
+        session.update(Collections.singletonList(trigger("first", COUNT_2)));
+        session.start();
+        long swaps = session.getSwaps();
+
+        int numEvents = 2000;
+        Thread producer = new Thread(() -> {
+            for (int i = 0; i < numEvents; i++) {
+                while (!session.offer(event(1000 + i, "user1"))) {
+                    Thread.yield();
+                }
+            }
+        });
+        producer.start();
+        for (int i = 0; i < 3; i++) {
+            session.update(Collections.singletonList(trigger("first", COUNT_2)));
+        }
+        producer.join();
+        Assert.assertTrue(session.awaitConsumed(session.getQueuedMark(), 10000));
+
+        Assert.assertEquals(swaps + 3, session.getSwaps());
+        // Every event once, plus the group of the "Extract" rule
+        Assert.assertEquals(numEvents + 1, session.getFactCount());
+        Assert.assertEquals(numEvents, session.snapshot().size());
+        Assert.assertEquals(0, session.getLateEvents());
+    }
+}
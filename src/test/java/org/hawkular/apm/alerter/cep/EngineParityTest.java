@@ -0,0 +1,222 @@
+/*
+ * Copyright 2015-2016 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.apm.alerter.cep;
+
+import static org.hawkular.alerts.api.model.trigger.Mode.FIRING;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.drools.core.time.impl.PseudoClockScheduler;
+import org.hawkular.alerts.api.model.condition.ExternalCondition;
+import org.hawkular.alerts.api.model.event.Event;
+import org.hawkular.alerts.api.model.trigger.FullTrigger;
+import org.hawkular.alerts.api.model.trigger.Trigger;
+import org.hawkular.apm.alerter.Expression;
+import org.junit.Assert;
+import org.junit.Test;
+import org.kie.api.KieBase;
+import org.kie.api.KieBaseConfiguration;
+import org.kie.api.conf.EventProcessingOption;
+import org.kie.api.io.ResourceType;
+import org.kie.api.runtime.KieSession;
+import org.kie.api.runtime.KieSessionConfiguration;
+import org.kie.api.runtime.conf.ClockTypeOption;
+import org.kie.internal.KnowledgeBaseFactory;
+import org.kie.internal.utils.KieHelper;
+
+/**
+ * Runs the DrlTests scenarios, written with the groupBy DSL, on the DRL generated by Expression and on the
+ * WindowEngine. Both engines must produce the same results.
+ *
+ * @author Lucas Ponce
+ */
+public class EngineParityTest {
+
+    public static final String TEST_TENANT = "28026b36-8fe4-4332-84c8-524e173a68bf";
+    public static final String DATA_ID = "apm-data-id";
+    public static final String ALERTER_ID = "HawkularAPM";
+
+    public static String uuid() {
+        return UUID.randomUUID().toString();
+    }
+
+    /*
+        Events inserted together at time
+     */
+    static class Step {
+        final long time;
+        final List<Event> events;
+
+        Step(long time, Event... events) {
+            this.time = time;
+            this.events = Arrays.asList(events);
+        }
+    }
+
+    private static List<Event> drools(String expression, List<Step> steps) {
+        Trigger trigger = new Trigger(TEST_TENANT, "parity-scenario", "Parity Scenario");
+        ExternalCondition condition = new ExternalCondition(trigger.getId(), FIRING, DATA_ID, ALERTER_ID, expression);
+        Expression exp = new Expression(Arrays.asList(new FullTrigger(trigger, null, Arrays.asList(condition))));
+
+        KieBaseConfiguration kieBaseConfiguration = KnowledgeBaseFactory.newKnowledgeBaseConfiguration();
+        kieBaseConfiguration.setOption( EventProcessingOption.STREAM );
+        KieBase kieBase = new KieHelper().addContent(exp.getDrl(), ResourceType.DRL).build(kieBaseConfiguration);
+        KieSessionConfiguration kieSessionConf = KnowledgeBaseFactory.newKnowledgeSessionConfiguration();
+        kieSessionConf.setOption( ClockTypeOption.get( "pseudo" ) );
+        KieSession kieSession = kieBase.newKieSession(kieSessionConf, null);
+        PseudoClockScheduler clock = kieSession.getSessionClock();
+        List<Event> results = new ArrayList<>();
+        kieSession.setGlobal("clock", clock);
+        kieSession.setGlobal("results", (ResultSink) results::add);
+
+        clock.setStartupTime(steps.get(0).time);
+        for (Step step : steps) {
+            clock.advanceTime(step.time - clock.getCurrentTime(), TimeUnit.MILLISECONDS);
+            step.events.stream().forEach(kieSession::insert);
+            kieSession.fireAllRules();
+        }
+        kieSession.dispose();
+        return results;
+    }
+
+    private static List<Event> window(String expression, List<Step> steps) {
+        Trigger trigger = new Trigger(TEST_TENANT, "parity-scenario", "Parity Scenario");
+        ExternalCondition condition = new ExternalCondition(trigger.getId(), FIRING, DATA_ID, ALERTER_ID, expression);
+        List<Event> results = new ArrayList<>();
+        WindowEngine engine = new WindowEngine(results::add);
+        engine.update(Arrays.asList(new FullTrigger(trigger, null, Arrays.asList(condition))), false);
+        for (Step step : steps) {
+            engine.insert(step.events, step.time);
+        }
+        engine.clear();
+        return results;
+    }
+
+    /*
+        Both engines fire the same number of results for the same groups
+     */
+    private static void assertParity(String expression, String field, List<Step> steps, int expected) {
+        List<String> droolsGroups = groups(drools(expression, steps), field);
+        List<String> windowGroups = groups(window(expression, steps), field);
+        Assert.assertEquals(expected, droolsGroups.size());
+        Assert.assertEquals(droolsGroups, windowGroups);
+    }
+
+    private static List<String> groups(List<Event> results, String field) {
+        List<String> groups = new ArrayList<>();
+        results.stream().forEach(result -> groups.add(result.getContext().get(field)));
+        Collections.sort(groups);
+        return groups;
+    }
+
+    private static Event event(long ctime, String category, String text, String... tags) {
+        Event event = new Event(TEST_TENANT, uuid(), ctime, DATA_ID, category, text);
+        for (int i = 0; i < tags.length; i += 2) {
+            event.addTag(tags[i], tags[i + 1]);
+        }
+        return event;
+    }
+
+    private static Event contextEvent(long ctime, String text, String accountId) {
+        Event event = new Event(TEST_TENANT, uuid(), ctime, DATA_ID, "TraceCompletion", text);
+        event.addContext("accountId", accountId);
+        return event;
+    }
+
+    @Test
+    public void marketingScenario() {
+        String expression = "event:groupBy(context.accountId):window(time,10s):having(count > 2)";
+        long t0 = 1;
+        List<Step> steps = Arrays.asList(
+                new Step(t0, contextEvent(t0, "E1 - Buy Book", "user1"), contextEvent(t0, "E6 - Buy Book", "user2")),
+                new Step(t0 + 1000, contextEvent(t0 + 1000, "E2 - Buy Music", "user1")),
+                new Step(t0 + 2000, contextEvent(t0 + 2000, "E3 - Buy Groceries", "user1")),
+                new Step(t0 + 3000, contextEvent(t0 + 3000, "E4 - Buy VideoGames", "user1")),
+                new Step(t0 + 4000, contextEvent(t0 + 4000, "E5 - Buy VideoGames", "user1")),
+                new Step(t0 + 5000, contextEvent(t0 + 5000, "E7 - Buy Music", "user2")),
+                new Step(t0 + 11000, contextEvent(t0 + 11000, "E8 - Buy Groceries", "user2")));
+
+        assertParity(expression, "accountId", steps, 4);
+    }
+
+    @Test
+    public void fraudScenario() {
+        String expression = "event:groupBy(tags.accountId):window(time,10s):having(count > 1, count.tags.location > 1)";
+        long t0 = 1;
+        String c = "TraceCompletion";
+        List<Step> steps = Arrays.asList(
+                new Step(t0,
+                        event(t0, c, "Buy Book", "accountId", "user1", "location", "ip1"),
+                        event(t0, c, "Buy Book", "accountId", "user2", "location", "ip3"),
+                        event(t0, c, "Buy Book", "accountId", "user3", "location", "ip10")),
+                new Step(t0 + 1000,
+                        event(t0 + 1000, c, "Buy Music", "accountId", "user1", "location", "ip1"),
+                        event(t0 + 1000, c, "Buy Music", "accountId", "user3", "location", "ip10")),
+                new Step(t0 + 2000,
+                        event(t0 + 2000, c, "Buy Groceries", "accountId", "user1", "location", "ip1"),
+                        event(t0 + 2000, c, "Buy Groceries", "accountId", "user3", "location", "ip10")),
+                new Step(t0 + 3000,
+                        event(t0 + 3000, c, "Buy VideoGames", "accountId", "user1", "location", "ip2"),
+                        event(t0 + 3000, c, "Buy VideoGames", "accountId", "user3", "location", "ip10")),
+                new Step(t0 + 4000,
+                        event(t0 + 4000, c, "Buy VideoGames", "accountId", "user1", "location", "ip1"),
+                        event(t0 + 4000, c, "Buy VideoGames", "accountId", "user3", "location", "ip10")),
+                new Step(t0 + 15000,
+                        event(t0 + 15000, c, "Buy Music", "accountId", "user2", "location", "ip4")),
+                new Step(t0 + 20000,
+                        event(t0 + 20000, c, "Buy Groceries", "accountId", "user2", "location", "ip5")));
+
+        assertParity(expression, "accountId", steps, 3);
+    }
+
+    @Test
+    public void customerRetentionScenario() {
+        String expression = "event:groupBy(tags.traceId):" +
+                "filter((category == \"Credit Check\" && text == \"Exceptionally Good\") || " +
+                       "(category == \"Stock Check\" && text == \"Out of Stock\")):" +
+                "having(count > 1, count.tags.accountId == 1)";
+        long t0 = 1;
+        String credit = "Credit Check";
+        String stock = "Stock Check";
+        List<Step> steps = Arrays.asList(
+                new Step(t0,
+                        event(t0, credit, "Exceptionally Good", "traceId", "trace1", "accountId", "user1"),
+                        event(t0, credit, "Exceptionally Good", "traceId", "trace4", "accountId", "user2")),
+                new Step(t0 + 1000,
+                        event(t0 + 1000, stock, "Out of Stock", "traceId", "trace1", "accountId", "user1"),
+                        event(t0 + 1000, stock, "Out of Stock", "traceId", "trace4", "accountId", "user2")),
+                new Step(t0 + 2000,
+                        event(t0 + 2000, credit, "Good", "traceId", "trace2", "accountId", "user1"),
+                        event(t0 + 2000, credit, "Good", "traceId", "trace5", "accountId", "user2")),
+                new Step(t0 + 3000,
+                        event(t0 + 3000, stock, "Out of Stock", "traceId", "trace2", "accountId", "user1"),
+                        event(t0 + 3003, stock, "Out of Stock", "traceId", "trace5", "accountId", "user2")),
+                new Step(t0 + 4000,
+                        event(t0 + 4000, credit, "Exceptionally Good", "traceId", "trace3", "accountId", "user1"),
+                        event(t0 + 4000, credit, "Exceptionally Good", "traceId", "trace6", "accountId", "user2")),
+                new Step(t0 + 5000,
+                        event(t0 + 5000, stock, "Available", "traceId", "trace3", "accountId", "user1"),
+                        event(t0 + 5000, stock, "Available", "traceId", "trace6", "accountId", "user2")));
+
+        assertParity(expression, "traceId", steps, 2);
+    }
+}
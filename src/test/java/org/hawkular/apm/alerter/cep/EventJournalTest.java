@@ -0,0 +1,137 @@
+/*
+ * Copyright 2015-2016 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.apm.alerter.cep;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.hawkular.alerts.api.model.event.Event;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @author Lucas Ponce
+ */
+public class EventJournalTest {
+
+    private static List<Event> batch(int from, int size) {
+        List<Event> events = new ArrayList<>(size);
+        for (int i = from; i < from + size; i++) {
+            events.add(new Event("tenant", "id" + i, i, "dataId", "category", "text"));
+        }
+        return events;
+    }
+
+    private static long segments(Path dir) throws Exception {
+        return Files.list(dir).filter(f -> f.toString().endsWith(".journal")).count();
+    }
+
+    @Test
+    public void recoversAcrossSegmentsAndReopen() throws Exception {
+        Path dir = Files.createTempDirectory("journal");
+        EventJournal journal = new EventJournal(dir, 1024);
+        long position = 0;
+        for (int i = 0; i < 20; i++) {
+            position = journal.append(batch(i * 10, 10));
+            journal.sync(position);
+        }
+        Assert.assertTrue(segments(dir) > 1);
+        Assert.assertEquals(200, journal.recover().size());
+        journal.close();
+
+        journal = new EventJournal(dir, 1024);
+        Assert.assertEquals(position, journal.position());
+        List<Event> events = journal.recover();
+        Assert.assertEquals(200, events.size());
+        Assert.assertEquals("id199", events.get(199).getId());
+        journal.append(batch(200, 10));
+        Assert.assertEquals(210, journal.recover().size());
+        journal.close();
+    }
+
+    @Test
+    public void recoversFromLastCheckpoint() throws Exception {
+        Path dir = Files.createTempDirectory("journal");
+        EventJournal journal = new EventJournal(dir, 1024);
+        for (int i = 0; i < 10; i++) {
+            journal.append(batch(i * 10, 10));
+        }
+        long first = journal.position();
+        journal.checkpoint(first);
+        for (int i = 10; i < 20; i++) {
+            journal.append(batch(i * 10, 10));
+        }
+        journal.checkpoint(journal.position());
+        long before = segments(dir);
+        journal.append(batch(200, 10));
+        journal.close();
+
+        journal = new EventJournal(dir, 1024);
+        List<Event> events = journal.recover();
+        Assert.assertEquals(10, events.size());
+        Assert.assertEquals("id200", events.get(0).getId());
+        // only the segment of the last checkpoint is kept
+        Assert.assertEquals(1, before);
+        Assert.assertTrue(segments(dir) <= 2);
+        Assert.assertEquals(10, journal.recover().stream().map(Event::getId).collect(Collectors.toSet()).size());
+        journal.close();
+    }
+
+    @Test
+    public void tombstonesRemoveShedEvents() throws Exception {
+        Path dir = Files.createTempDirectory("journal");
+        EventJournal journal = new EventJournal(dir, 1024);
+        List<Event> first = batch(0, 10);
+        journal.append(first);
+        journal.append(batch(10, 10), first.subList(0, 5));
+        journal.append(Collections.emptyList(), batch(15, 2));
+        journal.close();
+
+        journal = new EventJournal(dir, 1024);
+        List<String> ids = journal.recover().stream().map(Event::getId).collect(Collectors.toList());
+        Assert.assertEquals(13, ids.size());
+        Assert.assertEquals("id5", ids.get(0));
+        Assert.assertFalse(ids.contains("id15"));
+        journal.close();
+    }
+
+    @Test
+    public void tornRecordEndsTheJournal() throws Exception {
+        Path dir = Files.createTempDirectory("journal");
+        EventJournal journal = new EventJournal(dir, 64 * 1024);
+        journal.append(batch(0, 10));
+        long position = journal.position();
+        journal.append(batch(10, 10));
+        journal.close();
+
+        Path segment = Files.list(dir).filter(f -> f.toString().endsWith(".journal")).findFirst().get();
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(new byte[] {1, 2, 3}), position + 12);
+        }
+        journal = new EventJournal(dir, 64 * 1024);
+        Assert.assertEquals(10, journal.recover().size());
+        Assert.assertEquals(position, journal.position());
+        journal.close();
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright 2015-2016 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.apm.alerter.cep;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @author Lucas Ponce
+ */
+public class HyperLogLogTest {
+
+    @Test
+    public void exactOnLowCardinality() {
+        HyperLogLog hll = new HyperLogLog();
+        for (int i = 0; i < 1000; i++) {
+            hll.add("ip" + (i % 10));
+        }
+        hll.add(null);
+        Assert.assertEquals(10, hll.cardinality());
+    }
+
+    @Test
+    public void estimateOnHighCardinality() {
+        HyperLogLog hll = new HyperLogLog();
+        int distinct = 100000;
+        for (int i = 0; i < distinct; i++) {
+            hll.add("user" + i);
+            hll.add("user" + i);
+        }
+        double error = Math.abs(hll.cardinality() - distinct) / (double) distinct;
+        Assert.assertTrue("Error " + error, error < 0.05);
+    }
+
+    @Test
+    public void clear() {
+        HyperLogLog hll = new HyperLogLog();
+        for (int i = 0; i < 1000; i++) {
+            hll.add("user" + i);
+        }
+        hll.clear();
+        hll.add("user1");
+        Assert.assertEquals(1, hll.cardinality());
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright 2015-2016 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.apm.alerter.cep;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @author Lucas Ponce
+ */
+public class IngestQueueTest {
+
+    @Test
+    public void offerOverCapacityIsRejected() {
+        IngestQueue<Integer> queue = new IngestQueue<>(3);
+        Assert.assertTrue(queue.offer(1));
+        Assert.assertTrue(queue.offer(2));
+        Assert.assertTrue(queue.offer(3));
+        Assert.assertFalse(queue.offer(4));
+        Assert.assertEquals(3, queue.depth());
+
+        List<Integer> batch = new ArrayList<>();
+        Assert.assertEquals(2, queue.drain(batch, 2));
+        Assert.assertEquals(1, queue.depth());
+        Assert.assertEquals(Integer.valueOf(3), queue.poll());
+        Assert.assertNull(queue.poll());
+        Assert.assertEquals(0, queue.depth());
+    }
+
+    @Test
+    public void reservedRoomIsNotOffered() {
+        IngestQueue<Integer> queue = new IngestQueue<>(3);
+        Assert.assertTrue(queue.reserve(2));
+        Assert.assertFalse(queue.reserve(2));
+        Assert.assertTrue(queue.offer(1));
+        Assert.assertFalse(queue.offer(2));
+        Assert.assertEquals(3, queue.depth());
+
+        queue.offerReserved(Arrays.asList(2, 3));
+        List<Integer> batch = new ArrayList<>();
+        Assert.assertEquals(3, queue.drain(batch, 10));
+        Assert.assertEquals(Arrays.asList(1, 2, 3), batch);
+        Assert.assertEquals(0, queue.depth());
+
+        Assert.assertTrue(queue.reserve(3));
+        queue.release(3);
+        Assert.assertEquals(0, queue.depth());
+        Assert.assertFalse(queue.reserve(4));
+    }
+
+    @Test
+    public void concurrentProducersDoNotExceedCapacity() throws Exception {
+        int capacity = 1000;
+        int producers = 8;
+        int perProducer = 5000;
+        IngestQueue<Integer> queue = new IngestQueue<>(capacity);
+        AtomicInteger accepted = new AtomicInteger();
+        AtomicInteger maxDepth = new AtomicInteger();
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(producers);
+        for (int p = 0; p < producers; p++) {
+            int base = p * perProducer;
+            new Thread(() -> {
+                try {
+                    start.await();
+                    for (int i = 0; i < perProducer; i++) {
+                        if (queue.offer(base + i)) {
+                            accepted.incrementAndGet();
+                        }
+                        maxDepth.accumulateAndGet(queue.depth(), Math::max);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    done.countDown();
+                }
+            }).start();
+        }
+
+        Set<Integer> drained = new HashSet<>();
+        List<Integer> batch = new ArrayList<>();
+        start.countDown();
+        while (done.getCount() > 0 || queue.depth() > 0) {
+            if (queue.drain(batch, 100) == 0) {
+                queue.await(TimeUnit.MILLISECONDS.toNanos(1));
+            }
+            drained.addAll(batch);
+            batch.clear();
+        }
+        Assert.assertTrue(done.await(10, TimeUnit.SECONDS));
+
+        Assert.assertTrue("Depth [" + maxDepth.get() + "] over capacity", maxDepth.get() <= capacity);
+        Assert.assertEquals(accepted.get(), drained.size());
+        Assert.assertEquals(0, queue.depth());
+    }
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright 2015-2016 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.apm.alerter.cep;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @author Lucas Ponce
+ */
+public class RateMeterTest {
+
+    @Test
+    public void rateIsCalculatedOverTheWindow() {
+        LongAdder counter = new LongAdder();
+        RateMeter meter = new RateMeter(counter::sum, 3);
+        long second = TimeUnit.SECONDS.toNanos(1);
+
+        meter.tick(0);
+        Assert.assertEquals(0, meter.getRate(), 0.001);
+        counter.add(100);
+        meter.tick(second);
+        Assert.assertEquals(100, meter.getRate(), 0.001);
+        counter.add(300);
+        meter.tick(2 * second);
+        Assert.assertEquals(200, meter.getRate(), 0.001);
+
+        // the first sample leaves the window
+        meter.tick(3 * second);
+        Assert.assertEquals(150, meter.getRate(), 0.001);
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright 2015-2016 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.apm.alerter.cep;
+
+import java.util.List;
+
+import org.hawkular.alerts.api.model.event.Event;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @author Lucas Ponce
+ */
+public class RecentEventsTest {
+
+    private static Event event(long ctime) {
+        return new Event("tenant", "id" + ctime, ctime, "dataId", "category", "text");
+    }
+
+    @Test
+    public void keepsLastEventsInOrder() {
+        RecentEvents recent = new RecentEvents(3);
+        Assert.assertTrue(recent.since(0).isEmpty());
+        for (int i = 1; i <= 5; i++) {
+            recent.add(event(i));
+        }
+        Assert.assertEquals(5, recent.sequence());
+        List<Event> events = recent.since(0);
+        Assert.assertEquals(3, events.size());
+        Assert.assertEquals(3, events.get(0).getCtime());
+        Assert.assertEquals(5, events.get(2).getCtime());
+    }
+
+    @Test
+    public void returnsEventsAddedSinceSequence() {
+        RecentEvents recent = new RecentEvents(10);
+        recent.add(event(1));
+        recent.add(event(2));
+        long sequence = recent.sequence();
+        recent.add(event(3));
+        List<Event> events = recent.since(sequence);
+        Assert.assertEquals(1, events.size());
+        Assert.assertEquals(3, events.get(0).getCtime());
+        Assert.assertTrue(recent.since(recent.sequence()).isEmpty());
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2015-2016 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.apm.alerter.cep;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import org.hawkular.alerts.api.model.event.Event;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @author Lucas Ponce
+ */
+public class ReplayTest {
+
+    public static final String TEST_TENANT = "28026b36-8fe4-4332-84c8-524e173a68bf";
+    public static final String DATA_ID = "apm-data-id";
+
+    private static final String EXPRESSION = "event:groupBy(context.accountId):window(time,10s):having(count > 2)";
+
+    /*
+        Marketing scenario recording: user1 buys 5 times in < 10 seconds, user2 buys 3 times in > 10 seconds.
+     */
+    private List<Event> recording() {
+        long[] offsets = {0, 0, 1000, 2000, 3000, 4000, 5000, 11000};
+        String[] accounts = {"user1", "user2", "user1", "user1", "user1", "user1", "user2", "user2"};
+        List<Event> events = new ArrayList<>();
+        for (int i = 0; i < offsets.length; i++) {
+            Event event = new Event(null, UUID.randomUUID().toString(), 1 + offsets[i], DATA_ID,
+                    "TraceCompletion", "E" + i);
+            event.addContext("accountId", accounts[i]);
+            events.add(event);
+        }
+        return events;
+    }
+
+    private Replay replay(boolean nativeEngine, int maxResults) {
+        Replay replay = new Replay(TEST_TENANT, EXPRESSION, null, null, nativeEngine, maxResults);
+        recording().stream().forEach(replay::add);
+        return replay;
+    }
+
+    @Test
+    public void replayDrools() {
+        Replay replay = replay(false, 100);
+        Map<String, Object> stats = replay.finish();
+
+        Assert.assertEquals(4, replay.getResults().size());
+        Assert.assertEquals(8L, stats.get("events"));
+        Assert.assertEquals(DATA_ID, stats.get("dataId"));
+        replay.getResults().stream().forEach(e -> Assert.assertEquals("user1", e.getContext().get("accountId")));
+    }
+
+    @Test
+    public void replayNative() {
+        Replay replay = replay(true, 2);
+        Map<String, Object> stats = replay.finish();
+
+        Assert.assertEquals(2, replay.getResults().size());
+        Assert.assertEquals(4L, stats.get("results"));
+        Assert.assertEquals(true, stats.get("resultsTruncated"));
+        Assert.assertEquals(0L, stats.get("outOfOrderEvents"));
+        Assert.assertEquals(11001L, stats.get("lastCtime"));
+    }
+}
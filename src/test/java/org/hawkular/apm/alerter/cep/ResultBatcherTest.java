@@ -0,0 +1,193 @@
+/*
+ * Copyright 2015-2016 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.apm.alerter.cep;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.hawkular.alerts.api.model.event.Event;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @author Lucas Ponce
+ */
+public class ResultBatcherTest {
+
+    private static Event event(int i) {
+        return new Event("tenant", "id" + i, "dataId", "category", "text");
+    }
+
+    private static void await(ResultBatcher batcher, long expected) throws Exception {
+        for (int i = 0; i < 50 && batcher.getSentEvents() + batcher.getFailedEvents() < expected; i++) {
+            Thread.sleep(100);
+        }
+    }
+
+    @Test
+    public void flushBySize() throws Exception {
+        List<Integer> batches = new CopyOnWriteArrayList<>();
+        ResultBatcher batcher = new ResultBatcher(events -> batches.add(events.size()), 100, 5, 10000, 0, 10);
+        for (int i = 0; i < 10; i++) {
+            batcher.add(event(i));
+        }
+        Thread thread = new Thread(batcher);
+        thread.start();
+
+        await(batcher, 10);
+        Assert.assertTrue(batcher.stop(5000));
+        thread.join();
+
+        Assert.assertEquals(10, batcher.getSentEvents());
+        Assert.assertEquals(2, batcher.getSentBatches());
+        Assert.assertEquals(5, batches.get(0).intValue());
+        Assert.assertEquals(5, batches.get(1).intValue());
+    }
+
+    @Test
+    public void flushByLinger() throws Exception {
+        ResultBatcher batcher = new ResultBatcher(events -> { }, 100, 50, 50, 0, 10);
+        Thread thread = new Thread(batcher);
+        thread.start();
+        batcher.add(event(1));
+        batcher.add(event(2));
+
+        await(batcher, 2);
+        Assert.assertTrue(batcher.stop(5000));
+        thread.join();
+
+        Assert.assertEquals(2, batcher.getSentEvents());
+        Assert.assertEquals(1, batcher.getSentBatches());
+    }
+
+    @Test
+    public void zeroLingerFlushesAvailableResults() throws Exception {
+        ResultBatcher batcher = new ResultBatcher(events -> { }, 100, 50, 0, 0, 10);
+        Thread thread = new Thread(batcher);
+        thread.start();
+        batcher.add(event(1));
+
+        await(batcher, 1);
+        Assert.assertTrue(batcher.stop(5000));
+        thread.join();
+
+        Assert.assertEquals(1, batcher.getSentEvents());
+    }
+
+    @Test
+    public void invalidSettings() {
+        assertInvalid(0, 5, 10);
+        assertInvalid(100, 0, 10);
+        assertInvalid(100, 5, -1);
+    }
+
+    private static void assertInvalid(int queueSize, int batchSize, long lingerMs) {
+        try {
+            new ResultBatcher(events -> { }, queueSize, batchSize, lingerMs, 0, 10);
+            Assert.fail("Expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void retryWithBackoff() throws Exception {
+        AtomicInteger calls = new AtomicInteger();
+        ResultBatcher batcher = new ResultBatcher(events -> {
+            if (calls.incrementAndGet() < 3) {
+                throw new IllegalStateException("Backend not available");
+            }
+        }, 100, 10, 10, 3, 10);
+        batcher.add(event(1));
+        Thread thread = new Thread(batcher);
+        thread.start();
+
+        await(batcher, 1);
+        Assert.assertTrue(batcher.stop(5000));
+        thread.join();
+
+        Assert.assertEquals(3, calls.get());
+        Assert.assertEquals(2, batcher.getRetries());
+        Assert.assertEquals(1, batcher.getSentEvents());
+        Assert.assertEquals(0, batcher.getFailedEvents());
+    }
+
+    @Test
+    public void boundedPendingResults() {
+        ResultBatcher batcher = new ResultBatcher(events -> { }, 2, 10, 10, 0, 10);
+        batcher.add(event(1));
+        batcher.add(event(2));
+        batcher.add(event(3));
+
+        Assert.assertEquals(2, batcher.getPending());
+        Assert.assertEquals(1, batcher.getDroppedEvents());
+    }
+
+    @Test
+    public void serializeCollectedEvents() throws Exception {
+        List<Event> sent = new CopyOnWriteArrayList<>();
+        ResultBatcher batcher = new ResultBatcher(events -> sent.addAll(events), 100, 10, 10, 0, 10);
+        batcher.add(event(0), Arrays.asList(event(1), event(2)));
+        Thread thread = new Thread(batcher);
+        thread.start();
+
+        await(batcher, 1);
+        Assert.assertTrue(batcher.stop(5000));
+        thread.join();
+
+        Assert.assertEquals(1, sent.size());
+        Assert.assertNotNull(sent.get(0).getContext().get("events"));
+    }
+
+    @Test
+    public void stopWaitsForLastFlush() throws Exception {
+        List<Event> sent = new CopyOnWriteArrayList<>();
+        ResultBatcher batcher = new ResultBatcher(events -> sent.addAll(events), 100, 10, 10000, 0, 10);
+        Thread thread = new Thread(batcher);
+        thread.start();
+        batcher.add(event(1));
+        batcher.add(event(2));
+
+        Assert.assertTrue(batcher.stop(5000));
+        Assert.assertEquals(2, sent.size());
+        thread.join();
+    }
+
+    @Test
+    public void interruptStopsRetries() throws Exception {
+        AtomicInteger calls = new AtomicInteger();
+        ResultBatcher batcher = new ResultBatcher(events -> {
+            calls.incrementAndGet();
+            throw new IllegalStateException("Backend not available");
+        }, 100, 10, 10, 100, 10000);
+        batcher.add(event(1));
+        Thread thread = new Thread(batcher);
+        thread.start();
+        for (int i = 0; i < 50 && calls.get() == 0; i++) {
+            Thread.sleep(100);
+        }
+
+        thread.interrupt();
+        thread.join(5000);
+
+        Assert.assertFalse(thread.isAlive());
+        Assert.assertEquals(1, calls.get());
+        Assert.assertEquals(1, batcher.getFailedEvents());
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright 2015-2016 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.apm.alerter.cep;
+
+import static org.hawkular.alerts.api.model.trigger.Mode.FIRING;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+
+import org.hawkular.alerts.api.model.condition.Condition;
+import org.hawkular.alerts.api.model.condition.ExternalCondition;
+import org.hawkular.alerts.api.model.event.Event;
+import org.hawkular.alerts.api.model.trigger.FullTrigger;
+import org.hawkular.alerts.api.model.trigger.Trigger;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @author Lucas Ponce
+ */
+public class ShardRoutingTest {
+
+    public static final String TEST_TENANT = "28026b36-8fe4-4332-84c8-524e173a68bf";
+    public static final String ALERTER_ID = "HawkularAPM";
+
+    private static final String EXPRESSION = "event:groupBy(context.accountId):window(time,10s):having(count > 1)";
+
+    private static final int SHARDS = 4;
+
+    /*
+        Routing only depends on the number of shards, so the sessions are not created
+     */
+    private static CepEngineImpl engine(boolean shardByDataId) {
+        CepEngineImpl engine = new CepEngineImpl();
+        engine.sessions = new CepSession[SHARDS];
+        engine.shardByDataId = shardByDataId;
+        return engine;
+    }
+
+    private static List<Collection<FullTrigger>> route(CepEngineImpl engine, FullTrigger fullTrigger) {
+        List<Collection<FullTrigger>> shardTriggers = new ArrayList<>();
+        for (int i = 0; i < SHARDS; i++) {
+            shardTriggers.add(new ArrayList<>());
+        }
+        engine.route(fullTrigger, shardTriggers);
+        return shardTriggers;
+    }
+
+    private static FullTrigger trigger(String... dataIds) {
+        Trigger trigger = new Trigger(TEST_TENANT, "split-trigger", "Split Trigger");
+        List<Condition> conditions = new ArrayList<>();
+        for (String dataId : dataIds) {
+            conditions.add(new ExternalCondition(trigger.getId(), FIRING, dataId, ALERTER_ID, EXPRESSION));
+        }
+        return new FullTrigger(trigger, null, conditions);
+    }
+
+    /*
+        Two dataIds of the test tenant that are routed to different shards
+     */
+    private static String[] splitDataIds(CepEngineImpl engine) {
+        String first = "data-id-0";
+        for (int i = 1; i < 100; i++) {
+            String second = "data-id-" + i;
+            if (engine.shard(TEST_TENANT, second) != engine.shard(TEST_TENANT, first)) {
+                return new String[] { first, second };
+            }
+        }
+        throw new IllegalStateException("All dataIds are routed to the same shard");
+    }
+
+    @Test
+    public void sameTenantAndDataIdMapToOneShard() {
+        CepEngineImpl engine = engine(true);
+        Set<Integer> used = new HashSet<>();
+        for (int i = 0; i < 100; i++) {
+            String dataId = "data-id-" + i;
+            int shard = engine.shard(TEST_TENANT, dataId);
+            Assert.assertTrue(shard >= 0 && shard < SHARDS);
+            Assert.assertEquals(shard, engine.shard(TEST_TENANT, new String(dataId)));
+            used.add(shard);
+        }
+        Assert.assertEquals(SHARDS, used.size());
+        Assert.assertEquals(engine.shard(null, "data-id-0"), engine.shard(null, "data-id-0"));
+    }
+
+    @Test
+    public void tenantKeyIgnoresDataId() {
+        CepEngineImpl engine = engine(false);
+        int shard = engine.shard(TEST_TENANT, null);
+        for (int i = 0; i < 100; i++) {
+            Assert.assertEquals(shard, engine.shard(TEST_TENANT, "data-id-" + i));
+        }
+
+        List<Collection<FullTrigger>> shardTriggers = route(engine, trigger("data-id-0", "data-id-1"));
+        for (int i = 0; i < SHARDS; i++) {
+            Assert.assertEquals(i == shard ? 1 : 0, shardTriggers.get(i).size());
+        }
+        Assert.assertEquals(2, shardTriggers.get(shard).iterator().next().getConditions().size());
+    }
+
+    @Test
+    public void conditionsAreSplitByDataId() {
+        CepEngineImpl engine = engine(true);
+        String[] dataIds = splitDataIds(engine);
+        FullTrigger fullTrigger = trigger(dataIds);
+
+        List<Collection<FullTrigger>> shardTriggers = route(engine, fullTrigger);
+        for (String dataId : dataIds) {
+            Collection<FullTrigger> triggers = shardTriggers.get(engine.shard(TEST_TENANT, dataId));
+            Assert.assertEquals(1, triggers.size());
+            FullTrigger shardTrigger = triggers.iterator().next();
+            Assert.assertSame(fullTrigger.getTrigger(), shardTrigger.getTrigger());
+            Assert.assertEquals(1, shardTrigger.getConditions().size());
+            Assert.assertEquals(dataId,
+                    ((ExternalCondition) shardTrigger.getConditions().iterator().next()).getDataId());
+        }
+        Assert.assertEquals(2, shardTriggers.stream().mapToInt(Collection::size).sum());
+    }
+
+    @Test
+    public void splitConditionsStillFire() {
+        CepEngineImpl engine = engine(true);
+        String[] dataIds = splitDataIds(engine);
+        List<Collection<FullTrigger>> shardTriggers = route(engine, trigger(dataIds));
+
+        List<Event> results = new ArrayList<>();
+        List<WindowEngine> shards = new ArrayList<>();
+        for (int i = 0; i < SHARDS; i++) {
+            WindowEngine shard = new WindowEngine(results::add);
+            shard.update(shardTriggers.get(i), false);
+            shards.add(shard);
+        }
+        long now = 1000;
+        for (String dataId : dataIds) {
+            for (int i = 0; i < 2; i++) {
+                Event event = new Event(TEST_TENANT, UUID.randomUUID().toString(), now, dataId, "TraceCompletion",
+                        "Buy " + now);
+                event.addContext("accountId", "user1");
+                shards.get(engine.shard(TEST_TENANT, dataId)).insert(Arrays.asList(event), now);
+                now += 1000;
+            }
+        }
+
+        Assert.assertEquals(2, results.size());
+        Set<String> fired = new HashSet<>();
+        results.stream().forEach(result -> fired.add(result.getDataId()));
+        Assert.assertEquals(new HashSet<>(Arrays.asList(dataIds)), fired);
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright 2015-2016 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.apm.alerter.cep;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import org.hawkular.alerts.api.model.event.Event;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @author Lucas Ponce
+ */
+public class SnapshotStoreTest {
+
+    private static Event event(String tenantId, long ctime) {
+        Event event = new Event(tenantId, "id" + ctime, ctime, "dataId", "category", "text");
+        event.addContext("duration", String.valueOf(ctime));
+        return event;
+    }
+
+    @Test
+    public void snapshotIsReplaced() throws Exception {
+        Path dir = Files.createTempDirectory("snapshots");
+        SnapshotStore store = new SnapshotStore(dir);
+        Assert.assertTrue(store.read().isEmpty());
+
+        List<Collection<Event>> shards = new ArrayList<>();
+        shards.add(Arrays.asList(event("tenant1", 1000), event("tenant1", 2000)));
+        shards.add(Collections.emptyList());
+        shards.add(Collections.singletonList(event("tenant2", 1500)));
+        store.write(shards);
+
+        List<Event> events = new SnapshotStore(dir).read();
+        Assert.assertEquals(3, events.size());
+        Assert.assertEquals("tenant1", events.get(0).getTenantId());
+        Assert.assertEquals(2000, events.get(1).getCtime());
+        Assert.assertEquals("tenant2", events.get(2).getTenantId());
+        Assert.assertEquals("1500", events.get(2).getContext().get("duration"));
+
+        store.write(Collections.singletonList(Collections.singletonList(event("tenant3", 3000))));
+        events = store.read();
+        Assert.assertEquals(1, events.size());
+        Assert.assertEquals("tenant3", events.get(0).getTenantId());
+        Assert.assertEquals(1, Files.list(dir).count());
+    }
+}
@@ -0,0 +1,282 @@
+/*
+ * Copyright 2015-2016 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.apm.alerter.cep;
+
+import static org.hawkular.alerts.api.model.trigger.Mode.FIRING;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.hawkular.alerts.api.model.condition.ExternalCondition;
+import org.hawkular.alerts.api.model.event.Event;
+import org.hawkular.alerts.api.model.trigger.FullTrigger;
+import org.hawkular.alerts.api.model.trigger.Trigger;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Behaviour specific to the WindowEngine, the scenarios shared with Drools are in EngineParityTest.
+ *
+ * @author Lucas Ponce
+ */
+public class WindowEngineTest {
+
+    public static final String TEST_TENANT = "28026b36-8fe4-4332-84c8-524e173a68bf";
+    public static final String DATA_ID = "apm-data-id";
+    public static final String ALERTER_ID = "HawkularAPM";
+
+    WindowEngine engine;
+    List<Event> results;
+    Clock clock;
+
+    public static String uuid() {
+        return UUID.randomUUID().toString();
+    }
+
+    /*
+        Manual clock with the PseudoClockScheduler methods used by the scenarios
+     */
+    static class Clock {
+        long now;
+
+        void setStartupTime(long startupTime) {
+            now = startupTime;
+        }
+
+        long getCurrentTime() {
+            return now;
+        }
+
+        long advanceTime(long amount, TimeUnit unit) {
+            now += unit.toMillis(amount);
+            return now;
+        }
+    }
+
+    private void startSession(Collection<FullTrigger> activeTriggers) {
+        results = new ArrayList<>();
+        engine = new WindowEngine(results::add);
+        engine.update(activeTriggers, false);
+        clock = new Clock();
+    }
+
+    private void stopSession() {
+        engine.clear();
+    }
+
+    private void insert(Event... events) {
+        engine.insert(Arrays.asList(events), clock.getCurrentTime());
+    }
+
+    @Test
+    public void expireFromOldestEvent() {
+        Trigger trigger = new Trigger(TEST_TENANT, "expire-scenario", "Expire Scenario");
+        String expression = "event:groupBy(context.accountId):window(time,10s):having(count > 1)";
+        ExternalCondition condition = new ExternalCondition(trigger.getId(), FIRING, DATA_ID, ALERTER_ID, expression);
+        startSession(Arrays.asList(new FullTrigger(trigger, null, Arrays.asList(condition))));
+
+        clock.setStartupTime(1);
+        long now = clock.getCurrentTime();
+
+        Event e1 = new Event(TEST_TENANT, uuid(), now, DATA_ID, "TraceCompletion", "E1 - Buy Book");
+        e1.addContext("accountId", "user1");
+        insert(e1);
+
+        // t0 + 5000
+        now = clock.advanceTime(5000, TimeUnit.MILLISECONDS);
+        Event e2 = new Event(TEST_TENANT, uuid(), now, DATA_ID, "TraceCompletion", "E2 - Buy Book");
+        e2.addContext("accountId", "user1");
+        insert(e2);
+        Assert.assertEquals(1, results.size());
+
+        // t0 + 12000, e1 is out of the window
+        clock.advanceTime(7000, TimeUnit.MILLISECONDS);
+        engine.advance(clock.getCurrentTime());
+        Assert.assertEquals(1, engine.getEntries());
+
+        // t0 + 20000, e2 is out of the window
+        now = clock.advanceTime(8000, TimeUnit.MILLISECONDS);
+        Event e3 = new Event(TEST_TENANT, uuid(), now, DATA_ID, "TraceCompletion", "E3 - Buy Book");
+        e3.addContext("accountId", "user1");
+        insert(e3);
+        Assert.assertEquals(1, engine.getEntries());
+
+        stopSession();
+
+        Assert.assertEquals(1, results.size());
+    }
+
+    @Test
+    public void entriesAndOldestEvent() {
+        Trigger trigger = new Trigger(TEST_TENANT, "length-scenario", "Length Scenario");
+        String expression = "event:groupBy(context.accountId):window(length,2):having(count > 5)";
+        ExternalCondition condition = new ExternalCondition(trigger.getId(), FIRING, DATA_ID, ALERTER_ID, expression);
+        startSession(Arrays.asList(new FullTrigger(trigger, null, Arrays.asList(condition))));
+
+        clock.setStartupTime(1000);
+        Assert.assertEquals(0, engine.getOldestEventCtime());
+
+        for (int i = 0; i < 3; i++) {
+            long now = clock.advanceTime(1000, TimeUnit.MILLISECONDS);
+            Event event = new Event(TEST_TENANT, uuid(), now, DATA_ID, "TraceCompletion", "Buy Book");
+            event.addContext("accountId", "user1");
+            insert(event);
+        }
+
+        // the first event left the length window
+        Assert.assertEquals(2, engine.getEntries());
+        Assert.assertEquals(3000, engine.getOldestEventCtime());
+
+        stopSession();
+    }
+
+    @Test
+    public void replayEvents() {
+        Trigger trigger = new Trigger(TEST_TENANT, "replay-scenario", "Replay Scenario");
+        String expression = "event:groupBy(context.accountId):window(time,10s):having(count > 2)";
+        ExternalCondition condition = new ExternalCondition(trigger.getId(), FIRING, DATA_ID, ALERTER_ID, expression);
+        List<FullTrigger> activeTriggers = Arrays.asList(new FullTrigger(trigger, null, Arrays.asList(condition)));
+        startSession(activeTriggers);
+
+        clock.setStartupTime(1000);
+        for (int i = 0; i < 3; i++) {
+            long now = clock.advanceTime(1000, TimeUnit.MILLISECONDS);
+            Event event = new Event(TEST_TENANT, uuid(), now, DATA_ID, "TraceCompletion", "Buy Book");
+            event.addContext("accountId", "user1");
+            insert(event);
+        }
+        Assert.assertEquals(1, results.size());
+        List<Event> events = engine.getEvents();
+        Assert.assertEquals(3, events.size());
+        Assert.assertEquals(2000, events.get(0).getCtime());
+
+        // a new engine restores the windows without sending the results again
+        long now = clock.getCurrentTime();
+        startSession(activeTriggers);
+        clock.setStartupTime(now);
+        engine.replay(events, clock.getCurrentTime());
+        Assert.assertEquals(0, results.size());
+        Assert.assertEquals(3, engine.getEntries());
+
+        clock.advanceTime(1000, TimeUnit.MILLISECONDS);
+        Event event = new Event(TEST_TENANT, uuid(), clock.getCurrentTime(), DATA_ID, "TraceCompletion", "Buy Book");
+        event.addContext("accountId", "user1");
+        insert(event);
+        Assert.assertEquals(1, results.size());
+
+        stopSession();
+    }
+
+    @Test
+    public void emptyGroupsAreRemoved() {
+        Trigger trigger = new Trigger(TEST_TENANT, "groups-scenario", "Groups Scenario");
+        String expression = "event:groupBy(context.accountId):window(time,10s):having(count > 1)";
+        ExternalCondition condition = new ExternalCondition(trigger.getId(), FIRING, DATA_ID, ALERTER_ID, expression);
+        startSession(Arrays.asList(new FullTrigger(trigger, null, Arrays.asList(condition))));
+
+        clock.setStartupTime(1);
+        long now = clock.getCurrentTime();
+
+        for (int i = 0; i < 100; i++) {
+            Event event = new Event(TEST_TENANT, uuid(), now, DATA_ID, "TraceCompletion", "Buy Book");
+            event.addContext("accountId", "user" + i);
+            insert(event);
+        }
+        Assert.assertEquals(100, engine.getGroups());
+
+        // all the windows are empty
+        clock.advanceTime(11000, TimeUnit.MILLISECONDS);
+        engine.advance(clock.getCurrentTime());
+        Assert.assertEquals(0, engine.getGroups());
+        Assert.assertEquals(0, engine.getEntries());
+
+        stopSession();
+    }
+
+    @Test
+    public void lengthWindowAfterExpiration() {
+        Trigger trigger = new Trigger(TEST_TENANT, "length-scenario", "Length Scenario");
+        String expression = "event:groupBy(context.accountId):window(length,2):having(count > 1)";
+        ExternalCondition condition = new ExternalCondition(trigger.getId(), FIRING, DATA_ID, ALERTER_ID, expression);
+        startSession(Arrays.asList(new FullTrigger(trigger, null, Arrays.asList(condition))));
+
+        clock.setStartupTime(1);
+        long now = clock.getCurrentTime();
+
+        Event e1 = new Event(TEST_TENANT, uuid(), now, DATA_ID, "TraceCompletion", "E1 - Buy Book");
+        e1.addContext("accountId", "user1");
+        Event e2 = new Event(TEST_TENANT, uuid(), now, DATA_ID, "TraceCompletion", "E2 - Buy Book");
+        e2.addContext("accountId", "user1");
+        insert(e1, e2);
+        Assert.assertEquals(1, results.size());
+
+        // e1 and e2 leave the window after the default expiration
+        now = clock.advanceTime(31, TimeUnit.MINUTES);
+        Event e3 = new Event(TEST_TENANT, uuid(), now, DATA_ID, "TraceCompletion", "E3 - Buy Book");
+        e3.addContext("accountId", "user1");
+        insert(e3);
+        Assert.assertEquals(1, engine.getEntries());
+
+        Event e4 = new Event(TEST_TENANT, uuid(), now, DATA_ID, "TraceCompletion", "E4 - Buy Book");
+        e4.addContext("accountId", "user1");
+        insert(e4);
+
+        stopSession();
+
+        Assert.assertEquals(2, results.size());
+    }
+
+    @Test
+    public void lengthWindow() {
+        Trigger trigger = new Trigger(TEST_TENANT, "length-scenario", "Length Scenario");
+        String expression = "event:groupBy(context.accountId):window(length,2):having(count > 1)";
+        ExternalCondition condition = new ExternalCondition(trigger.getId(), FIRING, DATA_ID, ALERTER_ID, expression);
+        startSession(Arrays.asList(new FullTrigger(trigger, null, Arrays.asList(condition))));
+
+        clock.setStartupTime(1);
+        long now = clock.getCurrentTime();
+
+        Event e1 = new Event(TEST_TENANT, uuid(), now, DATA_ID, "TraceCompletion", "E1 - Buy Book");
+        e1.addContext("accountId", "user1");
+        Event e2 = new Event(TEST_TENANT, uuid(), now, DATA_ID, "TraceCompletion", "E2 - Buy Book");
+        e2.addContext("accountId", "user2");
+        Event e3 = new Event(TEST_TENANT, uuid(), now, DATA_ID, "TraceCompletion", "E3 - Buy Book");
+        e3.addContext("accountId", "user1");
+
+        insert(e1);
+        insert(e2);
+        // e1 is out of the window
+        insert(e3);
+
+        stopSession();
+
+        Assert.assertEquals(0, results.size());
+    }
+
+    @Test
+    public void parseTime() {
+        Assert.assertEquals(10000, WindowRule.parseTime("10s"));
+        Assert.assertEquals(30 * 60000, WindowRule.parseTime("30m"));
+        Assert.assertEquals(1, WindowRule.parseTime("1ms"));
+        Assert.assertEquals(500, WindowRule.parseTime("500"));
+        Assert.assertEquals(86400000L + 3600000L + 60000L + 1000L + 1L, WindowRule.parseTime("1d1h1m1s1ms"));
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2015-2016 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.apm.alerter.rest;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+
+/**
+ * @author Lucas Ponce
+ */
+public class EventStreamTest {
+
+    private static String event(int i) {
+        return "{\"id\":\"e" + i + "\",\"ctime\":" + i + ",\"dataId\":\"apm-data-id\",\"category\":\"Trace\","
+                + "\"text\":\"E" + i + "\",\"context\":{\"accountId\":\"user" + (i % 3) + "\"}}";
+    }
+
+    private static InputStream stream(String json) {
+        return new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String array(int n) {
+        StringBuilder json = new StringBuilder("[");
+        for (int i = 0; i < n; i++) {
+            json.append(i > 0 ? "," : "").append(event(i));
+        }
+        return json.append("]").toString();
+    }
+
+    @Test
+    public void readArrayInChunks() throws Exception {
+        List<Integer> chunks = new ArrayList<>();
+        List<String> ids = new ArrayList<>();
+        long events = EventStream.read(stream(array(25)), 10, chunk -> {
+            chunks.add(chunk.size());
+            chunk.stream().forEach(e -> ids.add(e.getId()));
+            return true;
+        });
+        Assert.assertEquals(25, events);
+        Assert.assertEquals("[10, 10, 5]", chunks.toString());
+        Assert.assertEquals("e0", ids.get(0));
+        Assert.assertEquals("e24", ids.get(24));
+    }
+
+    @Test
+    public void readLines() throws Exception {
+        List<String> accounts = new ArrayList<>();
+        long events = EventStream.read(stream(event(1) + "\n" + event(2) + "\n"), 10, chunk -> {
+            chunk.stream().forEach(e -> accounts.add(e.getContext().get("accountId")));
+            return true;
+        });
+        Assert.assertEquals(2, events);
+        Assert.assertEquals("[user1, user2]", accounts.toString());
+    }
+
+    @Test
+    public void rejectedChunkStopsReading() throws Exception {
+        List<Integer> chunks = new ArrayList<>();
+        long events = EventStream.read(stream(array(25)), 10, chunk -> {
+            chunks.add(chunk.size());
+            return chunks.size() < 2;
+        });
+        Assert.assertEquals(10, events);
+        Assert.assertEquals(2, chunks.size());
+    }
+
+    @Test(expected = JsonProcessingException.class)
+    public void wrongStream() throws Exception {
+        EventStream.read(stream("[" + event(1) + ", 5]"), 10, chunk -> true);
+    }
+}